@@ -17,6 +17,71 @@ LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(SPANDSP)/spandsp $(LOCAL_PATH)/$(SPANDSP)
 LOCAL_CFLAGS = -O3
 include $(BUILD_SHARED_LIBRARY)
 
+include $(CLEAR_VARS)
+SPANDSP     := spandsp
+LOCAL_MODULE    := g722_jni
+LOCAL_SRC_FILES := g722_jni.cpp \
+	$(SPANDSP)/g722.c \
+	$(SPANDSP)/vector_int.c
+LOCAL_ARM_MODE := arm
+LOCAL_LDLIBS := -llog
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(SPANDSP)/spandsp $(LOCAL_PATH)/$(SPANDSP)
+LOCAL_CFLAGS = -O3
+include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+SPEEX       := speex-1.2rc1
+LOCAL_MODULE    := speex_jni
+LOCAL_SRC_FILES := speex_jni.cpp \
+	$(patsubst $(LOCAL_PATH)/%,%,$(wildcard $(LOCAL_PATH)/$(SPEEX)/libspeex/*.c))
+LOCAL_ARM_MODE := arm
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(SPEEX)/include
+LOCAL_CFLAGS = -DFIXED_POINT -DEXPORT="" -UHAVE_CONFIG_H -O3
+include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+BV16        := bx16_fixedp
+LOCAL_MODULE    := bv16_jni
+LOCAL_SRC_FILES := bv16_jni.cpp \
+	$(patsubst $(LOCAL_PATH)/%,%,$(wildcard $(LOCAL_PATH)/$(BV16)/bv16/*.c)) \
+	$(patsubst $(LOCAL_PATH)/%,%,$(wildcard $(LOCAL_PATH)/$(BV16)/bvcommon/*.c))
+LOCAL_ARM_MODE := arm
+LOCAL_LDLIBS := -llog
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(BV16)/bvcommon $(LOCAL_PATH)/$(BV16)/bv16 $(LOCAL_PATH)/$(BV16)
+LOCAL_CFLAGS = -O3
+include $(BUILD_SHARED_LIBRARY)
+
+# SILK is built once for each sample rate
+SILK        := silk
+SILK_SRC_FILES := $(patsubst $(LOCAL_PATH)/%,%,$(wildcard $(LOCAL_PATH)/$(SILK)/src/*.c))
+
+include $(CLEAR_VARS)
+LOCAL_MODULE    := silk8_jni
+LOCAL_SRC_FILES := silk8_jni.cpp $(SILK_SRC_FILES)
+LOCAL_ARM_MODE := arm
+LOCAL_LDLIBS := -llog
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(SILK)/src $(LOCAL_PATH)/$(SILK)/interface
+LOCAL_CFLAGS = -O3
+include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+LOCAL_MODULE    := silk16_jni
+LOCAL_SRC_FILES := silk16_jni.cpp $(SILK_SRC_FILES)
+LOCAL_ARM_MODE := arm
+LOCAL_LDLIBS := -llog
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(SILK)/src $(LOCAL_PATH)/$(SILK)/interface
+LOCAL_CFLAGS = -O3
+include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+LOCAL_MODULE    := silk24_jni
+LOCAL_SRC_FILES := silk24_jni.cpp $(SILK_SRC_FILES)
+LOCAL_ARM_MODE := arm
+LOCAL_LDLIBS := -llog
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/$(SILK)/src $(LOCAL_PATH)/$(SILK)/interface
+LOCAL_CFLAGS = -O3
+include $(BUILD_SHARED_LIBRARY)
+
 include $(CLEAR_VARS)
 IW:=wireless-tools
 LOCAL_MODULE := iwstatus
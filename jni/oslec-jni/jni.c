@@ -49,6 +49,14 @@ JNIEXPORT jint JNICALL Java_org_servalproject_audio_Oslec_echoCanInit
 JNIEXPORT jint JNICALL Java_org_servalproject_audio_Oslec_echoCanUpdate
 (JNIEnv *, jclass, jint, jbyteArray, jint, jbyteArray, jint, jint);
 
+/*
+ * Class:     org_servalproject_audio_Oslec
+ * Method:    echoCanUpdateDirect
+ * Signature: (ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalproject_audio_Oslec_echoCanUpdateDirect
+(JNIEnv *, jclass, jint, jobject, jint, jobject, jint, jint);
+
 /*
  * Class:     org_servalproject_audio_Oslec
  * Method:    echoCanFree
@@ -148,6 +156,51 @@ Java_org_servalproject_audio_Oslec_echoCanUpdate(JNIEnv *env, jclass class, JVM_
 	return modified;
 }
 
+// the same as echoCanUpdate, but on direct byte buffers in native order
+// so we can work on the samples in place, without pinning or copying
+JNIEXPORT jint JNICALL
+Java_org_servalproject_audio_Oslec_echoCanUpdateDirect(JNIEnv *env, jclass class, JVM_PTR echo_can_state,
+																	jobject txBuffer, jint txOffset,
+																	jobject rxBuffer, jint rxOffset,
+																	jint len) {
+	
+	echo_can_state_t *state = (echo_can_state_t*)echo_can_state;
+	int16_t *srx = NULL;
+	int16_t *stx = NULL;
+	int i, modified=0;
+	
+	if (len<0)
+		return -1;
+	
+	// either buffer may be NULL, then we pass silence into the echo canceller
+	
+	if (rxBuffer){
+		jbyte *rx = (*env)->GetDirectBufferAddress(env, rxBuffer);
+		jlong rxLen = (*env)->GetDirectBufferCapacity(env, rxBuffer);
+		if (!rx || rxOffset<0 || rxOffset + len > rxLen)
+			return -1;
+		srx = (int16_t *)(rx+rxOffset);
+	}
+	
+	if (txBuffer){
+		jbyte *tx = (*env)->GetDirectBufferAddress(env, txBuffer);
+		jlong txLen = (*env)->GetDirectBufferCapacity(env, txBuffer);
+		if (!tx || txOffset<0 || txOffset + len > txLen)
+			return -1;
+		stx = (int16_t *)(tx+txOffset);
+	}
+	
+	for (i=0;i<(len/2);i++){
+		int16_t x = echo_can_update(state, stx?stx[i]:0, srx?srx[i]:0);
+		if (srx && srx[i]!=x){
+			srx[i] =x;
+			modified =1;
+		}
+	}
+	
+	return modified;
+}
+
 JNIEXPORT void JNICALL
 Java_org_servalproject_audio_Oslec_echoCanFree(JNIEnv *env, jclass class, JVM_PTR echo_can_state) {
 	echo_can_state_t *state = (echo_can_state_t*)echo_can_state;
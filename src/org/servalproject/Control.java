@@ -3,9 +3,10 @@ package org.servalproject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
+import java.util.EnumSet;
 
 import org.servalproject.ServalBatPhoneApplication.State;
+import org.servalproject.audio.Codecs;
 import org.servalproject.batphone.CallHandler;
 import org.servalproject.batphone.VoMP;
 import org.servalproject.rhizome.Rhizome;
@@ -188,23 +189,58 @@ public class Control extends Service {
 
 		ServalD.serverStart();
 
-		if (app.servaldMonitor == null) {
-			app.servaldMonitor = new ServalDMonitor(
-					new Messages(app));
-
-			new Thread(app.servaldMonitor, "Monitor").start();
-		}
-
-		// sleep until servald monitor is ready
-		while (app.servaldMonitor != null
-				&& !app.servaldMonitor.ready()) {
-			try {
-				Thread.sleep(100);
-			} catch (Exception e) {
+		ServalDMonitor monitor = app.servaldMonitor;
+		boolean start = monitor == null;
+		if (start)
+			monitor = app.servaldMonitor = createMonitor(app);
+
+		// wait until servald monitor is ready, or has been stopped
+		final Object lock = new Object();
+		ServalDMonitor.StateListener listener = new ServalDMonitor.StateListener() {
+			@Override
+			public void stateChanged(ServalDMonitor monitor,
+					ServalDMonitor.State state) {
+				synchronized (lock) {
+					lock.notifyAll();
+				}
 			}
+		};
+		monitor.addStateListener(listener);
+		try {
+			if (start)
+				new Thread(monitor, "Monitor").start();
+			synchronized (lock) {
+				while (app.servaldMonitor == monitor
+						&& monitor.getState() != ServalDMonitor.State.Ready
+						&& monitor.getState() != ServalDMonitor.State.Stopped) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		} finally {
+			monitor.removeStateListener(listener);
 		}
 	}
 
+	// a monitor connection with all of our message handlers registered,
+	// also used by MonitorReplay
+	public static ServalDMonitor createMonitor(ServalBatPhoneApplication app) {
+		Messages messages = new Messages(app);
+		ServalDMonitor monitor = new ServalDMonitor(messages);
+		messages.register(monitor);
+		monitor.setRecordFile(monitorRecordFile(app));
+		return monitor;
+	}
+
+	// where to record the monitor connection, or null if we shouldn't
+	public static File monitorRecordFile(ServalBatPhoneApplication app) {
+		if (!app.settings.getBoolean("monitor_record", false))
+			return null;
+		return new File(app.getStorageFolder(), "monitor.rec");
+	}
+
 	private synchronized void startService() {
 		instance = this;
 
@@ -260,140 +296,242 @@ public class Control extends Service {
 
 	private static class Messages implements ServalDMonitor.Messages {
 		private final ServalBatPhoneApplication app;
+		private ServalDMonitor monitor;
 
 		private Messages(ServalBatPhoneApplication app) {
 			this.app = app;
 		}
 
-		@Override
-		public int message(String cmd, Iterator<String> args,
-				InputStream in, int dataBytes)
-				throws IOException {
-
-			int ret = 0;
-
-			if (cmd.equals("NEWPEER") || cmd.equals("OLDPEER")) {
-				try {
-					SubscriberId sid = new SubscriberId(args
-							.next());
-					PeerListService
-							.peerReachable(app.getContentResolver(), sid,
-									cmd.equals("NEWPEER"));
-				} catch (SubscriberId.InvalidHexException e) {
-					IOException t = new IOException(e.getMessage());
-					t.initCause(e);
-					throw t;
-				}
-				if (instance != null) {
-					instance.peerCount = PeerListService.peerCount(instance);
-					instance.handler.post(instance.notification);
+		// asks servald for the whole peer list, so keep it off the monitor
+		// thread and only do it once for a burst of peer changes
+		private final Runnable refreshPeerCount = new Runnable() {
+			@Override
+			public void run() {
+				Control control = instance;
+				if (control != null) {
+					control.peerCount = PeerListService.peerCount(control);
+					control.handler.post(control.notification);
 				}
-			} else if (cmd.equals("KEEPALIVE")) {
-				// send keep alive to anyone who cares
-				int local_session = ServalDMonitor.parseIntHex(args.next());
-				if (app.callHandler != null)
-					app.callHandler.keepAlive(local_session);
-			} else if (cmd.equals("INFO")) {
-				while (args.hasNext())
-					Log.v("Control", args.next());
-			} else if (cmd.equals("MONITORSTATUS")) {
-				// returns monitor status
-				int flags = ServalDMonitor.parseInt(args.next());
-				if (app.callHandler != null)
-					app.callHandler.monitor(flags);
-
-			} else if (cmd.equals("AUDIOPACKET")) {
-				// AUDIOPACKET:065384:8:2701:2720
-				int local_session = ServalDMonitor.parseIntHex(args.next());
-
-				VoMP.Codec codec = VoMP.Codec.getCodec(ServalDMonitor
-						.parseInt(args.next()));
-				int start_time = ServalDMonitor.parseInt(args.next());
-				int end_time = ServalDMonitor.parseInt(args.next());
-
-				if (app.callHandler != null) {
-					ret += app.callHandler.receivedAudio(
-							local_session, start_time,
-							end_time, codec, in, dataBytes);
+			}
+		};
+
+		private void register(ServalDMonitor monitor) {
+			this.monitor = monitor;
+			registerCallHandlers(monitor);
+			registerPeerHandlers(monitor);
+			registerRhizomeHandlers(monitor);
+
+			monitor.addHandler("INFO", new ServalDMonitor.MessageHandler() {
+				@Override
+				public int message(String cmd, ServalDMonitor.Fields args,
+						InputStream in, int dataBytes) {
+					while (args.hasNext())
+						Log.v("Control", args.next());
+					return 0;
 				}
+			});
+		}
 
-			} else if (cmd.equals("CALLSTATUS")) {
-				try {
-					int local_session = ServalDMonitor.parseIntHex(args.next());
-					int remote_session = ServalDMonitor
-							.parseIntHex(args.next());
-					int local_state = ServalDMonitor.parseInt(args.next());
-					int remote_state = ServalDMonitor.parseInt(args.next());
-					int fast_audio = ServalDMonitor.parseInt(args.next());
-					SubscriberId local_sid = new SubscriberId(args.next());
-					SubscriberId remote_sid = new SubscriberId(args.next());
-
-					String local_did = null, remote_did = null;
-					if (args.hasNext())
-						local_did = args.next();
-
-					if (args.hasNext())
-						remote_did = args.next();
-
-					// TODO reject call when busy instead of just ignoring?
-
-					if (app.callHandler == null) {
-
-						if (local_state <= VoMP.State.CallPrep.code
-								&& remote_state <= VoMP.State.CallPrep.code) {
-							Log.d("ServalDMonitor",
-									"Ignoring call in NOCALL state");
-							return ret;
+		private void registerCallHandlers(ServalDMonitor monitor) {
+			monitor.addHandler("AUDIOPACKET",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) throws IOException {
+							// AUDIOPACKET:065384:8:2701:2720
+							int local_session = args.nextIntHex();
+
+							VoMP.Codec codec = VoMP.Codec.getCodec(args
+									.nextInt());
+							int start_time = args.nextInt();
+							int end_time = args.nextInt();
+
+							if (app.callHandler == null)
+								return 0;
+							return app.callHandler.receivedAudio(
+									local_session, start_time,
+									end_time, codec, in, dataBytes);
 						}
+					});
 
-						if (local_state >= VoMP.State.CallEnded.code
-								|| remote_state >= VoMP.State.CallEnded.code) {
-							Log.d("ServalDMonitor",
-									"Ignoring call in CALLENDED state");
-							return ret;
+			monitor.addHandler("AUDIOBATCH",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) {
+							// AUDIOBATCH:3
+							int frames = args.nextInt();
+							if (frames > VoMP.MAX_AUDIO_BATCH)
+								frames = VoMP.MAX_AUDIO_BATCH;
+							Log.v("Control", "Sending up to " + frames
+									+ " audio blocks per message");
+							Messages.this.monitor.setAudioBatchLimit(frames);
+							return 0;
 						}
+					});
 
-						if (local_session == 0)
-							return ret;
+			monitor.addHandler("NEWCODECS",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) throws IOException {
+							// NEWCODECS:9:11:12
+							EnumSet<VoMP.Codec> codecs = EnumSet
+									.noneOf(VoMP.Codec.class);
+							while (args.hasNext())
+								codecs.add(VoMP.Codec.getCodec(args.nextInt()));
+							Codecs.setAccepted(codecs);
+							String list = Codecs.getSupportedList();
+							Log.v("Control", "servald accepted codecs "
+									+ codecs + ", offering " + list);
+							Messages.this.monitor.sendMessage("monitor vomp "
+									+ list);
+							return 0;
+						}
+					});
 
-						app.callHandler = new CallHandler(
-								PeerListService.getPeer(
-										ServalBatPhoneApplication.context
-												.getContentResolver(),
-										remote_sid));
-					}
+			monitor.addHandler("KEEPALIVE",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) {
+							// send keep alive to anyone who cares
+							int local_session = args.nextIntHex();
+							if (app.callHandler != null)
+								app.callHandler.keepAlive(local_session);
+							return 0;
+						}
+					});
 
-					app.callHandler.notifyCallStatus(local_session,
-							remote_session,
-							local_state, remote_state, fast_audio,
-							local_sid, remote_sid, local_did,
-							remote_did);
+			monitor.addHandler("MONITORSTATUS",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) {
+							// returns monitor status
+							int flags = args.nextInt();
+							if (app.callHandler != null)
+								app.callHandler.monitor(flags);
+							return 0;
+						}
+					});
 
-					// localtoken:remotetoken:localstate:remotestate
-				} catch (SubscriberId.InvalidHexException e) {
-					throw new IOException("invalid SubscriberId token: " + e);
+			monitor.addHandler("CALLSTATUS",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) throws IOException {
+							callStatus(args);
+							return 0;
+						}
+					});
+
+			monitor.addHandler("CODECS", new ServalDMonitor.MessageHandler() {
+				@Override
+				public int message(String cmd, ServalDMonitor.Fields args,
+						InputStream in, int dataBytes) {
+					int local_session = args.nextIntHex();
+					if (app.callHandler != null)
+						app.callHandler.codecs(local_session, args);
+					return 0;
 				}
+			});
+		}
 
-			} else if (cmd.equals("CODECS")) {
-				int local_session = ServalDMonitor.parseIntHex(args.next());
-				if (app.callHandler != null)
-					app.callHandler.codecs(local_session, args);
+		private void callStatus(ServalDMonitor.Fields args) throws IOException {
+			int local_session = args.nextIntHex();
+			int remote_session = args.nextIntHex();
+			int local_state = args.nextInt();
+			int remote_state = args.nextInt();
+			int fast_audio = args.nextInt();
+			SubscriberId local_sid = args.nextSid();
+			SubscriberId remote_sid = args.nextSid();
 
-			} else if (cmd.equals("BUNDLE")) {
-				try {
-					String manifestId=args.next();
-					BundleId bid=new BundleId(manifestId);
+			String local_did = null, remote_did = null;
+			if (args.hasNext())
+				local_did = args.next();
 
-					RhizomeManifest manifest = Rhizome.readManifest(bid);
-					Rhizome.notifyIncomingBundle(manifest);
-				} catch (Exception e) {
-					Log.v("ServalDMonitor", e.getMessage(), e);
+			if (args.hasNext())
+				remote_did = args.next();
+
+			// TODO reject call when busy instead of just ignoring?
+
+			if (app.callHandler == null) {
+
+				if (local_state <= VoMP.State.CallPrep.code
+						&& remote_state <= VoMP.State.CallPrep.code) {
+					Log.d("ServalDMonitor",
+							"Ignoring call in NOCALL state");
+					return;
 				}
-			} else {
-				Log.i("ServalDMonitor",
-						"Unhandled monitor cmd " + cmd);
+
+				if (local_state >= VoMP.State.CallEnded.code
+						|| remote_state >= VoMP.State.CallEnded.code) {
+					Log.d("ServalDMonitor",
+							"Ignoring call in CALLENDED state");
+					return;
+				}
+
+				if (local_session == 0)
+					return;
+
+				app.callHandler = new CallHandler(
+						PeerListService.getPeer(
+								ServalBatPhoneApplication.context
+										.getContentResolver(),
+								remote_sid));
 			}
-			return ret;
+
+			app.callHandler.notifyCallStatus(local_session,
+					remote_session,
+					local_state, remote_state, fast_audio,
+					local_sid, remote_sid, local_did,
+					remote_did);
+		}
+
+		private void registerPeerHandlers(ServalDMonitor monitor) {
+			ServalDMonitor.MessageHandler peerHandler = new ServalDMonitor.MessageHandler() {
+				@Override
+				public int message(String cmd, ServalDMonitor.Fields args,
+						InputStream in, int dataBytes) throws IOException {
+					SubscriberId sid = args.nextSid();
+					PeerListService.peerReachable(app.getContentResolver(),
+							sid, cmd.equals("NEWPEER"));
+					Messages.this.monitor.runInBackground(refreshPeerCount,
+							refreshPeerCount);
+					return 0;
+				}
+			};
+			monitor.addBackgroundHandler("NEWPEER", peerHandler);
+			monitor.addBackgroundHandler("OLDPEER", peerHandler);
+		}
+
+		private void registerRhizomeHandlers(ServalDMonitor monitor) {
+			monitor.addBackgroundHandler("BUNDLE",
+					new ServalDMonitor.MessageHandler() {
+						@Override
+						public int message(String cmd,
+								ServalDMonitor.Fields args, InputStream in,
+								int dataBytes) {
+							try {
+								String manifestId = args.next();
+								BundleId bid = new BundleId(manifestId);
+
+								RhizomeManifest manifest = Rhizome
+										.readManifest(bid);
+								Rhizome.notifyIncomingBundle(manifest);
+							} catch (Exception e) {
+								Log.v("ServalDMonitor", e.getMessage(), e);
+							}
+							return 0;
+						}
+					});
 		}
 
 		@Override
@@ -401,21 +539,23 @@ public class Control extends Service {
 			try {
 				// tell servald that we can initiate and answer phone calls, and
 				// the list of codecs we support
-				app.servaldMonitor.sendMessage("monitor vomp "
-						+ VoMP.Codec.Pcm.codeString + " "
-						+ VoMP.Codec.Ulaw8.codeString + " "
-						+ VoMP.Codec.Alaw8.codeString);
-				app.servaldMonitor
-						.sendMessage("monitor rhizome");
-				app.servaldMonitor.sendMessage("monitor peers");
+				Codecs.setAccepted(EnumSet.noneOf(VoMP.Codec.class));
+				monitor.sendMessage("monitor vomp "
+						+ Codecs.getSupportedList());
+				// only use our newer codecs if servald can carry them, it
+				// will reply with NEWCODECS if it understands them
+				String newCodecs = Codecs.getNewCodecList();
+				if (newCodecs.length() > 0)
+					monitor.sendMessage("monitor newcodecs " + newCodecs);
+				// offer to send several audio blocks per message, servald
+				// will reply with AUDIOBATCH if it understands AUDIOS
+				monitor.sendMessage("monitor audiobatch "
+						+ VoMP.MAX_AUDIO_BATCH);
+				monitor.sendMessage("monitor rhizome");
+				monitor.sendMessage("monitor peers");
 				// make sure we refresh the peer count after
 				// reconnecting to the monitor
-
-				if (instance != null) {
-					instance.peerCount = PeerListService.peerCount(instance);
-					instance.handler
-							.post(instance.notification);
-				}
+				monitor.runInBackground(refreshPeerCount, refreshPeerCount);
 			} catch (IOException e) {
 				throw new IllegalStateException(e);
 			}
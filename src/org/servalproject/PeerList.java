@@ -22,6 +22,7 @@ package org.servalproject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -31,12 +32,12 @@ import org.servalproject.servald.IPeerListListener;
 import org.servalproject.servald.Peer;
 import org.servalproject.servald.PeerComparator;
 import org.servalproject.servald.PeerListService;
+import org.servalproject.servald.ServalDClient;
 import org.servalproject.servald.SubscriberId;
 
 import android.app.Activity;
 import android.app.ListActivity;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
@@ -171,7 +172,7 @@ public class PeerList extends ListActivity {
 	ConcurrentMap<SubscriberId, Peer> unresolved = new ConcurrentHashMap<SubscriberId, Peer>();
 	private Handler handler;
 
-	private boolean searching = false;
+	private volatile boolean searching = false;
 
 	private Runnable refresh = new Runnable() {
 		@Override
@@ -181,23 +182,28 @@ public class PeerList extends ListActivity {
 				return;
 			searching = true;
 
-			new AsyncTask<Void, Peer, Void>() {
-				@Override
-				protected void onPostExecute(Void result) {
-					searching = false;
-				}
-
-				@Override
-				protected Void doInBackground(Void... params) {
-
-					for (Peer p : unresolved.values()) {
-						PeerListService.resolve(p);
-						unresolved.remove(p.sid);
-					}
-
-					return null;
-				}
-			}.execute();
+			ServalDClient.getInstance().submit("resolve peers", 0,
+					new Callable<Void>() {
+						@Override
+						public Void call() {
+							for (Peer p : unresolved.values()) {
+								PeerListService.resolve(p);
+								unresolved.remove(p.sid);
+							}
+							return null;
+						}
+					}, new ServalDClient.Callback<Void>() {
+						@Override
+						public void result(Void result) {
+							searching = false;
+						}
+
+						@Override
+						public void failed(Throwable e) {
+							Log.e(TAG, e.getMessage(), e);
+							searching = false;
+						}
+					});
 		}
 	};
 
@@ -39,6 +39,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.servalproject.ServalBatPhoneApplication.State;
+import org.servalproject.audio.Oslec;
+import org.servalproject.batphone.CallHandler;
+import org.servalproject.servald.ServalDMonitor;
 import org.servalproject.system.Chipset;
 import org.servalproject.system.ChipsetDetection;
 import org.servalproject.system.WiFiRadio;
@@ -61,6 +64,7 @@ import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceGroup;
 import android.provider.Settings;
@@ -184,6 +188,41 @@ public class SetupActivity extends PreferenceActivity implements
 
 		this.wifiMode = (ListPreference) findPreference("wifi_mode");
 		setAvailableWifiModes();
+
+		final Preference benchmark = findPreference("echo_benchmark");
+		benchmark.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			@Override
+			public boolean onPreferenceClick(Preference preference) {
+				if (application.callHandler != null) {
+					application.displayToastMessage("Not during a call");
+					return true;
+				}
+				benchmark.setEnabled(false);
+				benchmark.setSummary("Running...");
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						String result;
+						try {
+							result = Oslec.benchmark(500);
+						} catch (Throwable e) {
+							// including a missing native library
+							Log.e("SetupActivity", "Echo benchmark failed", e);
+							result = e.toString();
+						}
+						final String summary = result;
+						SetupActivity.this.runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								benchmark.setSummary(summary);
+								benchmark.setEnabled(true);
+							}
+						});
+					}
+				}, "EchoBenchmark").start();
+				return true;
+			}
+		});
 	}
 
 	private void setFlightModeCheckBoxes(String name, String airplaneToggleable) {
@@ -338,6 +377,18 @@ public class SetupActivity extends PreferenceActivity implements
 				} else if (key.equals("instrumentpref")) {
 					Instrumentation.setEnabled(sharedPreferences.getBoolean(
 							"instrumentpref", false));
+				} else if (key.equals("monitor_record")) {
+					// starts with the next connection to servald
+					ServalDMonitor monitor = application.servaldMonitor;
+					if (monitor != null)
+						monitor.setRecordFile(Control
+								.monitorRecordFile(application));
+				} else if (key.equals("redundant_audio")) {
+					// and from the start of every later call
+					CallHandler call = application.callHandler;
+					if (call != null)
+						call.setRedundancy(sharedPreferences.getBoolean(
+								"redundant_audio", false));
 				} else if (key.equals("instrument_rec")) {
 					try {
 						dialogHandler.sendEmptyMessage(ID_DIALOG_RESTARTING);
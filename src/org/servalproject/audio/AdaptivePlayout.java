@@ -0,0 +1,181 @@
+package org.servalproject.audio;
+
+// Aims to queue just enough audio to cover the variation in packet transit
+// times that we have measured.
+//
+// Each frame's transit time is its arrival time minus its timestamp. The
+// two clocks aren't synchronised, so only differences matter. We track;
+// - the interarrival jitter, as described in RFC 3550 section 6.4.1
+// - how much later than the fastest recent frame each frame arrives
+// and aim to queue one frame, plus the average lateness, plus a multiple
+// of the jitter.
+//
+// A sudden large increase in transit time (eg a route change over several
+// hops) is treated as a delay spike. While it lasts, the target follows the
+// spike directly, and the frames that arrive in a burst afterwards are not
+// allowed to inflate our long term estimates.
+public class AdaptivePlayout implements PlayoutPolicy {
+	// target before we have measured anything
+	static final int INITIAL_DELAY = 60;
+	static final int MIN_DELAY = 20;
+	static final int MAX_DELAY = 1000;
+	// how many multiples of the jitter to allow for
+	static final int JITTER_MULTIPLE = 3;
+	// smallest jump in lateness treated as a spike
+	static final int SPIKE_MIN = 60;
+	// a spike is over once the change in slope falls below this
+	static final int SPIKE_END = 8;
+	// frames per baseline window, ~10s at 20ms per frame
+	static final int BASELINE_WINDOW = 500;
+	// how fast to converge on the target, in percent
+	static final int STRETCH_RATE = 5;
+	// drop whole frames if we are this far (ms) over the target
+	static final int DROP_EXCESS = 200;
+
+	// written by the monitor thread
+	private boolean started;
+	private long lastTransit;
+	// RFC 3550 jitter, scaled by 16
+	private int jitter;
+	// average lateness compared to the baseline, scaled by 32
+	private int lateness;
+	// smallest transit time we have seen recently
+	private long baseline;
+	private long windowMin;
+	private int windowCount;
+	private volatile boolean spike;
+	private int spikeVariation;
+	private int lastLate;
+	private int previousLate;
+	private int frameMs = 20;
+	private volatile int targetDelay = INITIAL_DELAY;
+	private volatile int spikes;
+
+	// only used by the playback thread
+	private final QueueWindow window = new QueueWindow();
+
+	@Override
+	public synchronized void arrived(int sampleStart, int sampleEnd,
+			long nanos) {
+		long transit = nanos / 1000000 - sampleStart;
+		frameMs = sampleEnd + 1 - sampleStart;
+
+		if (!started) {
+			started = true;
+			lastTransit = transit;
+			baseline = transit;
+			windowMin = transit;
+			windowCount = 0;
+			return;
+		}
+
+		// let the baseline move up slowly, in case one clock is running
+		// faster than the other
+		if (transit < windowMin)
+			windowMin = transit;
+		if (++windowCount >= BASELINE_WINDOW) {
+			if (windowMin > baseline) {
+				lateness -= (int) (windowMin - baseline) << 5;
+				if (lateness < 0)
+					lateness = 0;
+			}
+			baseline = windowMin;
+			windowMin = transit;
+			windowCount = 0;
+		}
+		if (transit < baseline) {
+			// this frame was faster than any before it
+			lateness -= (int) (baseline - transit) << 5;
+			if (lateness < 0)
+				lateness = 0;
+			baseline = transit;
+		}
+
+		int late = (int) (transit - baseline);
+		int d = (int) (transit - lastTransit);
+		if (d < 0)
+			d = -d;
+		lastTransit = transit;
+
+		if (!spike) {
+			if (late - lastLate > 2 * (jitter >> 4) + SPIKE_MIN) {
+				spike = true;
+				spikeVariation = late - lastLate;
+				spikes++;
+			} else {
+				jitter += d - ((jitter + 8) >> 4);
+				lateness += late - ((lateness + 16) >> 5);
+			}
+		} else {
+			// the slope of the lateness, should flatten out once the
+			// frames delayed by the spike have all arrived
+			int slope = 2 * late - lastLate - previousLate;
+			if (slope < 0)
+				slope = -slope;
+			spikeVariation = spikeVariation / 2 + slope / 8;
+			if (spikeVariation <= SPIKE_END)
+				spike = false;
+		}
+		previousLate = lastLate;
+		lastLate = late;
+
+		int target = frameMs + (lateness >> 5) + JITTER_MULTIPLE
+				* (jitter >> 4);
+		if (spike && frameMs + late > target)
+			target = frameMs + late;
+		if (target < MIN_DELAY)
+			target = MIN_DELAY;
+		if (target > MAX_DELAY)
+			target = MAX_DELAY;
+		targetDelay = target;
+	}
+
+	@Override
+	public int getTargetDelay() {
+		return targetDelay;
+	}
+
+	@Override
+	public int getRate(int queuedMs, int frameMs) {
+		int smallest = window.add(queuedMs);
+		int target = targetDelay;
+
+		// converge on the target from either side, the queue level moves in
+		// frame sized steps so leave a frame either way before we react
+		if (queuedMs < target - frameMs)
+			return -STRETCH_RATE;
+		if (spike || queuedMs <= target + frameMs)
+			return 0;
+
+		// only drop whole frames when the queue has stayed well above the
+		// target for a while
+		if (smallest - frameMs - target >= DROP_EXCESS) {
+			window.dropped(frameMs);
+			return DROP_FRAME;
+		}
+		return STRETCH_RATE;
+	}
+
+	// RFC 3550 interarrival jitter in ms
+	public int getJitter() {
+		return jitter >> 4;
+	}
+
+	public int getSpikeCount() {
+		return spikes;
+	}
+
+	@Override
+	public synchronized void reset() {
+		started = false;
+		jitter = 0;
+		lateness = 0;
+		spike = false;
+		spikeVariation = 0;
+		lastLate = 0;
+		previousLate = 0;
+		targetDelay = INITIAL_DELAY;
+		spikes = 0;
+		window.reset();
+	}
+}
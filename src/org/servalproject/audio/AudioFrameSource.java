@@ -0,0 +1,317 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.servalproject.batphone.VoMP;
+
+import uk.co.mmscomputing.sound.G711;
+import android.media.AudioRecord;
+import android.os.SystemClock;
+
+// Reads from the microphone, one whole encoded frame at a time.
+// PCM is read into a frame buffer that is only reallocated when the frame
+// length changes, and raw PCM is read straight into the caller's buffer.
+// Only the recording thread should use this class.
+class AudioFrameSource {
+	private final AudioRecord audioRecorder;
+	private final Oslec echoCanceller;
+	private long lastReadTime;
+	private long burstOffset;
+	private long bytesRead;
+	private int buffSize = 2048;
+
+	private VoMP.Codec codec;
+	private G711 g711;
+	private CodecEngine codecEngine;
+	// one frame of PCM, 20ms until we know the codec
+	private byte pcmFrame[] = new byte[VoMP.Codec.Pcm.blockSize];
+	// when echo cancelling, whole frames are recorded into here and
+	// processed in place
+	private final ByteBuffer directFrame;
+	// decides which frames are worth sending, if set
+	private VoiceActivityDetector detector;
+
+	// a second copy of each frame, usually at a lower bit rate
+	private VoMP.Codec redundantCodec;
+	private G711 redundantG711;
+	private CodecEngine redundantEngine;
+	// where read() left the pcm and encoded audio of the last frame
+	private byte lastPcm[];
+	private int lastPcmOffset;
+	private byte lastOut[];
+	private int lastOutOffset;
+	private int lastOutLen;
+
+	AudioFrameSource(Oslec echoCanceller, int audioSource,
+			int sampleRateInHz, int channelConfig, int audioFormat,
+			int minimumBufferSize) throws IOException {
+
+		int bufferSize = AudioRecord.getMinBufferSize(sampleRateInHz,
+				channelConfig, audioFormat);
+
+		// ensure minimum record buffer
+		if (bufferSize < minimumBufferSize)
+			bufferSize = minimumBufferSize;
+
+		AudioRecord recorder = new AudioRecord(audioSource,
+				sampleRateInHz, channelConfig, audioFormat, bufferSize);
+
+		if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+			recorder.release();
+			throw new IOException("Audio preparation failed");
+		}
+
+		recorder.startRecording();
+		this.audioRecorder = recorder;
+		this.echoCanceller = echoCanceller;
+		this.directFrame = echoCanceller == null ? null : Oslec
+				.allocate(Oslec.MAX_FRAME);
+	}
+
+	void setCodec(VoMP.Codec codec) throws IOException {
+		closeEngine();
+		g711 = null;
+
+		switch (codec) {
+		case Pcm:
+			break;
+		case Alaw8:
+			g711 = G711.ALAW;
+			break;
+		case Ulaw8:
+			g711 = G711.ULAW;
+			break;
+		default:
+			codecEngine = Codecs.open(codec);
+			if (codecEngine == null)
+				throw new IOException(codec + " is not yet supported");
+			break;
+		}
+
+		// 8 samples per ms, 2 bytes each
+		int frameBytes = codec.timespan * 8 * 2;
+		if (echoCanceller != null && frameBytes > Oslec.MAX_FRAME)
+			throw new IOException(codec + " frames are too long");
+		if (pcmFrame.length != frameBytes)
+			pcmFrame = new byte[frameBytes];
+		this.codec = codec;
+	}
+
+	VoMP.Codec getCodec() {
+		return codec;
+	}
+
+	// look for speech in every frame we read
+	void detectSpeech(boolean detect) {
+		if (!detect)
+			detector = null;
+		else if (detector == null)
+			detector = new VoiceActivityDetector();
+	}
+
+	// did the last frame we read contain speech? Always true unless we are
+	// detecting speech
+	boolean isSpeech() {
+		return detector == null || detector.isSpeech();
+	}
+
+	// the background noise level in -dBov, while we aren't hearing speech
+	int getNoiseLevel() {
+		return detector == null ? VoiceActivityDetector.MAX_LEVEL : detector
+				.getNoiseLevel();
+	}
+
+	// encode a copy of each frame in this codec too, or stop if null
+	void setRedundantCodec(VoMP.Codec codec) throws IOException {
+		closeRedundant();
+		redundantCodec = codec;
+		if (codec == null)
+			return;
+		switch (codec) {
+		case Alaw8:
+			redundantG711 = G711.ALAW;
+			break;
+		case Ulaw8:
+			redundantG711 = G711.ULAW;
+			break;
+		default:
+			// the same codec as the frame can be copied, otherwise we need
+			// another encoder
+			redundantEngine = Codecs.open(codec);
+			if (redundantEngine == null && codec != this.codec)
+				throw new IOException(codec
+						+ " is not supported for redundant audio");
+		}
+	}
+
+	VoMP.Codec getRedundantCodec() {
+		return redundantCodec;
+	}
+
+	/**
+	 * Encode the last frame we read in the redundant codec, into out[]
+	 * which must have room for redundantCodec.blockSize bytes.
+	 *
+	 * @return the encoded length
+	 */
+	int encodeRedundant(byte out[], int offset) throws IOException {
+		if (lastOut == null || redundantCodec == null)
+			return 0;
+		if (redundantCodec == codec) {
+			System.arraycopy(lastOut, lastOutOffset, out, offset, lastOutLen);
+			return lastOutLen;
+		}
+		int length = pcmFrame.length;
+		if (redundantG711 != null) {
+			redundantG711.encode(lastPcm, lastPcmOffset, out, offset,
+					length >> 1);
+			return length >> 1;
+		}
+		if (redundantEngine == null)
+			throw new IOException(redundantCodec
+					+ " is not supported for redundant audio");
+		return redundantEngine.encode(lastPcm, lastPcmOffset, length, out,
+				offset);
+	}
+
+	/**
+	 * Record and encode exactly one frame into out[], which must have room
+	 * for codec.blockSize bytes.
+	 *
+	 * @return the encoded length
+	 */
+	int read(byte out[], int offset) throws IOException {
+		if (codec == null)
+			throw new IOException("No codec has been set");
+
+		if (codec == VoMP.Codec.Pcm) {
+			readPcm(out, offset, pcmFrame.length);
+			if (detector != null)
+				detector.process(out, offset, pcmFrame.length);
+			return encoded(out, offset, out, offset, pcmFrame.length);
+		}
+
+		readPcm(pcmFrame, 0, pcmFrame.length);
+		if (detector != null)
+			detector.process(pcmFrame, 0, pcmFrame.length);
+		// we encode silence too, so codecs that predict the next frame
+		// from the last stay in step
+		int len;
+		if (g711 != null) {
+			len = pcmFrame.length >> 1;
+			g711.encode(pcmFrame, 0, out, offset, len);
+		} else {
+			len = codecEngine.encode(pcmFrame, 0, pcmFrame.length, out,
+					offset);
+		}
+		return encoded(pcmFrame, 0, out, offset, len);
+	}
+
+	// remember where the last frame is, for encodeRedundant()
+	private int encoded(byte pcm[], int pcmOffset, byte out[], int offset,
+			int len) {
+		lastPcm = pcm;
+		lastPcmOffset = pcmOffset;
+		lastOut = out;
+		lastOutOffset = offset;
+		lastOutLen = len;
+		return len;
+	}
+
+	// record one frame and throw it away
+	void skip() throws IOException {
+		readPcm(pcmFrame, 0, pcmFrame.length);
+	}
+
+	private void bytesRead(int read) {
+		long now = SystemClock.elapsedRealtime();
+		if (lastReadTime > 0) {
+			long dt = now - lastReadTime;
+			if (dt > 30) {
+				// assume that any read that takes >=30ms represents a hardware
+				// buffer flush.
+				// lets try to work out how big that buffer is so we can
+				// estimate the record latency
+				buffSize = (int) (bytesRead - burstOffset);
+
+				burstOffset = bytesRead;
+			}
+
+		}
+
+		bytesRead += read;
+		lastReadTime = now;
+	}
+
+	// keep reading until we have all the audio we asked for
+	private void readPcm(byte buffer[], int offset, int length)
+			throws IOException {
+		if (echoCanceller != null) {
+			readCancelled(buffer, offset, length);
+			return;
+		}
+
+		int read = 0;
+		while (read < length) {
+			int ret = audioRecorder.read(buffer, offset + read, length - read);
+			if (ret < 0)
+				throw new IOException("Failed to read audio (" + ret + ")");
+			bytesRead(ret);
+			read += ret;
+		}
+	}
+
+	// read a whole frame into our direct buffer, cancel any echo in one
+	// pass, then copy it out
+	private void readCancelled(byte buffer[], int offset, int length)
+			throws IOException {
+		directFrame.clear();
+		int read = 0;
+		while (read < length) {
+			// AudioRecord always writes to the start of the buffer
+			ByteBuffer dest = directFrame;
+			if (read > 0) {
+				directFrame.position(read);
+				dest = directFrame.slice();
+			}
+			int ret = audioRecorder.read(dest, length - read);
+			if (ret < 0)
+				throw new IOException("Failed to read audio (" + ret + ")");
+			bytesRead(ret);
+			read += ret;
+		}
+
+		// calculate the lag we know about, based on our current position
+		// reading this burst.
+		int posInBurst = (int) (bytesRead - length - burstOffset);
+		int lagInMs = (buffSize - posInBurst) / 16;
+		echoCanceller.rxAudio(directFrame, 0, length, lagInMs);
+
+		directFrame.clear();
+		directFrame.get(buffer, offset, length);
+	}
+
+	private void closeEngine() {
+		if (codecEngine != null) {
+			codecEngine.close();
+			codecEngine = null;
+		}
+	}
+
+	private void closeRedundant() {
+		if (redundantEngine != null) {
+			redundantEngine.close();
+			redundantEngine = null;
+		}
+		redundantG711 = null;
+		redundantCodec = null;
+	}
+
+	void close() {
+		closeEngine();
+		closeRedundant();
+		audioRecorder.stop();
+		audioRecorder.release();
+	}
+}
@@ -6,7 +6,7 @@ import java.io.OutputStream;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
 
-public class AudioOutputStream extends OutputStream {
+public class AudioOutputStream extends OutputStream implements AudioSink {
 	private final AudioTrack audioTrack;
 	private int writtenFrames = 0;
 	private final int frameSize;
@@ -76,10 +76,20 @@ public class AudioOutputStream extends OutputStream {
 	public int writtenAudio() {
 		return this.writtenFrames;
 	}
+
+	@Override
 	public int unplayedFrameCount() {
 		return this.writtenFrames - this.audioTrack.getPlaybackHeadPosition();
 	}
 
+	@Override
+	public long playbackPosition() {
+		if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
+			return -1;
+		// the head position is an unsigned 32bit counter
+		return audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+	}
+
 	public void writeSilence(int timeInFrames) throws IOException {
 		int silenceDataLength = timeInFrames * frameSize;
 		while (silenceDataLength > 0) {
@@ -105,20 +115,11 @@ public class AudioOutputStream extends OutputStream {
 
 	@Override
 	public void write(byte[] buffer, int offset, int count) throws IOException {
-		int written = 0;
-
-		while (written < count) {
-			int blockSize = count - written;
-			if (blockSize > Oslec.BLOCK_SIZE)
-				blockSize = Oslec.BLOCK_SIZE;
-
-			if (echoCanceller != null) {
-				echoCanceller.txAudio(
-						buffer, offset + written, blockSize);
-			}
-			writeAll(buffer, offset + written, blockSize);
-			written += blockSize;
+		if (echoCanceller != null) {
+			// stamped with the samples that will play before this buffer
+			echoCanceller.txAudio(buffer, offset, count, unplayedFrameCount());
 		}
+		writeAll(buffer, offset, count);
 	}
 
 	@Override
@@ -1,16 +1,10 @@
 package org.servalproject.audio;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Stack;
 
 import org.servalproject.batphone.VoMP;
 
-import uk.co.mmscomputing.sound.DecompressOutputStream;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioManager;
@@ -20,9 +14,9 @@ import android.util.Log;
 public class AudioPlayer implements Runnable {
 	static final String TAG = "AudioPlayer";
 
-	static final int MIN_BUFFER = 20000000;
-	static final int SAMPLE_RATE = 8000;
-	static final int MIN_QUEUE_LEN = 200;
+	static final int SAMPLE_RATE = PlayoutEngine.SAMPLE_RATE;
+	// how often to log our progress
+	static final long LOG_INTERVAL = 5000000000L;
 
 	boolean playing = false;
 
@@ -31,149 +25,82 @@ public class AudioPlayer implements Runnable {
 	private AudioManager am;
 	private AudioOutputStream audioOutput;
 	public final Oslec echoCanceler;
-	private OutputStream codecOutput;
-	private VoMP.Codec codec;
+	// decides what to play, created when audio is prepared
+	private volatile PlayoutEngine engine;
+	// concealment counters, kept after playback stops
+	private long concealedMs;
+	private int concealments;
+	private long playedMs;
+	private volatile VoMP.Codec receivedCodec;
+	public final CallStats stats = new CallStats();
 
 	private int oldAudioMode;
-	private int playbackLatency;
-	private int lastSampleEnd;
 	Thread playbackThread;
 
-	// Add packets (primarily) to the the start of the list, play them from the
-	// end
-	// assuming that packet re-ordering is rare we shouldn't have to traverse
-	// the list very much to add a packet.
-	LinkedList<AudioBuffer> playList = new LinkedList<AudioBuffer>();
-	Stack<AudioBuffer> reuseList = new Stack<AudioBuffer>();
+	private volatile PlayoutPolicy playout = new AdaptivePlayout();
 
-	int lastQueuedSampleEnd = 0;
+	public AudioPlayer(Oslec echoCanceler, Context context) {
+		this.context = context;
+		this.echoCanceler = echoCanceler;
+	}
 
-	class AudioBuffer implements Comparable<AudioBuffer> {
-		final byte buff[];
-		int dataLen;
-		int sampleStart;
-		int sampleEnd;
+	// must be called before audio is prepared
+	public void setPlayoutPolicy(PlayoutPolicy playout) {
+		this.playout = playout;
+	}
 
-		public AudioBuffer(int buffSize) {
-			this.buff = new byte[buffSize];
-		}
+	public PlayoutPolicy getPlayoutPolicy() {
+		return playout;
+	}
 
-		@Override
-		public int compareTo(AudioBuffer arg0) {
-			if (0 < arg0.sampleStart - this.sampleStart)
-				return -1;
-			else if (this.sampleStart == arg0.sampleStart)
-				return 0;
-			return 1;
-		}
+	// audio made up to cover lost or late packets during this call
+	public synchronized long getConcealedMs() {
+		return engine == null ? concealedMs : engine.concealOutput
+				.getConcealedMs();
 	}
 
-	public AudioPlayer(Oslec echoCanceler, Context context) {
-		this.context = context;
-		this.echoCanceler = echoCanceler;
+	public synchronized int getConcealments() {
+		return engine == null ? concealments : engine.concealOutput
+				.getConcealments();
+	}
+
+	// audio we have played from received frames during this call
+	public synchronized long getPlayedMs() {
+		return engine == null ? playedMs : engine.getPlayedMs();
+	}
+
+	// the codec of the last frame we received
+	public VoMP.Codec getReceivedCodec() {
+		return receivedCodec;
 	}
 
 	public int receivedAudio(int local_session, int start_time,
 			int end_time, VoMP.Codec codec, InputStream in, int byteCount)
 			throws IOException {
 
-		int ret = 0;
-
-		if (!playing) {
+		PlayoutEngine engine = this.engine;
+		if (!playing || engine == null) {
 			// Log.v(TAG,
 			// "Dropping audio as we are not currently playing");
 			return 0;
 		}
 
-		if (this.codec == null) {
-			// TODO move into run method and only choose a codec on playback
-			switch (codec) {
-			case Pcm:
-				this.codecOutput = this.audioOutput;
-				break;
-			case Alaw8:
-				this.codecOutput = new DecompressOutputStream(
-						this.audioOutput,
-						true);
-				break;
-			case Ulaw8:
-				this.codecOutput = new DecompressOutputStream(
-						this.audioOutput,
-						false);
-				break;
-			default:
-				// ignore unsupported codecs
-				return 0;
-			}
-			this.codec = codec;
-
-			for (int i = 0; i <= 50; i++)
-				reuseList.push(new AudioBuffer(codec.blockSize));
-
-		} else if (codec != this.codec)
-			throw new IOException("Changing codecs mid call is not supported");
-
-		if (end_time == lastQueuedSampleEnd || end_time <= lastSampleEnd) {
-			// Log.v(TAG, "Ignoring buffer");
+		// ignore unsupported codecs
+		if (!Codecs.isSupported(codec))
 			return 0;
-		}
 
-		if (byteCount > this.codec.blockSize)
-			throw new IOException("Incoming buffer is too long for codec");
-
-		AudioBuffer buff;
-		if (reuseList.size() > 0)
-			buff = reuseList.pop();
-		else
-			buff = new AudioBuffer(this.codec.blockSize);
-
-		{
-			int read = 0;
-			while (read < byteCount) {
-				int actualRead = in.read(buff.buff, read, byteCount - read);
-				if (ret < 0)
-					throw new EOFException();
-				read += actualRead;
-			}
+		// comfort noise comes and goes with silence, don't report it
+		if (codec != receivedCodec && codec != VoMP.Codec.ComfortNoise) {
+			Log.v(TAG, "Receiving " + codec);
+			receivedCodec = codec;
 		}
 
-		ret = byteCount;
-		buff.dataLen = byteCount;
-		buff.sampleStart = start_time;
-		buff.sampleEnd = end_time;
-
-		synchronized (playList) {
-			if (playList.isEmpty()
-					|| buff.compareTo(playList.getFirst()) < 0) {
-
-				// add this buffer to play *now*
-				if (playList.isEmpty())
-					lastQueuedSampleEnd = end_time;
-
-				playList.addFirst(buff);
-				if (playbackThread != null)
-					playbackThread.interrupt();
-			} else if (buff.compareTo(playList.getLast()) > 0) {
-				// yay, packets arrived in order
-				lastQueuedSampleEnd = end_time;
-				playList.addLast(buff);
-			} else {
-				// find where to insert this item
-				ListIterator<AudioBuffer> i = playList.listIterator();
-				while (i.hasNext()) {
-					AudioBuffer compare = i.next();
-					switch (buff.compareTo(compare)) {
-					case -1:
-						i.previous();
-						i.add(buff);
-						return ret;
-					case 0:
-						reuseList.push(buff);
-						return ret;
-					}
-				}
-				reuseList.push(buff);
-			}
+		boolean wasEmpty = engine.isEmpty();
+		int ret = engine.receivedAudio(start_time, end_time, codec, in,
+				byteCount, System.nanoTime());
+		if (wasEmpty && !engine.isEmpty() && playbackThread != null) {
+			// play this buffer *now*
+			playbackThread.interrupt();
 		}
 		return ret;
 	}
@@ -208,7 +135,7 @@ public class AudioPlayer implements Runnable {
 		am = (AudioManager) context
 				.getSystemService(Context.AUDIO_SERVICE);
 
-		codecOutput = audioOutput;
+		engine = new PlayoutEngine(audioOutput, audioOutput, playout, stats);
 	}
 
 	public synchronized void cleanup() {
@@ -216,16 +143,17 @@ public class AudioPlayer implements Runnable {
 			return;
 
 		try {
-			codecOutput.close();
+			engine.close();
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage(), e);
 		}
-		playList.clear();
-		reuseList.clear();
 		if (echoCanceler != null)
 			echoCanceler.enabled(false);
 		audioOutput = null;
-		codecOutput = null;
+		concealedMs = engine.concealOutput.getConcealedMs();
+		concealments = engine.concealOutput.getConcealments();
+		playedMs = engine.getPlayedMs();
+		engine = null;
 		am = null;
 	}
 
@@ -242,159 +170,40 @@ public class AudioPlayer implements Runnable {
 		am.setSpeakerphoneOn(false);
 		audioOutput.play();
 
-		lastSampleEnd = 0;
-		StringBuilder sb = new StringBuilder();
-
-		int smallestQueue = 0;
-		int largestQueue = 0;
-
-		// wait for an initial buffer of audio before playback starts
-		int waitForBuffer = 120;
+		PlayoutEngine engine = this.engine;
+		long lastLog = System.nanoTime();
 
 		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 
 		while (playing) {
 			try {
-				if (sb.length() >= 128) {
+				long now = System.nanoTime();
+				if (now - lastLog >= LOG_INTERVAL) {
 					Log.v(TAG,
 							"wr; " + this.audioOutput.writtenAudio()
 									+ ", upl; "
 									+ this.audioOutput.unplayedFrameCount()
-									+ ", sh; " + smallestQueue
-									+ ", lrg; " + largestQueue
-									+ ", " + sb.toString());
-					sb.setLength(0);
-				}
-
-				AudioBuffer buff = null;
-				long now = 0;
-				int generateSilence = 0;
-				long audioRunsOutAt;
-
-				synchronized (playList) {
-
-					now = System.nanoTime();
-					playbackLatency = this.audioOutput.unplayedFrameCount();
-
-					// work out when we must make a decision about playing some
-					// extra silence
-					audioRunsOutAt = now
-							- MIN_BUFFER
-							+ (long) (playbackLatency * 1000000.0 / SAMPLE_RATE);
-
-					// calculate an absolute maximum delay based on our maximum
-					// extra latency
-					int queuedLengthInMs = lastQueuedSampleEnd - lastSampleEnd;
-					if (queuedLengthInMs < smallestQueue)
-						smallestQueue = queuedLengthInMs;
-
-					if (queuedLengthInMs > largestQueue)
-						largestQueue = queuedLengthInMs;
-
-					if (queuedLengthInMs < waitForBuffer) {
-						// After a buffer underflow, wait until we have some
-						// more
-						// buffer before restarting playback
-					} else {
-						waitForBuffer = -1;
-						if (!playList.isEmpty())
-							buff = playList.getFirst();
-					}
-
-					if (buff != null) {
-						int silenceGap = buff.sampleStart - (lastSampleEnd + 1);
-
-						if (silenceGap > 0) {
-
-							// try to wait until the last possible moment before
-							// giving up and playing the buffer we have
-							if (audioRunsOutAt <= now) {
-								sb.append("M");
-								generateSilence = silenceGap;
-								lastSampleEnd = buff.sampleStart - 1;
-							}
-							buff = null;
-						} else {
-							// we either need to play it or skip it, so remove
-							// it
-							// from the queue
-							playList.removeFirst();
-
-							if (silenceGap < 0) {
-								// sample arrived too late, we might get better
-								// audio if we add a little extra latency
-								reuseList.push(buff);
-								sb.append("L");
-								continue;
-							}
-
-							if (smallestQueue > MIN_QUEUE_LEN) {
-								// if we don't need the buffer, drop some audio
-								// but count it as played so we
-								// don't immediately play silence or try to wait
-								// for
-								// this "missing" audio packet to arrive
-
-								// TODO shrink each buffer instead of dropping a
-								// whole one?
-
-								sb.append("F");
-								smallestQueue -= (buff.sampleEnd + 1 - buff.sampleStart);
-								lastSampleEnd = buff.sampleEnd;
-								reuseList.push(buff);
-								continue;
-							}
-						}
-					} else {
-						// this thread can sleep for a while to wait for more
-						// audio
-
-						// But if we've got nothing else to play, we should play
-						// some silence to increase our latency buffer
-						if (audioRunsOutAt <= now) {
-
-							// write silence until we have 60ms of audio
-							// buffered?
-							waitForBuffer = 60;
-							sb.append("X");
-							generateSilence = 20;
-						}
-
-					}
-				}
-
-				if (generateSilence > 0) {
-					// write some audio silence, then check the packet queue
-					// again
-					// (8 samples per millisecond)
-					this.audioOutput.writeSilence(generateSilence * 8);
-					smallestQueue += 2;
-					largestQueue -= 5;
-					sb.append("{" + generateSilence + "}");
-					continue;
+									+ ", sh; " + engine.getSmallestQueue()
+									+ ", lrg; " + engine.getLargestQueue()
+									+ ", tgt; " + engine.getTargetDelay()
+									+ ", str; -"
+									+ engine.stretchOutput.getRemovedSamples()
+									+ "/+"
+									+ engine.stretchOutput.getAddedSamples()
+									+ ", drf; " + engine.getDriftPpm()
+									+ ", " + stats);
+					lastLog = now;
+					engine.resetQueueRange();
 				}
 
-				if (buff != null) {
-					// write the audio sample, then check the packet queue again
-					lastSampleEnd = buff.sampleEnd;
-					this.codecOutput.write(buff.buff, 0, buff.dataLen);
-					smallestQueue += 2;
-					largestQueue -= 5;
-					sb.append(".");
-					synchronized (playList) {
-						reuseList.push(buff);
-					}
-					continue;
-				}
+				long waitFor = engine.play(now);
 
-				// check the clock again, then wait only until our audio buffer
-				// is
-				// getting close to empty
-				now = System.nanoTime();
-				long waitFor = audioRunsOutAt - now;
+				// check the clock again, then wait only until our audio
+				// buffer is getting close to empty
+				if (waitFor > 0)
+					waitFor -= System.nanoTime() - now;
 				if (waitFor <= 0)
 					continue;
-				sb.append(" ");
 				long waitMs = waitFor / 1000000;
 				int waitNs = (int) (waitFor - waitMs * 1000000);
 
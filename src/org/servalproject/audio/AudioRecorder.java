@@ -1,12 +1,10 @@
 package org.servalproject.audio;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import org.servalproject.batphone.VoMP;
 import org.servalproject.servald.ServalDMonitor;
 
-import uk.co.mmscomputing.sound.CompressInputStream;
 import android.media.AudioFormat;
 import android.media.MediaRecorder;
 import android.os.Process;
@@ -14,22 +12,54 @@ import android.util.Log;
 
 public class AudioRecorder implements Runnable {
 	private static final String TAG = "AudioRecorder";
+	// the largest copy of a frame a redundant frame can carry
+	public static final int MAX_REDUNDANT = 255;
 
 	private boolean stopMe = false;
 	private final String call_session_token;
 	private Thread audioThread;
 	private ServalDMonitor monitor;
 
-	private InputStream audioInput;
+	private AudioFrameSource audioSource;
 	private Oslec echoCanceler;
-	private InputStream codecInput;
-	private VoMP.Codec codec = null;
+	// only changed by the recording thread
+	private volatile VoMP.Codec codec = null;
+	// codec to switch to, once the current block has been sent
+	private volatile VoMP.Codec nextCodec = null;
 
 	private boolean discard = false;
+	// send comfort noise descriptors instead of silence
+	private volatile boolean suppressSilence = false;
+	// codec for a copy of each frame, sent with the next frame
+	private volatile VoMP.Codec redundantCodec = null;
+	private volatile boolean redundancyChanged = false;
+	// only used by the recording thread
+	private VoMP.Codec redundancy = null;
+	private final byte previous[] = new byte[MAX_REDUNDANT];
+	private int previousLen;
+
+	// when servald accepts AUDIOS messages, consecutive blocks are sent
+	// together as;
+	// *len:AUDIOS <token> <codec> <count>\n
+	// followed by <count> 16 bit big endian block lengths, then the blocks
+	private int batchFrames = 1;
+	private String batchFramesString;
+	private int indexLength = 0;
+	private int frameCount = 0;
+	// when each frame in the current block was captured
+	private long captured[];
+	// does the current block contain any speech? If not, we send the noise
+	// level of each frame instead
+	private boolean blockSpeech;
+	private byte noiseLevels[];
+	private byte noiseBlock[];
+	private final CallStats stats;
+	private int frameStart = 0;
 
 	public AudioRecorder(Oslec echoCanceler, String token,
-			ServalDMonitor monitor) {
+			ServalDMonitor monitor, CallStats stats) {
 		call_session_token = token;
+		this.stats = stats;
 		this.monitor = monitor;
 		this.echoCanceler = echoCanceler;
 	}
@@ -38,30 +68,83 @@ public class AudioRecorder implements Runnable {
 			throws IOException {
 		Log.v(TAG, "Start recording " + codec);
 
-		if (this.codec != null)
+		if (this.codec != null || nextCodec != null)
 			throw new IOException("Recording already started");
 
 		if (audioThread == null)
 			throw new IOException("Audio recording has not been prepared");
 
-		switch (codec) {
-		case Pcm:
-			codecInput = audioInput;
-			break;
-		case Alaw8:
-			codecInput = new CompressInputStream(audioInput, true);
-			break;
-		case Ulaw8:
-			codecInput = new CompressInputStream(audioInput, false);
-			break;
-		default:
+		if (!Codecs.canRecord(codec))
 			throw new IOException(codec + " is not yet supported");
-		}
 
-		this.codec = codec;
+		// the recording thread will pick this up before its next frame
+		nextCodec = codec;
 		this.discard = false;
 	}
 
+	/**
+	 * Switch to another codec during a call, the switch happens between
+	 * messages so each message only contains one codec.
+	 */
+	public void changeCodec(VoMP.Codec codec) throws IOException {
+		if (!Codecs.canRecord(codec))
+			throw new IOException(codec + " is not supported");
+		Log.v(TAG, "Changing codec to " + codec);
+		nextCodec = codec;
+	}
+
+	/**
+	 * Send comfort noise while we can't hear any speech. Only if the other
+	 * party understands it.
+	 */
+	public void setSuppressSilence(boolean suppress) {
+		Log.v(TAG, (suppress ? "Sending" : "Not sending")
+				+ " comfort noise during silence");
+		suppressSilence = suppress;
+	}
+
+	public VoMP.Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Send a copy of each frame in this codec along with the next frame, so
+	 * the other party can replace a lost frame. Or stop if null. Takes
+	 * effect between messages.
+	 */
+	public void setRedundancy(VoMP.Codec codec) throws IOException {
+		if (codec != null
+				&& (!Codecs.canRecord(codec) || codec.blockSize > MAX_REDUNDANT))
+			throw new IOException(codec
+					+ " is not supported for redundant audio");
+		Log.v(TAG, codec == null ? "Not sending redundant audio"
+				: "Sending redundant audio in " + codec);
+		redundantCodec = codec;
+		redundancyChanged = true;
+	}
+
+	private void applyRedundancy() throws IOException {
+		redundancyChanged = false;
+		redundancy = redundantCodec;
+		audioSource.setRedundantCodec(redundancy);
+		previousLen = 0;
+	}
+
+	// ask the other party to send us audio in this codec instead
+	public void requestCodec(VoMP.Codec codec) throws IOException {
+		byte data[] = new byte[] {
+			(byte) codec.code
+		};
+		monitor.sendMessageAndData(data, data.length, "AUDIO ",
+				call_session_token, " ",
+				VoMP.Codec.ChangeYourCodecTo.codeString);
+	}
+
+	private void setCodec(VoMP.Codec codec) throws IOException {
+		audioSource.setCodec(codec);
+		this.codec = codec;
+	}
+
 	public synchronized void stopRecording() {
 		if (audioThread != null) {
 			stopMe = true;
@@ -79,30 +162,88 @@ public class AudioRecorder implements Runnable {
 	}
 
 	private void prepare() throws IOException {
-		if (audioInput != null)
+		if (audioSource != null)
 			return;
 
 		// ensure 60ms minimum record buffer
-		audioInput = new AudioInputStream(echoCanceler,
+		audioSource = new AudioFrameSource(echoCanceler,
 				MediaRecorder.AudioSource.MIC,
 				8000,
 				AudioFormat.CHANNEL_IN_MONO,
 				AudioFormat.ENCODING_PCM_16BIT,
 				8 * 60 * 2);
-		codecInput = audioInput;
+	}
+
+	// the most each frame can add to a message
+	private int frameBytes() {
+		if (redundancy == null)
+			return codec.blockSize;
+		return 3 + redundancy.blockSize + codec.blockSize;
+	}
+
+	private int batchFrames() {
+		int frames = monitor.getAudioBatchLimit();
+		int max = VoMP.MAX_AUDIO_BYTES / (frameBytes() + 2);
+		if (frames > max)
+			frames = max;
+		return frames < 1 ? 1 : frames;
+	}
+
+	private byte[] allocateBlock() {
+		batchFrames = batchFrames();
+		frameCount = 0;
+		blockSpeech = false;
+		if (captured == null || captured.length < batchFrames)
+			captured = new long[batchFrames];
+		if (noiseLevels == null || noiseLevels.length < batchFrames) {
+			noiseLevels = new byte[batchFrames];
+			// the same layout as audio, with one byte per frame
+			noiseBlock = new byte[batchFrames * 3];
+		}
+		int frameBytes = frameBytes();
+		if (batchFrames == 1) {
+			indexLength = 0;
+			Log.v(TAG, "Starting to read audio in " + frameBytes
+					+ " byte blocks");
+			return new byte[frameBytes];
+		}
+		batchFramesString = Integer.toString(batchFrames);
+		indexLength = batchFrames * 2;
+		Log.v(TAG, "Starting to read audio in " + frameBytes
+				+ " byte blocks, " + batchFrames + " per message");
+		return new byte[indexLength + batchFrames * frameBytes];
+	}
+
+	private void sendBlock(byte block[], int len, VoMP.Codec codec)
+			throws IOException {
+		if (batchFrames == 1)
+			monitor.sendMessageAndData(block, len, "AUDIO ",
+					call_session_token, " ", codec.codeString);
+		else
+			monitor.sendMessageAndData(block, len, "AUDIOS ",
+					call_session_token, " ", codec.codeString, " ",
+					batchFramesString);
+	}
+
+	// replace a block of silence with the noise level of each frame
+	private void sendNoise() throws IOException {
+		int len = 0;
+		if (indexLength > 0) {
+			for (int i = 0; i < frameCount; i++) {
+				noiseBlock[len++] = 0;
+				noiseBlock[len++] = 1;
+			}
+		}
+		System.arraycopy(noiseLevels, 0, noiseBlock, len, frameCount);
+		sendBlock(noiseBlock, len + frameCount, VoMP.Codec.ComfortNoise);
 	}
 
 	private void cleanup() {
-		if (audioInput == null)
+		if (audioSource == null)
 			return;
 
-		try {
-			codecInput.close();
-		} catch (IOException e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-		audioInput = null;
-		codecInput = null;
+		audioSource.close();
+		audioSource = null;
 	}
 
 	@Override
@@ -114,11 +255,8 @@ public class AudioRecorder implements Runnable {
 			return;
 		}
 
-		// get one block of audio at a time.
-		// get in byte[], even though samples are natively short[],
-		// as it ends up being more efficient when we hand them to
-		// a codec or just send them as raw PCM
-		int bytesRead = 0;
+		// get one frame of audio at a time, encoded straight into the
+		// block we are going to send
 		byte[] block = null;
 
 		Log.d(TAG, "Starting loop");
@@ -133,32 +271,83 @@ public class AudioRecorder implements Runnable {
 
 		while (!stopMe) {
 			try {
+				VoMP.Codec start = nextCodec;
+				if (codec == null && !discard && start != null) {
+					nextCodec = null;
+					setCodec(start);
+				}
+
 				if (discard || codec == null) {
 					// skip 20ms of audio at a time until we know the codec
 					// we are going to use
-					audioInput.skip(VoMP.Codec.Pcm.blockSize);
+					audioSource.skip();
 					continue;
 				}
 
+				if (redundancyChanged && frameCount == 0) {
+					applyRedundancy();
+					block = null;
+				}
+
 				if (block == null) {
-					Log.v(TAG, "Starting to read audio in " + codec.blockSize
-							+ " byte blocks");
-					block = new byte[codec.blockSize];
+					block = allocateBlock();
+					frameStart = indexLength;
 				}
 
-				if (bytesRead < block.length) {
-					int bytes = codecInput.read(block, bytesRead,
-							block.length - bytesRead);
-					if (bytes > 0)
-						// process audio block
-						bytesRead += bytes;
+				int header = 0;
+				if (redundancy != null) {
+					// like RFC 2198, the codec of this frame, then the codec,
+					// length and data of the copy of the previous frame
+					block[frameStart] = (byte) codec.code;
+					block[frameStart + 1] = (byte) (previousLen > 0 ? redundancy.code
+							: 0);
+					block[frameStart + 2] = (byte) previousLen;
+					System.arraycopy(previous, 0, block, frameStart + 3,
+							previousLen);
+					header = 3 + previousLen;
+				}
+
+				audioSource.detectSpeech(suppressSilence);
+				int len = audioSource.read(block, frameStart + header);
+				if (redundancy != null) {
+					previousLen = audioSource.encodeRedundant(previous, 0);
+					len += header;
+				}
+				if (audioSource.isSpeech())
+					blockSpeech = true;
+				noiseLevels[frameCount] = (byte) audioSource.getNoiseLevel();
+				if (indexLength > 0) {
+					block[frameCount * 2] = (byte) (len >> 8);
+					block[frameCount * 2 + 1] = (byte) len;
 				}
+				captured[frameCount] = System.nanoTime();
+				frameCount++;
+				frameStart += len;
 
-				if (bytesRead >= block.length) {
-					monitor.sendMessageAndData(block, block.length, "AUDIO ",
-							call_session_token, " ",
-							codec.codeString);
-					bytesRead = 0;
+				if (frameCount >= batchFrames) {
+					if (blockSpeech)
+						sendBlock(block, frameStart,
+								redundancy == null ? codec
+										: VoMP.Codec.Redundant);
+					else
+						sendNoise();
+					long now = System.nanoTime();
+					for (int i = 0; i < frameCount; i++)
+						stats.sent(now - captured[i], !blockSpeech);
+					frameCount = 0;
+					frameStart = indexLength;
+					blockSpeech = false;
+					VoMP.Codec next = nextCodec;
+					if (next != null) {
+						nextCodec = null;
+						if (next != codec) {
+							setCodec(next);
+							block = null;
+						}
+					}
+					// renegotiated after reconnecting to servald?
+					if (batchFrames() != batchFrames)
+						block = null;
 				}
 
 			} catch (Exception e) {
@@ -0,0 +1,10 @@
+package org.servalproject.audio;
+
+// Somewhere to play audio, that can tell us how much it hasn't played yet.
+public interface AudioSink {
+	// samples written, but not yet played
+	public int unplayedFrameCount();
+
+	// samples played since playback started, or -1 if it hasn't started
+	public long playbackPosition();
+}
@@ -0,0 +1,256 @@
+package org.servalproject.audio;
+
+import org.servalproject.servald.LatencyHistogram;
+
+// What happened to the audio during one call.
+// Each counter is only written by one thread, the monitor thread as audio
+// arrives, the playback thread as it is played, or the recording thread as
+// it is sent. Nothing allocates while counting, so this is updated for
+// every frame. Other threads may read at any time.
+public class CallStats {
+	// playout buffer depth is counted in 20ms buckets, the last bucket
+	// counts anything deeper
+	public static final int DEPTH_BUCKET_MS = 20;
+	public static final int DEPTH_BUCKETS = 16;
+
+	// monitor thread
+	private volatile int received;
+	private volatile int duplicates;
+	private volatile int lateArrivals;
+	private volatile int overflows;
+	private volatile int recovered;
+	// RFC 3550 interarrival jitter, in us * 16
+	private volatile long jitter;
+	private long lastArrival;
+	private int lastStart;
+	private boolean arrivedBefore;
+
+	// playback thread
+	private volatile int played;
+	private volatile long playedMs;
+	private volatile int dropped;
+	private volatile int late;
+	private volatile int missing;
+	private volatile int underruns;
+	private volatile long concealedMs;
+	private volatile long noiseMs;
+	private final int depth[] = new int[DEPTH_BUCKETS];
+	private final LatencyHistogram receiveToPlay = new LatencyHistogram(
+			"receive to play");
+
+	// recording thread
+	private volatile int sent;
+	private volatile int sentNoise;
+	private final LatencyHistogram captureToSend = new LatencyHistogram(
+			"capture to send");
+
+	void arrived(int start, long nanos) {
+		received++;
+		long arrival = nanos / 1000;
+		if (arrivedBefore) {
+			long d = (arrival - lastArrival) - (start - lastStart) * 1000L;
+			if (d < 0)
+				d = -d;
+			jitter += d - ((jitter + 8) >> 4);
+		}
+		arrivedBefore = true;
+		lastArrival = arrival;
+		lastStart = start;
+	}
+
+	void duplicate() {
+		duplicates++;
+	}
+
+	// arrived after we played past it
+	void lateArrival() {
+		lateArrivals++;
+	}
+
+	// arrived, but there was no room to keep it
+	void overflow() {
+		overflows++;
+	}
+
+	// missing when its redundant copy arrived, so we queued the copy
+	void recovered() {
+		recovered++;
+	}
+
+	void played(int durationMs, int queuedMs, long receiveToPlayNanos) {
+		played++;
+		playedMs += durationMs;
+		int bucket = queuedMs < 0 ? 0 : queuedMs / DEPTH_BUCKET_MS;
+		if (bucket >= DEPTH_BUCKETS)
+			bucket = DEPTH_BUCKETS - 1;
+		depth[bucket]++;
+		receiveToPlay.record(receiveToPlayNanos);
+	}
+
+	// thrown away to reduce latency
+	void dropped() {
+		dropped++;
+	}
+
+	// reached the front of the queue after we had played past it
+	void playedLate() {
+		late++;
+	}
+
+	// gave up waiting for a frame
+	void missing() {
+		missing++;
+	}
+
+	// ran out of audio to play
+	void underrun() {
+		underruns++;
+	}
+
+	void concealed(int ms) {
+		concealedMs += ms;
+	}
+
+	// played comfort noise, while the other party was silent
+	void noise(int ms) {
+		noiseMs += ms;
+	}
+
+	// noise, if we sent a comfort noise descriptor instead of audio
+	void sent(long captureToSendNanos, boolean noise) {
+		sent++;
+		if (noise)
+			sentNoise++;
+		captureToSend.record(captureToSendNanos);
+	}
+
+	public int getReceived() {
+		return received;
+	}
+
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	public int getLateArrivals() {
+		return lateArrivals;
+	}
+
+	public int getOverflows() {
+		return overflows;
+	}
+
+	public int getRecovered() {
+		return recovered;
+	}
+
+	public int getJitterMs() {
+		return (int) (jitter >> 4) / 1000;
+	}
+
+	public int getPlayed() {
+		return played;
+	}
+
+	public long getPlayedMs() {
+		return playedMs;
+	}
+
+	public int getDropped() {
+		return dropped;
+	}
+
+	public int getLate() {
+		return late;
+	}
+
+	public int getMissing() {
+		return missing;
+	}
+
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	public long getConcealedMs() {
+		return concealedMs;
+	}
+
+	public long getNoiseMs() {
+		return noiseMs;
+	}
+
+	public int getSent() {
+		return sent;
+	}
+
+	// frames of silence we replaced with comfort noise
+	public int getSentNoise() {
+		return sentNoise;
+	}
+
+	// how many frames were played with this much audio queued behind them
+	public int getDepthCount(int bucket) {
+		return depth[bucket];
+	}
+
+	public LatencyHistogram getReceiveToPlay() {
+		return receiveToPlay;
+	}
+
+	public LatencyHistogram getCaptureToSend() {
+		return captureToSend;
+	}
+
+	// percentage of the call we had to make up
+	public int getLossPercent() {
+		long total = playedMs + concealedMs;
+		return total == 0 ? 0 : (int) (concealedMs * 100 / total);
+	}
+
+	// the median playout buffer depth, in ms
+	public int getMedianDepthMs() {
+		int total = 0;
+		for (int i = 0; i < DEPTH_BUCKETS; i++)
+			total += depth[i];
+		int seen = 0;
+		for (int i = 0; i < DEPTH_BUCKETS; i++) {
+			seen += depth[i];
+			if (seen * 2 >= total && seen > 0)
+				return i * DEPTH_BUCKET_MS;
+		}
+		return 0;
+	}
+
+	// a short description, for showing to the user
+	public String summary() {
+		return getLossPercent() + "% lost, " + getJitterMs() + "ms jitter, "
+				+ (receiveToPlay.getPercentile(0.5) / 1000000) + "ms delay";
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("rx; ").append(received)
+				.append(", dup; ").append(duplicates)
+				.append(", late; ").append(lateArrivals).append('/')
+				.append(late)
+				.append(", ovf; ").append(overflows)
+				.append(", fec; ").append(recovered)
+				.append(", jit; ").append(getJitterMs())
+				.append(", played; ").append(played)
+				.append(", drop; ").append(dropped)
+				.append(", miss; ").append(missing)
+				.append(", under; ").append(underruns)
+				.append(", plc; ").append(concealedMs)
+				.append(", cn; ").append(noiseMs)
+				.append(", tx; ").append(sent).append('/')
+				.append(sentNoise)
+				.append(", depth;");
+		for (int i = 0; i < DEPTH_BUCKETS; i++)
+			sb.append(' ').append(depth[i]);
+		sb.append(", ").append(receiveToPlay)
+				.append(", ").append(captureToSend);
+		return sb.toString();
+	}
+}
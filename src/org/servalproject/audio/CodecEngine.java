@@ -0,0 +1,20 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+// Encodes and decodes one frame of audio at a time, to or from 8kHz 16bit
+// little endian PCM.
+public interface CodecEngine {
+	// returns the number of encoded bytes written to out[]
+	public int encode(byte pcm[], int pcmOffset, int pcmLen, byte out[],
+			int outOffset) throws IOException;
+
+	// returns the number of PCM bytes written to pcm[]
+	public int decode(byte in[], int inOffset, int inLen, byte pcm[],
+			int pcmOffset) throws IOException;
+
+	// the most PCM bytes decode() may return for one frame
+	public int getMaxDecodedLength();
+
+	public void close();
+}
@@ -0,0 +1,167 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.servalproject.batphone.VoMP;
+import org.sipdroid.codecs.BV16;
+import org.sipdroid.codecs.GSM;
+import org.sipdroid.codecs.NativeCodec;
+import org.sipdroid.codecs.SILK8;
+import org.sipdroid.codecs.Speex;
+
+import android.util.Log;
+
+// Which codecs we can use for calls, and how to create them
+public class Codecs {
+	private static final String TAG = "Codecs";
+
+	// 8kbit/s
+	static final int SPEEX_QUALITY = 4;
+	static final int SILK_COMPLEXITY = 1;
+
+	// codecs handled by the java audio path, or a native library
+	private static final VoMP.Codec javaCodecs[] = {
+			VoMP.Codec.Pcm, VoMP.Codec.Ulaw8, VoMP.Codec.Alaw8,
+			VoMP.Codec.ComfortNoise, VoMP.Codec.Redundant,
+	};
+	// in-band requests we act on
+	private static final VoMP.Codec controlCodecs[] = {
+			VoMP.Codec.ChangeYourCodecTo,
+	};
+	private static final VoMP.Codec nativeCodecs[] = {
+			VoMP.Codec.GsmFull, VoMP.Codec.Speex, VoMP.Codec.Silk8,
+			VoMP.Codec.Bv16,
+	};
+
+	// the highest codec number every servald understands. Newer codec
+	// numbers, and in-band requests, are only offered to the other party
+	// once servald has said it can carry them, or servald would refuse or
+	// mangle the call
+	static final int SERVALD_CODECS = 0x08;
+
+	private static volatile EnumSet<VoMP.Codec> supported;
+	// newer codecs the servald we are connected to has accepted
+	private static volatile EnumSet<VoMP.Codec> accepted = EnumSet
+			.noneOf(VoMP.Codec.class);
+
+	private static NativeCodec create(VoMP.Codec codec) {
+		switch (codec) {
+		case GsmFull:
+			return new GSM();
+		case Speex:
+			return new Speex(SPEEX_QUALITY);
+		case Silk8:
+			return new SILK8(SILK_COMPLEXITY);
+		case Bv16:
+			return new BV16();
+		}
+		return null;
+	}
+
+	// can this codec's native library be loaded?
+	private static boolean isLoadable(VoMP.Codec codec) {
+		try {
+			return create(codec) != null;
+		} catch (LinkageError e) {
+			Log.v(TAG, codec + " is not available; " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static synchronized void findSupported() {
+		if (supported != null)
+			return;
+		EnumSet<VoMP.Codec> set = EnumSet.noneOf(VoMP.Codec.class);
+		for (int i = 0; i < javaCodecs.length; i++)
+			set.add(javaCodecs[i]);
+		for (int i = 0; i < controlCodecs.length; i++)
+			set.add(controlCodecs[i]);
+		for (int i = 0; i < nativeCodecs.length; i++) {
+			if (isLoadable(nativeCodecs[i]))
+				set.add(nativeCodecs[i]);
+		}
+		supported = set;
+	}
+
+	// can we decode this codec?
+	public static boolean isSupported(VoMP.Codec codec) {
+		findSupported();
+		return supported.contains(codec);
+	}
+
+	private static boolean isNew(VoMP.Codec codec) {
+		return codec.code > SERVALD_CODECS;
+	}
+
+	// can we use this codec in a call, through the servald we are
+	// connected to?
+	public static boolean isEnabled(VoMP.Codec codec) {
+		return isSupported(codec)
+				&& (!isNew(codec) || accepted.contains(codec));
+	}
+
+	// can we record audio in this codec? Only audio codecs have a
+	// preference, comfort noise only replaces audio during silence, and
+	// redundant frames wrap other codecs
+	public static boolean canRecord(VoMP.Codec codec) {
+		return codec.preference > 0 && isEnabled(codec);
+	}
+
+	private static void append(StringBuilder sb, VoMP.Codec codec) {
+		if (sb.length() > 0)
+			sb.append(' ');
+		sb.append(codec.codeString);
+	}
+
+	// space separated codec numbers we can use, for "monitor vomp"
+	public static String getSupportedList() {
+		findSupported();
+		StringBuilder sb = new StringBuilder();
+		for (VoMP.Codec codec : supported) {
+			if (isEnabled(codec))
+				append(sb, codec);
+		}
+		return sb.toString();
+	}
+
+	// newer codecs we could use if servald can carry them, for "monitor
+	// newcodecs". servald replies with NEWCODECS and the ones it accepts
+	public static String getNewCodecList() {
+		findSupported();
+		StringBuilder sb = new StringBuilder();
+		for (VoMP.Codec codec : supported) {
+			if (isNew(codec))
+				append(sb, codec);
+		}
+		return sb.toString();
+	}
+
+	// servald has accepted these newer codecs, on this connection. Or none
+	// yet, when we connect
+	public static void setAccepted(EnumSet<VoMP.Codec> codecs) {
+		EnumSet<VoMP.Codec> set = EnumSet.noneOf(VoMP.Codec.class);
+		for (VoMP.Codec codec : codecs) {
+			if (isNew(codec) && isSupported(codec))
+				set.add(codec);
+		}
+		accepted = set;
+	}
+
+	/**
+	 * Open a native codec, the caller must close() it when finished.
+	 *
+	 * @return null if the codec is handled by the java audio path
+	 */
+	public static CodecEngine open(VoMP.Codec codec) throws IOException {
+		NativeCodec nativeCodec;
+		try {
+			nativeCodec = create(codec);
+		} catch (LinkageError e) {
+			throw new IOException(codec + " is not available");
+		}
+		if (nativeCodec == null)
+			return null;
+		return new JniCodec(nativeCodec, codec.blockSize);
+	}
+}
@@ -0,0 +1,70 @@
+package org.servalproject.audio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.servalproject.batphone.VoMP;
+
+// Turns comfort noise descriptors into 8kHz 16bit PCM.
+// Each byte written is the noise level in -dBov for one 20ms frame, and we
+// write a frame of white noise at that level. The gain moves smoothly from
+// one frame's level to the next, so changes in level don't click.
+public class ComfortNoiseOutputStream extends FilterOutputStream {
+	static final int FRAME_SAMPLES = VoMP.Codec.ComfortNoise.timespan * 8;
+	// a uniform random sample has an rms of 1/sqrt(3) of its range
+	static final double UNIFORM_RMS = 1 / Math.sqrt(3);
+
+	private final byte workBuff[] = new byte[FRAME_SAMPLES * 2];
+	private int seed = 1;
+	// amplitude of the last frame we wrote, < 0 before the first frame
+	private double amplitude = -1;
+
+	public ComfortNoiseOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	// amplitude of uniform noise at this level
+	static double amplitude(int level) {
+		return 32767 * Math.pow(10, -level / 20.0) / UNIFORM_RMS;
+	}
+
+	// the next pseudo random value, between -1 and 1
+	private double nextRandom() {
+		// numerical recipes LCG, good enough to listen to
+		seed = seed * 1664525 + 1013904223;
+		return (seed >> 8) / (double) (1 << 23);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count)
+			throws IOException {
+		for (int f = 0; f < count; f++) {
+			double target = amplitude(buffer[offset + f] & 0x7F);
+			double start = amplitude < 0 ? target : amplitude;
+			for (int i = 0; i < FRAME_SAMPLES; i++) {
+				double gain = start + (target - start) * i / FRAME_SAMPLES;
+				int s = (int) (nextRandom() * gain);
+				if (s > Short.MAX_VALUE)
+					s = Short.MAX_VALUE;
+				if (s < Short.MIN_VALUE)
+					s = Short.MIN_VALUE;
+				workBuff[i * 2] = (byte) s;
+				workBuff[i * 2 + 1] = (byte) (s >> 8);
+			}
+			amplitude = target;
+			out.write(workBuff, 0, workBuff.length);
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		this.write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		throw new IOException(getClass().getName()
+				+ ".write(int) :\n\tDo not support simple write().");
+	}
+}
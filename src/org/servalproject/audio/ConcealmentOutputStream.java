@@ -0,0 +1,231 @@
+package org.servalproject.audio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Fills gaps in 8kHz 16bit PCM with a synthetic continuation of the audio
+// we played last, instead of silence. Based on ITU-T G.711 Appendix I.
+//
+// At the start of a gap we estimate the pitch of the last 20ms of audio,
+// then repeat the last pitch period. After 10ms we repeat the last two
+// periods, then three after 20ms, so the sound doesn't become too buzzy.
+// From 10ms onwards the output fades out by 20% every 10ms, reaching
+// silence after 60ms. When real audio arrives again, we fade from the
+// synthetic audio into it.
+//
+// Unlike G.711 Appendix I we don't delay the output to smooth the start of
+// the gap, as we don't want to add latency.
+public class ConcealmentOutputStream extends FilterOutputStream {
+	static final int SAMPLES_PER_MS = 8;
+	// pitch range, 200Hz - 66Hz
+	static final int PITCH_MIN = 40;
+	static final int PITCH_MAX = 120;
+	// samples compared when looking for the pitch
+	static final int CORRELATION_LEN = 160;
+	static final int HISTORY_LEN = PITCH_MAX * 3 + CORRELATION_LEN / 4;
+	// add another pitch period every 10ms
+	static final int PERIOD_LEN = 80;
+	static final int MAX_PERIODS = 3;
+	// fade out over 50ms, after the first 10ms
+	static final int FADE_START = 80;
+	static final int FADE_LEN = 400;
+	// longest fade back to real audio
+	static final int MAX_RECOVERY = 80;
+
+	private final short history[] = new short[HISTORY_LEN];
+	private int historyLen;
+
+	// samples concealed so far in the current gap
+	private int erased;
+	private int pitch;
+	private int periods;
+	private final short loop[] = new short[PITCH_MAX * MAX_PERIODS];
+	private int loopLen;
+	private int loopPos;
+
+	private short samples[] = new short[0];
+	private byte workBuff[] = new byte[PERIOD_LEN * 2];
+
+	private volatile long concealedSamples;
+	private volatile int concealments;
+
+	public ConcealmentOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	// total audio we have made up, in ms
+	public long getConcealedMs() {
+		return concealedSamples / SAMPLES_PER_MS;
+	}
+
+	// number of gaps we have filled
+	public int getConcealments() {
+		return concealments;
+	}
+
+	private int findPitch() {
+		int end = HISTORY_LEN;
+		int best = PITCH_MIN;
+		double bestScore = -Double.MAX_VALUE;
+		long e = 0;
+		for (int i = end - PITCH_MIN - CORRELATION_LEN; i < end - PITCH_MIN; i++)
+			e += history[i] * history[i];
+
+		for (int lag = PITCH_MIN; lag <= PITCH_MAX; lag++) {
+			if (lag > PITCH_MIN) {
+				// slide the energy window back by one sample
+				int o = history[end - lag];
+				int n = history[end - lag - CORRELATION_LEN];
+				e += n * n - o * o;
+			}
+			long c = 0;
+			for (int i = end - CORRELATION_LEN; i < end; i++)
+				c += history[i] * history[i - lag];
+			double score = e == 0 ? 0 : c / Math.sqrt(e);
+			if (score > bestScore) {
+				bestScore = score;
+				best = lag;
+			}
+		}
+		return best;
+	}
+
+	// build a loop from the last few pitch periods, cross fading its start
+	// so it follows on from the end
+	private void buildLoop(int periods) {
+		int start = HISTORY_LEN - pitch * periods;
+		loopLen = pitch * periods;
+		System.arraycopy(history, start, loop, 0, loopLen);
+		int overlap = pitch / 4;
+		for (int i = 0; i < overlap; i++)
+			loop[i] = (short) mix(history[HISTORY_LEN - pitch + i],
+					history[start + i], i, overlap);
+	}
+
+	private static int mix(int from, int to, int i, int len) {
+		return (from * (len - i) + to * i) / len;
+	}
+
+	// the next synthetic sample
+	private int synthesise() {
+		if (erased >= FADE_START + FADE_LEN)
+			return 0;
+
+		if (erased > 0 && erased % PERIOD_LEN == 0 && periods < MAX_PERIODS) {
+			// keep playing the same sample, from a longer loop
+			periods++;
+			loopPos += pitch;
+			buildLoop(periods);
+		}
+
+		int value = loop[loopPos];
+		if (++loopPos >= loopLen)
+			loopPos = 0;
+
+		if (erased >= FADE_START)
+			value = value * (FADE_LEN - (erased - FADE_START)) / FADE_LEN;
+		erased++;
+		return value;
+	}
+
+	private void put(int pos, int value) {
+		workBuff[pos * 2] = (byte) value;
+		workBuff[pos * 2 + 1] = (byte) (value >> 8);
+	}
+
+	/**
+	 * Write made up audio to fill a gap
+	 *
+	 * @param count
+	 *            number of samples
+	 */
+	public void conceal(int count) throws IOException {
+		if (count <= 0)
+			return;
+		if (erased == 0) {
+			concealments++;
+			if (historyLen < HISTORY_LEN) {
+				// not enough audio yet, fall back to silence
+				erased = FADE_START + FADE_LEN;
+			} else {
+				pitch = findPitch();
+				periods = 1;
+				loopPos = 0;
+				buildLoop(periods);
+			}
+		}
+		concealedSamples += count;
+
+		while (count > 0) {
+			int len = count > PERIOD_LEN ? PERIOD_LEN : count;
+			for (int i = 0; i < len; i++)
+				put(i, synthesise());
+			out.write(workBuff, 0, len * 2);
+			count -= len;
+		}
+	}
+
+	// remember what we played
+	private void remember(short buff[], int len) {
+		if (len >= HISTORY_LEN) {
+			System.arraycopy(buff, len - HISTORY_LEN, history, 0, HISTORY_LEN);
+		} else {
+			System.arraycopy(history, len, history, 0, HISTORY_LEN - len);
+			System.arraycopy(buff, 0, history, HISTORY_LEN - len, len);
+		}
+		historyLen += len;
+		if (historyLen > HISTORY_LEN)
+			historyLen = HISTORY_LEN;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count)
+			throws IOException {
+		int len = count >> 1;
+		if ((count & 1) != 0) {
+			out.write(buffer, offset, count);
+			return;
+		}
+
+		if (samples.length < len)
+			samples = new short[len];
+		for (int i = 0; i < len; i++)
+			samples[i] = (short) ((buffer[offset + i * 2] & 0xFF) | (buffer[offset
+					+ i * 2 + 1] << 8));
+
+		if (erased > 0) {
+			// fade from our synthetic audio into the real thing, for longer
+			// the longer the gap was
+			int recovery = pitch / 4 + 32 * ((erased - 1) / PERIOD_LEN);
+			if (recovery > MAX_RECOVERY)
+				recovery = MAX_RECOVERY;
+			if (recovery > len)
+				recovery = len;
+			for (int i = 0; i < recovery; i++)
+				samples[i] = (short) mix(synthesise(), samples[i], i,
+						recovery);
+			erased = 0;
+
+			if (workBuff.length < count)
+				workBuff = new byte[count];
+			for (int i = 0; i < len; i++)
+				put(i, samples[i]);
+			out.write(workBuff, 0, count);
+		} else
+			out.write(buffer, offset, count);
+
+		remember(samples, len);
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		this.write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		throw new IOException(getClass().getName()
+				+ ".write(int) :\n\tDo not support simple write().");
+	}
+}
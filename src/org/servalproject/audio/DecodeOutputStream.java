@@ -0,0 +1,50 @@
+package org.servalproject.audio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Decodes each block written to it as one frame of audio, and passes the
+// PCM on
+public class DecodeOutputStream extends FilterOutputStream {
+	private final CodecEngine engine;
+	private final byte workBuff[];
+
+	public DecodeOutputStream(OutputStream out, CodecEngine engine) {
+		super(out);
+		this.engine = engine;
+		this.workBuff = new byte[engine.getMaxDecodedLength()];
+	}
+
+	// close the codec, without closing the stream we write to
+	public void release() {
+		engine.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		release();
+		super.close();
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count)
+			throws IOException {
+		if (count <= 0)
+			return;
+		int len = engine.decode(buffer, offset, count, workBuff, 0);
+		if (len > 0)
+			out.write(workBuff, 0, len);
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		this.write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		throw new IOException(getClass().getName()
+				+ ".write(int) :\n\tDo not support simple write().");
+	}
+}
@@ -0,0 +1,118 @@
+package org.servalproject.audio;
+
+// Measures how fast the sender's sample clock runs compared to the clock of
+// our audio sink. If the sender is even slightly faster, audio arrives a
+// little quicker than we play it and our queue slowly grows for the whole
+// call, slower and it slowly drains.
+//
+// For each frame we compare its timestamp with the sink's playback position
+// when it arrived. Network delays only ever make a frame look later, so
+// within each window we keep the earliest frame, then fit a line through
+// the windows. The slope of that line is the drift.
+class DriftEstimator {
+	// remote time (ms) covered by each window
+	static final int WINDOW_MS = 5000;
+	// windows to fit, 1 minute
+	static final int WINDOWS = 12;
+	// windows we need before we trust the result
+	static final int MIN_WINDOWS = 4;
+	// a larger jump (ms) between windows is a route change, or a stalled
+	// sink, not drift. So we start again
+	static final int MAX_STEP = 80;
+	// ignore anything larger (ppm), something else must be wrong
+	static final int MAX_DRIFT = 10000;
+
+	// remote time and offset (local - remote, ms) of the earliest frame in
+	// each window, oldest first
+	private final long remote[] = new long[WINDOWS];
+	private final double offset[] = new double[WINDOWS];
+	private int windows;
+
+	private boolean started;
+	private long window;
+	private long windowRemote;
+	private double windowOffset;
+
+	private volatile int driftPpm;
+
+	// a frame starting at remoteMs arrived, when the sink had played
+	// localSamples
+	synchronized void arrived(int remoteMs, long localSamples) {
+		double offset = localSamples / (double) PlayoutEngine.SAMPLE_RATE
+				* 1000 - remoteMs;
+		long window = remoteMs / WINDOW_MS;
+
+		if (!started) {
+			started = true;
+		} else if (window < this.window) {
+			// reordered into a window we have finished with
+			return;
+		} else if (window > this.window) {
+			addWindow(windowRemote, windowOffset);
+		} else {
+			if (offset < windowOffset) {
+				windowRemote = remoteMs;
+				windowOffset = offset;
+			}
+			return;
+		}
+		this.window = window;
+		windowRemote = remoteMs;
+		windowOffset = offset;
+	}
+
+	private void addWindow(long remoteMs, double offsetMs) {
+		if (windows > 0
+				&& Math.abs(offsetMs - offset[windows - 1]) > MAX_STEP)
+			windows = 0;
+
+		if (windows == WINDOWS) {
+			System.arraycopy(remote, 1, remote, 0, WINDOWS - 1);
+			System.arraycopy(offset, 1, offset, 0, WINDOWS - 1);
+			windows--;
+		}
+		remote[windows] = remoteMs;
+		offset[windows] = offsetMs;
+		windows++;
+
+		if (windows < MIN_WINDOWS) {
+			driftPpm = 0;
+			return;
+		}
+
+		// least squares fit of offset against remote time
+		double meanX = 0, meanY = 0;
+		for (int i = 0; i < windows; i++) {
+			meanX += remote[i] - remote[0];
+			meanY += offset[i];
+		}
+		meanX /= windows;
+		meanY /= windows;
+		double sxy = 0, sxx = 0;
+		for (int i = 0; i < windows; i++) {
+			double x = remote[i] - remote[0] - meanX;
+			sxy += x * (offset[i] - meanY);
+			sxx += x * x;
+		}
+		if (sxx == 0)
+			return;
+
+		// if our offset grows, our clock is faster than theirs
+		int ppm = (int) Math.round(-sxy / sxx * 1000000);
+		if (Math.abs(ppm) > MAX_DRIFT)
+			ppm = 0;
+		driftPpm = ppm;
+	}
+
+	// how much faster (ppm) the sender's clock runs than ours, 0 until we
+	// know
+	int getDriftPpm() {
+		return driftPpm;
+	}
+
+	synchronized void reset() {
+		started = false;
+		windows = 0;
+		driftPpm = 0;
+	}
+}
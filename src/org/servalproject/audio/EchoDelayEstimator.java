@@ -0,0 +1,219 @@
+package org.servalproject.audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Finds where the echo in the microphone really lines up with the far end
+// audio, by cross correlating the energy envelopes of both over a second of
+// audio. Our timing estimate only has to be within MAX_EARLY / MAX_LATE ms.
+//
+// The recording thread collects the mic envelope and copies the far end
+// audio, the correlation runs on a background thread so it never holds up
+// capture. Results are picked up with poll().
+class EchoDelayEstimator {
+	// samples per envelope point, 1ms
+	static final int STEP = 8;
+	// envelope points per estimate
+	static final int WINDOW = 1000;
+	// how far (ms) our timing estimate may be out, either way
+	static final int MAX_EARLY = 40;
+	static final int MAX_LATE = 120;
+	// how well the envelopes must match before we believe the result
+	static final double MIN_CORRELATION = 0.4;
+
+	private static final int COLLECTING = 0, CORRELATING = 1, DONE = 2;
+
+	// shared by every estimator, we only expect one call at a time
+	private static final ExecutorService worker = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "EchoDelay");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+
+	private final int mic[] = new int[WINDOW];
+	private final int far[] = new int[WINDOW + MAX_EARLY + MAX_LATE];
+	private final byte farSamples[] = new byte[far.length * STEP * 2];
+	// running totals of far[] and its square, so the mean and variance at
+	// each lag are a subtraction
+	private final long farSum[] = new long[far.length + 1];
+	private final long farSquares[] = new long[far.length + 1];
+	private int points;
+	private int partial;
+	private int partialCount;
+	// the offset (far position - mic position) in use at the start
+	private long startOffset;
+	private long startPos;
+
+	private volatile int state = COLLECTING;
+	// so a correlation that finishes after reset() is ignored
+	private int generation;
+	private long result;
+	private volatile double lastCorrelation;
+
+	synchronized void reset() {
+		generation++;
+		points = 0;
+		partial = 0;
+		partialCount = 0;
+		state = COLLECTING;
+	}
+
+	/**
+	 * Add captured audio, before echo cancellation.
+	 *
+	 * @return true once a whole window has been collected
+	 */
+	boolean add(byte buffer[], int offset, int count, long micPos,
+			long offsetInUse) {
+		if (state != COLLECTING)
+			return false;
+		if (points == 0 && partialCount == 0) {
+			startPos = micPos;
+			startOffset = offsetInUse;
+		}
+		for (int i = 0; i + 1 < count && points < WINDOW; i += 2)
+			addSample((short) ((buffer[offset + i] & 0xFF) | (buffer[offset
+					+ i + 1] << 8)));
+		return points >= WINDOW;
+	}
+
+	// the same, for a buffer in native order
+	boolean add(ByteBuffer buffer, int offset, int count, long micPos,
+			long offsetInUse) {
+		if (state != COLLECTING)
+			return false;
+		if (points == 0 && partialCount == 0) {
+			startPos = micPos;
+			startOffset = offsetInUse;
+		}
+		for (int i = 0; i + 1 < count && points < WINDOW; i += 2)
+			addSample(buffer.getShort(offset + i));
+		return points >= WINDOW;
+	}
+
+	private void addSample(int sample) {
+		partial += sample < 0 ? -sample : sample;
+		if (++partialCount == STEP) {
+			mic[points++] = partial;
+			partial = 0;
+			partialCount = 0;
+		}
+	}
+
+	double getCorrelation() {
+		return lastCorrelation;
+	}
+
+	/**
+	 * Copy the far end audio that the window we have collected might echo,
+	 * and correlate them in the background. Must be called on the thread
+	 * that reads farEnd.
+	 */
+	void start(FarEndBuffer farEnd) {
+		long farStart = startPos + startOffset - MAX_LATE * STEP;
+		farEnd.read(farStart, farSamples, 0, farSamples.length >> 1);
+		final int job;
+		synchronized (this) {
+			state = CORRELATING;
+			job = generation;
+		}
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				long best = estimate();
+				synchronized (EchoDelayEstimator.this) {
+					if (job != generation)
+						return;
+					result = best;
+					state = DONE;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the offset (far position - mic position) that best matches the
+	 *         echo, if a correlation has finished since the last call, else
+	 *         FarEndBuffer.NONE
+	 */
+	long poll() {
+		if (state != DONE)
+			return FarEndBuffer.NONE;
+		long best;
+		synchronized (this) {
+			best = result;
+			points = 0;
+			partial = 0;
+			partialCount = 0;
+			state = COLLECTING;
+		}
+		return best;
+	}
+
+	/**
+	 * Correlate the window we have collected against the far end audio.
+	 *
+	 * @return the offset (far position - mic position) that best matches
+	 *         the echo, or FarEndBuffer.NONE if we aren't confident
+	 */
+	long estimate() {
+		for (int j = 0; j < far.length; j++) {
+			int sum = 0;
+			for (int i = j * STEP * 2; i < (j + 1) * STEP * 2; i += 2) {
+				int sample = (short) ((farSamples[i] & 0xFF) | (farSamples[i + 1] << 8));
+				sum += sample < 0 ? -sample : sample;
+			}
+			far[j] = sum;
+			farSum[j + 1] = farSum[j] + sum;
+			farSquares[j + 1] = farSquares[j] + (long) sum * sum;
+		}
+
+		// envelope points are < 2^18, so everything below is exact in a
+		// long
+		long micSum = 0, micSquares = 0;
+		for (int i = 0; i < WINDOW; i++) {
+			micSum += mic[i];
+			micSquares += (long) mic[i] * mic[i];
+		}
+		// variances and covariance, times WINDOW^2
+		long micVar = micSquares * WINDOW - micSum * micSum;
+
+		lastCorrelation = 0;
+		if (micVar <= 0)
+			return FarEndBuffer.NONE;
+
+		int best = 0;
+		double bestScore = -1;
+		// late ms, means the echo matches far end audio played that much
+		// earlier than we expected
+		for (int late = -MAX_EARLY; late <= MAX_LATE; late++) {
+			int base = MAX_LATE - late;
+			long sum = farSum[base + WINDOW] - farSum[base];
+			long farVar = (farSquares[base + WINDOW] - farSquares[base])
+					* WINDOW - sum * sum;
+			if (farVar <= 0)
+				continue;
+			long cross = 0;
+			for (int i = 0; i < WINDOW; i++)
+				cross += (long) mic[i] * far[base + i];
+			double score = (cross * WINDOW - micSum * sum)
+					/ Math.sqrt((double) micVar * farVar);
+			if (score > bestScore) {
+				bestScore = score;
+				best = late;
+			}
+		}
+
+		lastCorrelation = bestScore;
+		if (bestScore < MIN_CORRELATION)
+			return FarEndBuffer.NONE;
+		return startOffset - best * STEP;
+	}
+}
@@ -0,0 +1,146 @@
+package org.servalproject.audio;
+
+import java.nio.ByteBuffer;
+
+// The far end audio we have handed to the speaker, so the echo canceller
+// can find the audio that matches what the microphone hears.
+// One thread writes and one thread reads, without locking. Each write is
+// stamped with the time its first sample should be played.
+// The ring is a direct buffer, so the canceller can read it in place.
+class FarEndBuffer {
+	static final long NANOS_PER_SAMPLE = 1000000000L / 8000;
+	static final long NONE = Long.MIN_VALUE;
+
+	// 16 bit samples, ~4s
+	private static final int SIZE = 1 << 16;
+	private static final int MASK = SIZE - 1;
+	// don't read samples this close to being overwritten
+	private static final int MARGIN = SIZE / 4;
+	private static final int STAMPS = 64;
+
+	private final ByteBuffer ring = Oslec.allocate(SIZE);
+	// separate views, so each thread has its own position
+	private final ByteBuffer writeView = ring.duplicate();
+	private final ByteBuffer readView = ring.duplicate();
+	// sample position and play time of the start of recent writes
+	private final long stampPos[] = new long[STAMPS];
+	private final long stampNanos[] = new long[STAMPS];
+	private volatile int stampCount = 0;
+	// total bytes ever written
+	private volatile long written = 0;
+
+	// writer thread, delay is the number of samples queued to play first
+	void write(byte buffer[], int offset, int count, int delay) {
+		count &= ~1;
+		if (count <= 0)
+			return;
+		if (count > SIZE - MARGIN) {
+			offset += count - (SIZE - MARGIN);
+			count = SIZE - MARGIN;
+		}
+		long pos = written;
+		int s = stampCount;
+		stampPos[s & (STAMPS - 1)] = pos >> 1;
+		stampNanos[s & (STAMPS - 1)] = System.nanoTime() + delay
+				* NANOS_PER_SAMPLE;
+
+		int start = (int) (pos & MASK);
+		int first = count < SIZE - start ? count : SIZE - start;
+		writeView.position(start);
+		writeView.put(buffer, offset, first);
+		if (count > first) {
+			writeView.position(0);
+			writeView.put(buffer, offset + first, count - first);
+		}
+
+		// publish the samples, then the stamp that refers to them
+		written = pos + count;
+		stampCount = s + 1;
+	}
+
+	// reader thread
+
+	// the position of the sample that was played at this time, based on the
+	// latest write
+	long positionAt(long nanos) {
+		int s = stampCount - 1;
+		if (s < 0)
+			return NONE;
+		int i = s & (STAMPS - 1);
+		return stampPos[i] + (nanos - stampNanos[i]) / NANOS_PER_SAMPLE;
+	}
+
+	ByteBuffer getRing() {
+		return ring;
+	}
+
+	// the byte offset of these samples in the ring, or -1 if they aren't
+	// all there in one piece
+	int offsetOf(long position, int samples) {
+		long end = written >> 1;
+		long oldest = end - (SIZE - MARGIN) / 2;
+		if (position < oldest || position + samples > end)
+			return -1;
+		int start = (int) ((position << 1) & MASK);
+		if (start + (samples << 1) > SIZE)
+			return -1;
+		return start;
+	}
+
+	// copy samples starting at this position, with silence for any we don't
+	// have
+	void read(long position, byte out[], int offset, int samples) {
+		long end = written >> 1;
+		long oldest = end - (SIZE - MARGIN) / 2;
+		for (int i = 0; i < samples;) {
+			long pos = position + i;
+			if (pos < oldest || pos >= end) {
+				out[offset + i * 2] = 0;
+				out[offset + i * 2 + 1] = 0;
+				i++;
+				continue;
+			}
+			int len = samples - i;
+			if (pos + len > end)
+				len = (int) (end - pos);
+			int start = (int) ((pos << 1) & MASK);
+			int bytes = len << 1;
+			if (bytes > SIZE - start)
+				bytes = SIZE - start;
+			readView.position(start);
+			readView.get(out, offset + i * 2, bytes);
+			i += bytes >> 1;
+		}
+	}
+
+	// the same, into the start of a direct buffer
+	void read(long position, ByteBuffer out, int samples) {
+		long end = written >> 1;
+		long oldest = end - (SIZE - MARGIN) / 2;
+		out.clear();
+		for (int i = 0; i < samples;) {
+			long pos = position + i;
+			if (pos < oldest || pos >= end) {
+				out.putShort((short) 0);
+				i++;
+				continue;
+			}
+			int len = samples - i;
+			if (pos + len > end)
+				len = (int) (end - pos);
+			int start = (int) ((pos << 1) & MASK);
+			int bytes = len << 1;
+			if (bytes > SIZE - start)
+				bytes = SIZE - start;
+			readView.limit(start + bytes);
+			readView.position(start);
+			out.put(readView);
+			readView.limit(SIZE);
+			i += bytes >> 1;
+		}
+	}
+
+	void clear() {
+		stampCount = 0;
+	}
+}
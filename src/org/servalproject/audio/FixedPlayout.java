@@ -0,0 +1,36 @@
+package org.servalproject.audio;
+
+// Always aims for the same amount of queued audio, dropping frames once the
+// queue has stayed above a fixed limit for a while.
+public class FixedPlayout implements PlayoutPolicy {
+	private final int targetDelay;
+	private final int maxDelay;
+	private final QueueWindow window = new QueueWindow();
+
+	public FixedPlayout(int targetDelay, int maxDelay) {
+		this.targetDelay = targetDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	@Override
+	public void arrived(int sampleStart, int sampleEnd, long nanos) {
+	}
+
+	@Override
+	public int getTargetDelay() {
+		return targetDelay;
+	}
+
+	@Override
+	public int getRate(int queuedMs, int frameMs) {
+		if (window.add(queuedMs) <= maxDelay)
+			return 0;
+		window.dropped(frameMs);
+		return DROP_FRAME;
+	}
+
+	@Override
+	public void reset() {
+		window.reset();
+	}
+}
@@ -0,0 +1,226 @@
+package org.servalproject.audio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.servalproject.batphone.VoMP;
+
+// Holds received audio frames until they are played.
+// Each frame lives in the slot for its start time (start / timespan), so
+// inserting, finding duplicates and finding the next frame to play don't
+// need to search a list.
+// One thread (the monitor) inserts frames, one thread (playback) removes
+// them. Frames move between the two threads without locking, and every
+// frame is allocated up front then recycled through a free ring.
+class JitterBuffer {
+	static final int INSERTED = 0;
+	static final int DUPLICATE = 1;
+	static final int LATE = 2;
+	static final int FULL = 3;
+
+	static class Frame {
+		final byte buff[];
+		VoMP.Codec codec;
+		int dataLen;
+		int sampleStart;
+		int sampleEnd;
+		int index;
+		// System.nanoTime() when it arrived
+		long arrived;
+
+		Frame(int buffSize) {
+			this.buff = new byte[buffSize];
+		}
+	}
+
+	final int capacity;
+	final int timespan;
+	private final int mask;
+	private final AtomicReferenceArray<Frame> slots;
+
+	// frames that are not in use, handed back from the playback thread
+	private final Frame free[];
+	private final int freeMask;
+	private volatile int freeRead = 0;
+	private volatile int freeWrite = 0;
+	// the frame the monitor thread is filling
+	private Frame spare;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	// only written by the playback thread, the next frame index to play
+	private volatile int readIndex = Integer.MIN_VALUE;
+	// only written by the monitor thread
+	private volatile int highestIndex = Integer.MIN_VALUE;
+	private volatile int lastQueuedSampleEnd = 0;
+
+	JitterBuffer(int capacity, int buffSize, int timespan) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.timespan = timespan <= 0 ? 1 : timespan;
+		this.slots = new AtomicReferenceArray<Frame>(size);
+
+		// every slot may be full, while each thread holds one more
+		int frames = size + 2;
+		int freeSize = 1;
+		while (freeSize < frames)
+			freeSize <<= 1;
+		this.free = new Frame[freeSize];
+		this.freeMask = freeSize - 1;
+		for (int i = 0; i < frames; i++)
+			free[i] = new Frame(buffSize);
+		freeWrite = frames;
+	}
+
+	int indexOf(int sampleStart) {
+		// round towards -infinity, so slots are spaced evenly around 0
+		return sampleStart >= 0 ? sampleStart / timespan
+				: -((-sampleStart + timespan - 1) / timespan);
+	}
+
+	// monitor thread
+
+	boolean isDuplicate(int sampleStart) {
+		Frame f = slots.get(indexOf(sampleStart) & mask);
+		return f != null && f.sampleStart == sampleStart;
+	}
+
+	// a frame to fill with audio, or null if every frame is in use
+	Frame obtain() {
+		if (spare == null) {
+			int read = freeRead;
+			if (read == freeWrite)
+				return null;
+			spare = free[read & freeMask];
+			free[read & freeMask] = null;
+			freeRead = read + 1;
+		}
+		return spare;
+	}
+
+	// queue the frame returned by obtain(), after filling it in
+	int insert(Frame f) {
+		int index = indexOf(f.sampleStart);
+		int slot = index & mask;
+		Frame existing = slots.get(slot);
+		if (existing != null) {
+			if (existing.sampleStart == f.sampleStart)
+				return DUPLICATE;
+			return FULL;
+		}
+
+		boolean empty = queued.get() == 0;
+		int read = readIndex;
+		if (read != Integer.MIN_VALUE && index < read)
+			return LATE;
+		// a frame past the end of the window, eg after a long outage, is
+		// still queued. peek() will skip forward to it, dropping anything
+		// older
+
+		f.index = index;
+		spare = null;
+		if (empty || f.sampleEnd > lastQueuedSampleEnd)
+			lastQueuedSampleEnd = f.sampleEnd;
+		if (index > highestIndex || highestIndex == Integer.MIN_VALUE)
+			highestIndex = index;
+		slots.set(slot, f);
+		queued.incrementAndGet();
+		return INSERTED;
+	}
+
+	// playback thread
+
+	// the earliest frame waiting to be played, without removing it
+	Frame peek() {
+		if (queued.get() == 0)
+			return null;
+
+		int highest = highestIndex;
+		int read = readIndex;
+		// skip forward if we have fallen too far behind, or just started
+		if (read == Integer.MIN_VALUE || highest - read >= capacity)
+			read = readIndex = highest - capacity + 1;
+
+		for (int index = read; index - highest <= 0; index++) {
+			int slot = index & mask;
+			Frame f = slots.get(slot);
+			if (f == null)
+				continue;
+			if (f.index == index)
+				return f;
+			if (f.index - index < 0) {
+				// left behind when we skipped forward
+				slots.set(slot, null);
+				queued.decrementAndGet();
+				release(f);
+			}
+		}
+		return null;
+	}
+
+	// take the frame returned by peek() out of the buffer, the caller must
+	// release() it when finished
+	void remove(Frame f) {
+		slots.set(f.index & mask, null);
+		queued.decrementAndGet();
+		readIndex = f.index + 1;
+	}
+
+	// the frame that starts at this sample, if it is waiting
+	Frame find(int sampleStart) {
+		int index = indexOf(sampleStart);
+		Frame f = slots.get(index & mask);
+		if (f == null || f.index != index || f.sampleStart != sampleStart)
+			return null;
+		return f;
+	}
+
+	// throw away every frame that starts before this, and refuse any more
+	void discardBefore(int sampleStart) {
+		int index = indexOf(sampleStart);
+		int read = readIndex;
+		if (read != Integer.MIN_VALUE && index - read <= 0)
+			return;
+		if (read == Integer.MIN_VALUE || index - read > capacity)
+			read = index - capacity;
+		for (; read - index < 0; read++) {
+			int slot = read & mask;
+			Frame f = slots.get(slot);
+			if (f != null && f.index - index < 0) {
+				slots.set(slot, null);
+				queued.decrementAndGet();
+				release(f);
+			}
+		}
+		readIndex = index;
+	}
+
+	void release(Frame f) {
+		int write = freeWrite;
+		free[write & freeMask] = f;
+		freeWrite = write + 1;
+	}
+
+	// throw away everything, from the playback thread
+	void clear() {
+		for (int i = 0; i <= mask; i++) {
+			Frame f = slots.get(i);
+			if (f != null) {
+				slots.set(i, null);
+				queued.decrementAndGet();
+				release(f);
+			}
+		}
+		readIndex = Integer.MIN_VALUE;
+	}
+
+	int size() {
+		return queued.get();
+	}
+
+	int getLastQueuedSampleEnd() {
+		return lastQueuedSampleEnd;
+	}
+}
@@ -0,0 +1,73 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+import org.sipdroid.codecs.NativeCodec;
+
+// Adapts one of the native codecs to our byte based PCM
+class JniCodec implements CodecEngine {
+	// longest packet any of the native decoders might return, 100ms
+	static final int MAX_SAMPLES = 800;
+	// most bytes any of the native encoders might write for one packet
+	static final int MAX_ENCODED = 1250;
+
+	private final NativeCodec codec;
+	private final int maxEncoded;
+	private final short samples[] = new short[MAX_SAMPLES];
+	private final byte encoded[];
+	private boolean open;
+
+	JniCodec(NativeCodec codec, int maxEncoded) {
+		this.codec = codec;
+		this.maxEncoded = maxEncoded;
+		// the native encoders may overshoot before telling us
+		this.encoded = new byte[NativeCodec.RTP_HEADER + MAX_ENCODED];
+		codec.open();
+		open = true;
+	}
+
+	@Override
+	public int encode(byte pcm[], int pcmOffset, int pcmLen, byte out[],
+			int outOffset) throws IOException {
+		int count = pcmLen >> 1;
+		if (count > MAX_SAMPLES)
+			throw new IOException("Too many samples " + count);
+		for (int i = 0; i < count; i++)
+			samples[i] = (short) ((pcm[pcmOffset + i * 2] & 0xFF) | (pcm[pcmOffset
+					+ i * 2 + 1] << 8));
+		int len = codec.encode(samples, 0, encoded, count);
+		if (len < 0 || len > maxEncoded)
+			throw new IOException("Unexpected encoded length " + len);
+		System.arraycopy(encoded, NativeCodec.RTP_HEADER, out, outOffset, len);
+		return len;
+	}
+
+	@Override
+	public int decode(byte in[], int inOffset, int inLen, byte pcm[],
+			int pcmOffset) throws IOException {
+		if (inLen > maxEncoded)
+			throw new IOException("Encoded frame is too long " + inLen);
+		System.arraycopy(in, inOffset, encoded, NativeCodec.RTP_HEADER, inLen);
+		int count = codec.decode(encoded, samples, inLen);
+		if (count < 0)
+			throw new IOException("Failed to decode audio");
+		for (int i = 0; i < count; i++) {
+			pcm[pcmOffset++] = (byte) samples[i];
+			pcm[pcmOffset++] = (byte) (samples[i] >> 8);
+		}
+		return count * 2;
+	}
+
+	@Override
+	public int getMaxDecodedLength() {
+		return MAX_SAMPLES * 2;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!open)
+			return;
+		open = false;
+		codec.close();
+	}
+}
@@ -1,13 +1,16 @@
 package org.servalproject.audio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.servalproject.servald.LatencyHistogram;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 // pass this class blocks of transmitted audio, then when audio is received it will attempt to detect echo's and remove them.
 public class Oslec {
-	private int echoCanState;
+	private volatile int echoCanState;
 	private int size = 128;
 	public static final int BLOCK_SIZE = 128;
 
@@ -32,13 +35,49 @@ public class Oslec {
 			byte rx[], int rxOffset,
 			int length);
 
+	// the same, but on direct buffers so nothing is pinned or copied
+	private static native int echoCanUpdateDirect(int echoCanState,
+			ByteBuffer tx, int txOffset,
+			ByteBuffer rx, int rxOffset,
+			int length);
+
 	private static native void echoCanFree(int echoCanState);
 
+	// far end audio, written by the playback thread
+	private final FarEndBuffer farEnd = new FarEndBuffer();
+	private final EchoDelayEstimator estimator = new EchoDelayEstimator();
+	// the rest is only used by the recording thread, under our lock
+
+	// samples of captured audio we have processed
+	private long micPos;
+	// far end position - mic position, smoothed from our timing estimates
+	private long timingOffset;
+	private boolean haveTiming;
+	// difference between the timing estimate and what the echo matches
+	private long correction;
+	private byte txBlock[] = new byte[BLOCK_SIZE];
+	// far end audio for a whole frame, when we can't point into the ring
+	private final ByteBuffer txFrame = allocate(MAX_FRAME);
+
+	// longest frame rxAudio(ByteBuffer) accepts, 100ms
+	public static final int MAX_FRAME = 1600;
+
+	// cost of cancelling each 20ms of audio
+	private final LatencyHistogram frameCost = new LatencyHistogram("Oslec");
+	private long frameNanos;
+	private int frameSamples;
+
 	public Oslec() {
 		enabled(true);
 	}
 
-	public void enabled(boolean enable) {
+	// a buffer of native order samples that the canceller can work on
+	// without copying
+	public static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	public synchronized void enabled(boolean enable) {
 		boolean enabled = echoCanState != 0;
 		if (enabled == enable)
 			return;
@@ -50,12 +89,16 @@ public class Oslec {
 									ECHO_CAN_USE_RX_HPF |
 									ECHO_CAN_USE_NLP |
 									ECHO_CAN_DISABLE);
+			farEnd.clear();
+			estimator.reset();
+			haveTiming = false;
+			correction = 0;
+			micPos = 0;
 		} else {
-			Log.v("Oslec", "Closing echo canceller");
+			Log.v("Oslec", "Closing echo canceller, " + frameCost);
 			echoCanFree(echoCanState);
 			echoCanState = 0;
-			freeList = null;
-			txHead = txTail = null;
+			frameCost.clear();
 		}
 	}
 
@@ -65,116 +108,196 @@ public class Oslec {
 		return !enabled;
 	}
 
-	private AudioBuffer freeList;
-	private AudioBuffer txHead, txTail;
-
-	private class AudioBuffer {
-		byte buff[];
-		int processed;
-		int len;
-		long txTime;
-		AudioBuffer next;
-
-		AudioBuffer(int size) {
-			this.buff = new byte[size];
-		}
-	}
-
 	// remember blocks of audio that we have transmitted
 	public void txAudio(byte buffer[], int offset, int count) {
-		while (count > 0 && echoCanState != 0) {
-			AudioBuffer test, buff;
-
-			// by not changing the freeList variable in this thread, we don't
-			// need to synchronize
-			test = freeList;
-			if (test == null || test.next == null) {
-				buff = new AudioBuffer(count < BLOCK_SIZE ? BLOCK_SIZE : count);
-			} else {
-				buff = test.next;
-				test.next = buff.next;
-				buff.next = null;
-			}
+		txAudio(buffer, offset, count, 0);
+	}
 
-			buff.txTime = SystemClock.elapsedRealtime();
-			buff.len = count > buff.buff.length ? buff.buff.length : count;
-			System.arraycopy(buffer, offset, buff.buff, 0, buff.len);
-			count -= buff.len;
-			offset += buff.len;
+	// remember audio that will be played after delay samples
+	public void txAudio(byte buffer[], int offset, int count, int delay) {
+		if (echoCanState != 0)
+			farEnd.write(buffer, offset, count, delay);
+	}
 
-			if (txTail == null) {
-				txHead = txTail = buff;
+	// where does the far end audio that this capture might echo start?
+	private long alignment(int lag, long now) {
+		applyEstimate();
+		long captured = now - lag * 1000000L;
+		long expected = farEnd.positionAt(captured);
+		if (expected != FarEndBuffer.NONE) {
+			long offset = expected - micPos;
+			if (!haveTiming) {
+				timingOffset = offset;
+				haveTiming = true;
 			} else {
-				txTail = txTail.next = buff;
+				// our timing estimates are noisy, follow them slowly
+				timingOffset += (offset - timingOffset) / 16;
 			}
 		}
+		if (!haveTiming)
+			return FarEndBuffer.NONE;
+		return timingOffset + correction;
 	}
 
 	// process audio we have received, and attempt to eliminate any echos
-	public boolean rxAudio(byte[] buffer, int offset, int count, int lag)
-			throws IOException {
-		int processed = 0;
+	public synchronized boolean rxAudio(byte[] buffer, int offset, int count,
+			int lag) throws IOException {
+		if (echoCanState == 0)
+			return false;
+
+		long start = System.nanoTime();
 		boolean modified = false;
-		long now = SystemClock.elapsedRealtime();
-
-		while (processed < count && echoCanState != 0) {
-			// never empty the txHead list, that way we never need to
-			// synchronize
-			while (txHead != null && txHead.next != null
-					&& txHead.processed >= txHead.len) {
-				AudioBuffer h = txHead;
-				h.processed = 0;
-				h.len = 0;
-				txHead = h.next;
-				h.next = freeList;
-				freeList = h;
+		int processed = 0;
+
+		while (processed < count) {
+			int len = count - processed;
+			if (len > txBlock.length)
+				len = txBlock.length;
+			int samples = len >> 1;
+			if (samples == 0)
+				break;
+
+			long align = alignment(lag, start);
+			byte tx[] = null;
+			if (align != FarEndBuffer.NONE) {
+				if (estimator.add(buffer, offset + processed, len, micPos,
+						align))
+					estimator.start(farEnd);
+				farEnd.read(micPos + align, txBlock, 0, samples);
+				tx = txBlock;
 			}
 
-			AudioBuffer audio = txHead;
+			int ret = echoCanUpdate(echoCanState, tx, 0, buffer, offset
+					+ processed, samples << 1);
 
-			while (audio != null) {
-				if (audio.processed < audio.len)
-					break;
+			if (ret < 0)
+				throw new IOException("Echo cancellation failed");
+			if (ret > 0)
+				modified = true;
 
-				audio = audio.next;
-			}
+			processed += samples << 1;
+			micPos += samples;
+		}
 
-			// I believe we need to make sure that the timestamp of the audio we
-			// transmitted is >= the timestamp of the start of the audio
-			// buffer, and <= the size of the echo cancellation window.
+		recordCost(start, processed >> 1);
+		return modified;
+	}
 
-			// for the moment, just deal with known lag in the record buffer.
-			if (audio != null && audio.txTime > now - lag) {
-				audio = null;
+	/**
+	 * Process a whole frame of received audio in one native call, the buffer
+	 * should come from allocate().
+	 */
+	public synchronized boolean rxAudio(ByteBuffer buffer, int offset,
+			int count, int lag) throws IOException {
+		if (echoCanState == 0)
+			return false;
+		if (count > MAX_FRAME)
+			throw new IOException("Frame is too long " + count);
+
+		long start = System.nanoTime();
+		int samples = count >> 1;
+		if (samples == 0)
+			return false;
+
+		long align = alignment(lag, start);
+		ByteBuffer tx = null;
+		int txOffset = 0;
+		if (align != FarEndBuffer.NONE) {
+			if (estimator.add(buffer, offset, count, micPos, align))
+				estimator.start(farEnd);
+			// point straight into the ring if we can
+			txOffset = farEnd.offsetOf(micPos + align, samples);
+			if (txOffset >= 0) {
+				tx = farEnd.getRing();
+			} else {
+				farEnd.read(micPos + align, txFrame, samples);
+				tx = txFrame;
+				txOffset = 0;
 			}
+		}
 
-			int len = count - processed;
-			byte txBuff[] = null;
-			int txOffset = 0;
-
-			if (audio != null) {
-				if (audio.len -audio.processed < len)
-					len = audio.len -audio.processed;
-				txBuff = audio.buff;
-				txOffset = audio.processed;
-			}
+		int ret = echoCanUpdateDirect(echoCanState, tx, txOffset, buffer,
+				offset, samples << 1);
+		if (ret < 0)
+			throw new IOException("Echo cancellation failed");
 
-			int ret = echoCanUpdate(echoCanState,
-					txBuff, txOffset,
-					buffer, offset + processed,
-					len);
+		micPos += samples;
+		recordCost(start, samples);
+		return ret > 0;
+	}
 
-			if (ret < 0)
-				throw new IOException("Echo cancellation failed");
-			if (ret > 0)
-				modified = true;
+	// use the last delay estimate, if one has finished
+	private void applyEstimate() {
+		long best = estimator.poll();
+		if (best == FarEndBuffer.NONE)
+			return;
+		long newCorrection = best - timingOffset;
+		if (newCorrection != correction)
+			Log.v("Oslec", "Echo delay correction " + (newCorrection / 8)
+					+ "ms, correlation " + estimator.getCorrelation());
+		correction = newCorrection;
+	}
 
-			processed += len;
+	private void recordCost(long start, int samples) {
+		frameNanos += System.nanoTime() - start;
+		frameSamples += samples;
+		if (frameSamples >= 160) {
+			frameCost.record(frameNanos * 160 / frameSamples);
+			frameNanos = 0;
+			frameSamples = 0;
+		}
+	}
 
-			if (audio != null) {
-				audio.processed+=len;
+	/**
+	 * Compare the cost of cancelling echo in 128 byte arrays, with whole
+	 * frames in direct buffers. Runs on the calling thread with its own
+	 * canceller, so don't call this during a call.
+	 *
+	 * @return a summary of the cost of each 20ms frame, for both paths
+	 */
+	public static String benchmark(int frames) throws IOException {
+		final int frameBytes = 320;
+		byte far[] = new byte[frameBytes];
+		byte mic[] = new byte[frameBytes];
+		ByteBuffer micDirect = allocate(frameBytes);
+		java.util.Random random = new java.util.Random(0);
+
+		LatencyHistogram results[] = new LatencyHistogram[2];
+		for (int path = 0; path < 2; path++) {
+			Oslec oslec = new Oslec();
+			LatencyHistogram h = new LatencyHistogram(path == 0 ? "byte[]"
+					: "direct");
+			short last[] = new short[frameBytes / 2];
+			for (int f = 0; f < frames; f++) {
+				// the mic hears an attenuated copy of the previous frame
+				for (int i = 0; i < frameBytes / 2; i++) {
+					short s = (short) (random.nextGaussian() * 4000);
+					short m = (short) (last[i] / 4 + random.nextGaussian() * 100);
+					last[i] = s;
+					far[i * 2] = (byte) s;
+					far[i * 2 + 1] = (byte) (s >> 8);
+					mic[i * 2] = (byte) m;
+					mic[i * 2 + 1] = (byte) (m >> 8);
+				}
+				oslec.txAudio(far, 0, frameBytes, 0);
+
+				long start = System.nanoTime();
+				if (path == 0) {
+					for (int i = 0; i < frameBytes; i += BLOCK_SIZE)
+						oslec.rxAudio(mic, i, Math.min(BLOCK_SIZE, frameBytes
+								- i), 0);
+				} else {
+					micDirect.clear();
+					micDirect.put(mic);
+					oslec.rxAudio(micDirect, 0, frameBytes, 0);
+				}
+				h.record(System.nanoTime() - start);
 			}
+			oslec.enabled(false);
+			results[path] = h;
 		}
-		return modified;
+		String summary = results[0] + "; " + results[1];
+		Log.v("Oslec", "Benchmark " + summary);
+		return summary;
 	}
 }
@@ -0,0 +1,464 @@
+package org.servalproject.audio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+
+import org.servalproject.batphone.VoMP;
+
+import uk.co.mmscomputing.sound.DecompressOutputStream;
+
+// Decides what to play and when, on behalf of AudioPlayer.
+// Received frames wait in a jitter buffer, then are decoded, concealed and
+// time stretched into a sink. The caller supplies the time, so this has no
+// android dependencies and can be driven by a simulated clock.
+class PlayoutEngine {
+	static final int SAMPLE_RATE = 8000;
+	// how close (ns) we let the sink get to running out, before giving up
+	// on a missing frame
+	static final int MIN_BUFFER = 20000000;
+	// frames of audio we can hold, 2.5s at 20ms per frame
+	static final int JITTER_CAPACITY = 128;
+	// the most (ms) we make up for one gap. After a longer outage, we skip
+	// ahead to the audio that has arrived since, rather than making the
+	// other party wait while we play seconds of made up audio
+	static final int MAX_CONCEAL = 100;
+	// the largest frame of any codec we support
+	static final int MAX_FRAME_BYTES = VoMP.Codec.Pcm.blockSize;
+
+	private final AudioSink sink;
+	private final PlayoutPolicy playout;
+	final CallStats stats;
+	final TimeStretchOutputStream stretchOutput;
+	final ConcealmentOutputStream concealOutput;
+	// how fast the sender's clock runs compared to the sink's
+	private final DriftEstimator drift = new DriftEstimator();
+	// a decoder for each codec the other party has used, all writing to
+	// concealOutput
+	private final EnumMap<VoMP.Codec, OutputStream> decoders = new EnumMap<VoMP.Codec, OutputStream>(
+			VoMP.Codec.class);
+
+	// received audio, waiting to be played. Created once audio arrives
+	private volatile JitterBuffer jitterBuffer;
+	// copies of frames from redundant blocks, kept aside so they never
+	// take the place of the real frame. Only played if the real frame
+	// still hasn't arrived when we would otherwise conceal it
+	private volatile JitterBuffer copies;
+	// redundant frames are read into here, then split up
+	private final byte redundantBuff[] = new byte[VoMP.Codec.Redundant.blockSize];
+	private volatile int lastSampleEnd = 0;
+	private volatile long playedMs;
+	private int waitForBuffer;
+
+	// queue lengths since they were last reset
+	private int smallestQueue = Integer.MAX_VALUE;
+	private int largestQueue = 0;
+
+	PlayoutEngine(OutputStream out, AudioSink sink, PlayoutPolicy playout,
+			CallStats stats) {
+		this.sink = sink;
+		this.playout = playout;
+		this.stats = stats;
+		stretchOutput = new TimeStretchOutputStream(out);
+		concealOutput = new ConcealmentOutputStream(stretchOutput);
+		playout.reset();
+		// wait for an initial buffer of audio before playback starts
+		waitForBuffer = playout.getTargetDelay();
+	}
+
+	// monitor thread
+
+	int receivedAudio(int start_time, int end_time, VoMP.Codec codec,
+			InputStream in, int byteCount, long now) throws IOException {
+
+		// the codec may change during the call, so each frame remembers its
+		// own. Every codec we support uses 20ms frames
+		if (this.jitterBuffer == null)
+			this.jitterBuffer = new JitterBuffer(JITTER_CAPACITY,
+					MAX_FRAME_BYTES, codec.timespan);
+
+		JitterBuffer jitter = this.jitterBuffer;
+		if (codec == VoMP.Codec.Redundant)
+			return receivedRedundant(jitter, start_time, end_time, in,
+					byteCount, now);
+
+		if (!arrived(jitter, start_time, end_time, now))
+			return 0;
+
+		if (byteCount > codec.blockSize)
+			throw new IOException("Incoming buffer is too long for codec");
+
+		JitterBuffer.Frame buff = jitter.obtain();
+		if (buff == null) {
+			// every frame is waiting to be played
+			stats.overflow();
+			return 0;
+		}
+
+		readFully(in, buff.buff, byteCount);
+		insert(jitter, buff, start_time, end_time, codec, byteCount, now);
+		return byteCount;
+	}
+
+	// a frame has arrived, can we use it?
+	private boolean arrived(JitterBuffer jitter, int start_time,
+			int end_time, long now) {
+		if (jitter.isDuplicate(start_time)) {
+			stats.duplicate();
+			return false;
+		}
+
+		// late frames still tell us how much the network is delaying them
+		playout.arrived(start_time, end_time, now);
+		stats.arrived(start_time, now);
+		long position = sink.playbackPosition();
+		if (position >= 0)
+			drift.arrived(start_time, position);
+
+		if (end_time <= lastSampleEnd) {
+			stats.lateArrival();
+			return false;
+		}
+		return true;
+	}
+
+	private static void readFully(InputStream in, byte buffer[], int count)
+			throws IOException {
+		int read = 0;
+		while (read < count) {
+			int actualRead = in.read(buffer, read, count - read);
+			if (actualRead < 0)
+				throw new EOFException();
+			read += actualRead;
+		}
+	}
+
+	private int insert(JitterBuffer jitter, JitterBuffer.Frame buff,
+			int start_time, int end_time, VoMP.Codec codec, int dataLen,
+			long now) {
+		buff.codec = codec;
+		buff.dataLen = dataLen;
+		buff.sampleStart = start_time;
+		buff.sampleEnd = end_time;
+		buff.arrived = now;
+
+		int ret = jitter.insert(buff);
+		switch (ret) {
+		case JitterBuffer.DUPLICATE:
+			stats.duplicate();
+			break;
+		case JitterBuffer.LATE:
+			stats.lateArrival();
+			break;
+		case JitterBuffer.FULL:
+			stats.overflow();
+			break;
+		}
+		return ret;
+	}
+
+	// queue a frame from a redundant block
+	private int insert(JitterBuffer jitter, int start_time, int end_time,
+			VoMP.Codec codec, int offset, int dataLen, long now)
+			throws IOException {
+		// only audio codecs have a preference
+		if (codec.preference <= 0 || dataLen > codec.blockSize)
+			throw new IOException("Invalid redundant block of " + codec);
+
+		JitterBuffer.Frame buff = jitter.obtain();
+		if (buff == null) {
+			stats.overflow();
+			return JitterBuffer.FULL;
+		}
+		System.arraycopy(redundantBuff, offset, buff.buff, 0, dataLen);
+		return insert(jitter, buff, start_time, end_time, codec, dataLen,
+				now);
+	}
+
+	// keep a copy of an earlier frame, in case it doesn't arrive
+	private void insertCopy(int start_time, int end_time, VoMP.Codec codec,
+			int dataLen, long now) throws IOException {
+		if (codec.preference <= 0 || dataLen > codec.blockSize)
+			throw new IOException("Invalid redundant block of " + codec);
+
+		if (this.copies == null)
+			this.copies = new JitterBuffer(JITTER_CAPACITY, MAX_FRAME_BYTES,
+					codec.timespan);
+		JitterBuffer copies = this.copies;
+		if (copies.isDuplicate(start_time))
+			return;
+		JitterBuffer.Frame buff = copies.obtain();
+		if (buff == null)
+			return;
+		System.arraycopy(redundantBuff, 3, buff.buff, 0, dataLen);
+		buff.codec = codec;
+		buff.dataLen = dataLen;
+		buff.sampleStart = start_time;
+		buff.sampleEnd = end_time;
+		buff.arrived = now;
+		copies.insert(buff);
+	}
+
+	// a frame that carries a copy of the previous frame. Keep the copy if
+	// the previous frame hasn't arrived, then queue this frame as normal
+	private int receivedRedundant(JitterBuffer jitter, int start_time,
+			int end_time, InputStream in, int byteCount, long now)
+			throws IOException {
+		if (byteCount < 3 || byteCount > redundantBuff.length)
+			throw new IOException("Invalid redundant audio block");
+		readFully(in, redundantBuff, byteCount);
+
+		VoMP.Codec codec = VoMP.Codec.getCodec(redundantBuff[0] & 0xFF);
+		VoMP.Codec previous = VoMP.Codec.getCodec(redundantBuff[1] & 0xFF);
+		int previousLen = redundantBuff[2] & 0xFF;
+		int offset = 3 + previousLen;
+		if (offset > byteCount)
+			throw new IOException("Invalid redundant audio block");
+
+		if (previousLen > 0 && previous != VoMP.Codec.None) {
+			int previousStart = start_time - previous.timespan;
+			// only if we haven't got it, and could still play it
+			if (start_time - 1 > lastSampleEnd
+					&& !jitter.isDuplicate(previousStart))
+				insertCopy(previousStart, start_time - 1, previous,
+						previousLen, now);
+		}
+
+		if (arrived(jitter, start_time, end_time, now))
+			insert(jitter, start_time, end_time, codec, offset, byteCount
+					- offset, now);
+		return byteCount;
+	}
+
+	boolean isEmpty() {
+		JitterBuffer jitter = this.jitterBuffer;
+		return jitter == null || jitter.size() == 0;
+	}
+
+	// playback thread
+
+	private OutputStream decoderFor(VoMP.Codec codec) throws IOException {
+		OutputStream decoder = decoders.get(codec);
+		if (decoder != null)
+			return decoder;
+		switch (codec) {
+		case Pcm:
+			decoder = this.concealOutput;
+			break;
+		case Alaw8:
+			decoder = new DecompressOutputStream(this.concealOutput, true);
+			break;
+		case Ulaw8:
+			decoder = new DecompressOutputStream(this.concealOutput, false);
+			break;
+		case ComfortNoise:
+			decoder = new ComfortNoiseOutputStream(this.concealOutput);
+			break;
+		default:
+			decoder = new DecodeOutputStream(this.concealOutput,
+					Codecs.open(codec));
+		}
+		decoders.put(codec, decoder);
+		return decoder;
+	}
+
+	// a frame has been written to the sink, and will be heard at heardNanos
+	protected void framePlayed(int sampleStart, long heardNanos) {
+	}
+
+	/**
+	 * Play, skip or make up the next frame of audio, if it is time to.
+	 *
+	 * @return how long (ns) the caller may wait before calling again, new
+	 *         audio may arrive before then
+	 */
+	long play(long now) throws IOException {
+		JitterBuffer.Frame buff = null;
+		int generateSilence = 0;
+		JitterBuffer jitter = this.jitterBuffer;
+		JitterBuffer copies = this.copies;
+		// copies of audio we have played or skipped are no use now
+		if (copies != null)
+			copies.discardBefore(lastSampleEnd + 1);
+		// where the frame we play came from
+		JitterBuffer source = jitter;
+
+		int playbackLatency = sink.unplayedFrameCount();
+
+		// work out when we must make a decision about playing some
+		// extra silence
+		long audioRunsOutAt = now - MIN_BUFFER
+				+ (long) (playbackLatency * 1000000000.0 / SAMPLE_RATE);
+
+		int queuedLengthInMs = jitter == null ? 0 : jitter
+				.getLastQueuedSampleEnd() - lastSampleEnd;
+		if (queuedLengthInMs < smallestQueue)
+			smallestQueue = queuedLengthInMs;
+
+		if (queuedLengthInMs > largestQueue)
+			largestQueue = queuedLengthInMs;
+
+		if (queuedLengthInMs < waitForBuffer) {
+			// After a buffer underflow, wait until we have some more
+			// buffer before restarting playback
+		} else {
+			waitForBuffer = -1;
+			if (jitter != null)
+				buff = jitter.peek();
+		}
+
+		if (buff != null) {
+			int silenceGap = buff.sampleStart - (lastSampleEnd + 1);
+
+			if (silenceGap > 0) {
+
+				// try to wait until the last possible moment before
+				// giving up and playing the buffer we have
+				if (audioRunsOutAt <= now) {
+					JitterBuffer.Frame copy = copies == null ? null : copies
+							.find(lastSampleEnd + 1);
+					if (copy != null) {
+						// the other party sent a copy of it with a later
+						// frame, play that instead
+						copies.remove(copy);
+						stats.recovered();
+						source = copies;
+						buff = copy;
+					} else {
+						stats.missing();
+						// we may have a copy of the end of the gap
+						int gapEnd = buff.sampleStart;
+						copy = copies == null ? null : copies.find(gapEnd
+								- copies.timespan);
+						if (copy != null && copy.sampleEnd + 1 == gapEnd)
+							gapEnd = copy.sampleStart;
+						generateSilence = gapEnd - (lastSampleEnd + 1);
+						// while we waited, running out of audio will have
+						// filled most of a long gap already
+						if (generateSilence > MAX_CONCEAL)
+							generateSilence = MAX_CONCEAL;
+						lastSampleEnd = gapEnd - 1;
+						buff = null;
+					}
+				} else
+					buff = null;
+			} else {
+				// we either need to play it or skip it, so remove it from
+				// the queue
+				jitter.remove(buff);
+
+				if (silenceGap < 0) {
+					// sample arrived too late, we might get better
+					// audio if we add a little extra latency
+					jitter.release(buff);
+					stats.playedLate();
+					return 0;
+				}
+
+				int rate = playout.getRate(queuedLengthInMs, buff.sampleEnd
+						+ 1 - buff.sampleStart);
+				if (rate >= PlayoutPolicy.DROP_FRAME) {
+					// if we are way behind, drop some audio but count it as
+					// played so we don't immediately play silence or try to
+					// wait for this "missing" audio packet to arrive
+					stats.dropped();
+					lastSampleEnd = buff.sampleEnd;
+					jitter.release(buff);
+					return 0;
+				}
+				// otherwise converge on the target smoothly, and keep up
+				// with the sender's clock
+				this.stretchOutput.setRate(rate);
+				this.stretchOutput.setDrift(drift.getDriftPpm());
+			}
+		} else {
+			// we can wait for more audio, but if we've got nothing else to
+			// play, we should play some silence to increase our latency
+			// buffer
+			if (audioRunsOutAt <= now) {
+
+				// write silence until we have enough audio buffered to cope
+				// with the jitter we've seen
+				waitForBuffer = playout.getTargetDelay();
+				stats.underrun();
+				generateSilence = 20;
+			}
+		}
+
+		if (generateSilence > 0) {
+			// fill the gap with made up audio, fading to silence, then
+			// check the packet queue again (8 samples per millisecond)
+			this.concealOutput.conceal(generateSilence * 8);
+			stats.concealed(generateSilence);
+			return 0;
+		}
+
+		if (buff != null) {
+			// write the audio sample, then check the packet queue again
+			lastSampleEnd = buff.sampleEnd;
+			try {
+				decoderFor(buff.codec).write(buff.buff, 0, buff.dataLen);
+				int duration = buff.sampleEnd + 1 - buff.sampleStart;
+				playedMs += duration;
+				// when this frame will be heard, after the audio already
+				// queued in the sink
+				long heard = now + playbackLatency * 1000000000L
+						/ SAMPLE_RATE;
+				stats.played(duration, queuedLengthInMs, heard - buff.arrived);
+				if (buff.codec == VoMP.Codec.ComfortNoise)
+					stats.noise(duration);
+				framePlayed(buff.sampleStart, heard);
+			} finally {
+				// even if it couldn't be decoded, or we would run out of
+				// frames
+				source.release(buff);
+			}
+			return 0;
+		}
+
+		// wait only until our audio buffer is getting close to empty
+		return audioRunsOutAt - now;
+	}
+
+	int getSmallestQueue() {
+		return smallestQueue;
+	}
+
+	int getLargestQueue() {
+		return largestQueue;
+	}
+
+	void resetQueueRange() {
+		smallestQueue = Integer.MAX_VALUE;
+		largestQueue = 0;
+	}
+
+	int getTargetDelay() {
+		return playout.getTargetDelay();
+	}
+
+	int getDriftPpm() {
+		return drift.getDriftPpm();
+	}
+
+	long getPlayedMs() {
+		return playedMs;
+	}
+
+	void close() throws IOException {
+		for (OutputStream decoder : decoders.values()) {
+			if (decoder instanceof DecodeOutputStream)
+				((DecodeOutputStream) decoder).release();
+		}
+		decoders.clear();
+		JitterBuffer jitter = this.jitterBuffer;
+		if (jitter != null)
+			jitter.clear();
+		JitterBuffer copies = this.copies;
+		if (copies != null)
+			copies.clear();
+		concealOutput.close();
+	}
+}
@@ -0,0 +1,26 @@
+package org.servalproject.audio;
+
+// Decides how much received audio AudioPlayer should hold back before
+// playing it. Trading latency against the risk of running out of audio when
+// packets are delayed.
+public interface PlayoutPolicy {
+	// returned by getRate() to throw away the next frame
+	public static final int DROP_FRAME = 100;
+
+	// A frame arrived from the network, called on the monitor thread before
+	// the frame is queued, even if it arrived too late to be played.
+	public void arrived(int sampleStart, int sampleEnd, long nanos);
+
+	// How much audio (ms) to queue before starting playback, or restarting
+	// after we have run out.
+	public int getTargetDelay();
+
+	// The playback thread is about to play a frame of frameMs, while
+	// queuedMs of audio is waiting (including this frame). Return the
+	// percentage to speed up (positive) or slow down (negative) playback, or
+	// DROP_FRAME to throw the frame away.
+	public int getRate(int queuedMs, int frameMs);
+
+	// Forget everything we have measured, before a new call starts.
+	public void reset();
+}
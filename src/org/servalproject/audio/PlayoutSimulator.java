@@ -0,0 +1,358 @@
+package org.servalproject.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.servalproject.batphone.VoMP;
+
+import uk.co.mmscomputing.sound.G711;
+
+// Plays a synthetic call through PlayoutEngine on a simulated clock, so
+// playout policies can be compared without phones.
+//
+// Frames are "captured" every 20ms by a sender whose clock may drift, then
+// delayed, reordered or lost by a network model, and played into a virtual
+// sink that consumes 8000 samples per second. We report the mouth to ear
+// latency of every frame we play, and the call stats.
+//
+// Run with key=value arguments, eg; seconds=60 delay=80 jitter=30
+// distribution=pareto reorder=0.02 loss=0.01 burst=3 drift=100 talk=0.4
+// redundancy=true policy=fixed:120:240
+public class PlayoutSimulator {
+	public enum Distribution {
+		UNIFORM, EXPONENTIAL, PARETO
+	}
+
+	static final int FRAME_MS = 20;
+	static final int FRAME_SAMPLES = FRAME_MS * 8;
+
+	// call length
+	public int seconds = 60;
+	// fixed network delay (ms), plus jitter drawn from a distribution
+	public int delay = 50;
+	public int jitter = 20;
+	public Distribution distribution = Distribution.EXPONENTIAL;
+	// chance that a frame is held back behind the next one
+	public double reorder = 0;
+	// average loss rate, and the average length of a burst of losses
+	// (Gilbert-Elliott model)
+	public double loss = 0;
+	public double burst = 1;
+	// the sender's clock runs fast (+) or slow (-) by this many ppm
+	public int drift = 0;
+	// fraction of each 3s that the sender talks for, the rest is sent as
+	// comfort noise
+	public double talk = 1;
+	// send an a-law copy of each frame with the next one
+	public boolean redundancy = false;
+	// size of the sink's buffer (ms), like AudioTrack writes block once
+	// this is full
+	public int sinkBuffer = 60;
+	public long seed = 1;
+	public PlayoutPolicy policy = new AdaptivePlayout();
+
+	public final CallStats stats = new CallStats();
+	// mouth to ear latency (ns) of every frame we played, sorted once the
+	// call is over, so the percentiles we report are exact
+	private long mouthToEar[] = new long[0];
+	public int framesPlayed;
+	// samples of silence the sink had to play, when we didn't keep up
+	public long sinkStarved;
+	// samples the time stretcher added and removed
+	public long stretchAdded;
+	public long stretchRemoved;
+	// the drift (ppm) the engine measured
+	public int driftEstimate;
+
+	// consumes audio in real time, as far as the simulated clock is
+	// concerned
+	private static class VirtualSink extends OutputStream implements
+			AudioSink {
+		final int capacity;
+		long written;
+		long played;
+		long starved;
+		long lastNanos;
+		long carry;
+		// when the last write would have returned
+		long blockedUntil;
+
+		VirtualSink(int capacity, long now) {
+			this.capacity = capacity;
+			// start with a full buffer of silence, as AudioOutputStream does
+			this.written = capacity;
+			this.lastNanos = now;
+			this.blockedUntil = now;
+		}
+
+		void advance(long now) {
+			long elapsed = (now - lastNanos) * 8000 + carry;
+			long samples = elapsed / 1000000000L;
+			carry = elapsed % 1000000000L;
+			lastNanos = now;
+			played += samples;
+			if (played > written) {
+				starved += played - written;
+				played = written;
+			}
+		}
+
+		@Override
+		public int unplayedFrameCount() {
+			return (int) (written - played);
+		}
+
+		@Override
+		public long playbackPosition() {
+			return played;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) {
+			written += count / 2;
+			long excess = written - capacity - played;
+			if (excess > 0)
+				blockedUntil = lastNanos + (excess * 1000000000L - carry + 7999)
+						/ 8000;
+		}
+
+		@Override
+		public void write(int oneByte) throws IOException {
+			throw new IOException("Do not support simple write()");
+		}
+	}
+
+	private class Engine extends PlayoutEngine {
+		final long captured[];
+
+		Engine(VirtualSink sink, long captured[]) {
+			super(sink, sink, policy, PlayoutSimulator.this.stats);
+			this.captured = captured;
+		}
+
+		@Override
+		protected void framePlayed(int sampleStart, long heardNanos) {
+			// the audio at the start of the frame was captured a whole
+			// frame before the frame was ready to send
+			int frame = sampleStart / FRAME_MS;
+			if (framesPlayed == mouthToEar.length) {
+				long grown[] = new long[framesPlayed * 2 + 1];
+				System.arraycopy(mouthToEar, 0, grown, 0, framesPlayed);
+				mouthToEar = grown;
+			}
+			mouthToEar[framesPlayed++] = heardNanos
+					- (captured[frame] - FRAME_MS * 1000000L);
+		}
+	}
+
+	private double jitterMs(Random random) {
+		switch (distribution) {
+		case UNIFORM:
+			return random.nextDouble() * 2 * jitter;
+		case EXPONENTIAL:
+			return -Math.log(1 - random.nextDouble()) * jitter;
+		default:
+			// pareto with shape 2, scaled to the same mean
+			return jitter / 2.0 / Math.sqrt(1 - random.nextDouble());
+		}
+	}
+
+	public void run() throws IOException {
+		Random random = new Random(seed);
+		int frames = Math.max(seconds, 0) * 1000 / FRAME_MS;
+		mouthToEar = new long[frames];
+		framesPlayed = 0;
+		if (frames == 0)
+			return;
+		final long captured[] = new long[frames];
+		final long arrival[] = new long[frames];
+		boolean lost[] = new boolean[frames];
+
+		// Gilbert-Elliott, stay in the lossy state for burst frames on
+		// average, and enter it often enough to lose loss of all frames
+		double leaveBad = 1 / Math.max(burst, 1);
+		double enterBad = loss >= 1 ? 1 : loss * leaveBad / (1 - loss);
+		boolean bad = false;
+
+		for (int i = 0; i < frames; i++) {
+			captured[i] = (long) ((i + 1) * FRAME_MS * 1000000L / (1 + drift / 1e6));
+			bad = bad ? random.nextDouble() >= leaveBad
+					: random.nextDouble() < enterBad;
+			lost[i] = bad;
+			long delayNs = (long) ((delay + jitterMs(random)) * 1000000);
+			if (random.nextDouble() < reorder)
+				delayNs += 2 * FRAME_MS * 1000000L;
+			arrival[i] = captured[i] + delayNs;
+		}
+
+		Integer order[] = new Integer[frames];
+		for (int i = 0; i < frames; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long d = arrival[a] - arrival[b];
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+
+		byte noise[] = new byte[] {
+			50
+		};
+		// a tone, so concealment and stretching have something to work on
+		byte payload[] = new byte[FRAME_SAMPLES * 2];
+		for (int i = 0; i < FRAME_SAMPLES; i++) {
+			short s = (short) (8000 * Math.sin(2 * Math.PI * 400 * i / 8000));
+			payload[i * 2] = (byte) s;
+			payload[i * 2 + 1] = (byte) (s >> 8);
+		}
+
+		// the tone, after an a-law copy of the previous frame
+		byte redundant[] = new byte[3 + FRAME_SAMPLES + payload.length];
+		redundant[0] = (byte) VoMP.Codec.Pcm.code;
+		redundant[1] = (byte) VoMP.Codec.Alaw8.code;
+		redundant[2] = (byte) FRAME_SAMPLES;
+		G711.ALAW.encode(payload, 0, redundant, 3, FRAME_SAMPLES);
+		System.arraycopy(payload, 0, redundant, 3 + FRAME_SAMPLES,
+				payload.length);
+
+		long start = arrival[order[0]];
+		VirtualSink sink = new VirtualSink(sinkBuffer * 8, start);
+		Engine engine = new Engine(sink, captured);
+
+		long nextPlay = start;
+		int next = 0;
+		long now = start;
+		// until everything that arrives has been played
+		while (true) {
+			long nextArrival = Long.MAX_VALUE;
+			while (next < frames && lost[order[next]])
+				next++;
+			if (next < frames)
+				nextArrival = arrival[order[next]];
+			else if (engine.isEmpty())
+				break;
+
+			if (nextArrival <= nextPlay) {
+				now = nextArrival;
+				sink.advance(now);
+				int i = order[next++];
+				boolean wasEmpty = engine.isEmpty();
+				byte data[] = payload;
+				VoMP.Codec codec = VoMP.Codec.Pcm;
+				if (i % 150 >= talk * 150) {
+					data = noise;
+					codec = VoMP.Codec.ComfortNoise;
+				} else if (redundancy && i > 0) {
+					data = redundant;
+					codec = VoMP.Codec.Redundant;
+				}
+				engine.receivedAudio(i * FRAME_MS, i * FRAME_MS + FRAME_MS
+						- 1, codec, new ByteArrayInputStream(data),
+						data.length, now);
+				if (wasEmpty && nextPlay > now)
+					nextPlay = Math.max(now, sink.blockedUntil);
+				continue;
+			}
+
+			now = nextPlay;
+			sink.advance(now);
+			long wait = engine.play(now);
+			// the playback thread can't do anything else until its write
+			// returns
+			nextPlay = Math.max(now + wait, sink.blockedUntil);
+		}
+		sinkStarved = sink.starved;
+		stretchAdded = engine.stretchOutput.getAddedSamples();
+		stretchRemoved = engine.stretchOutput.getRemovedSamples();
+		driftEstimate = engine.getDriftPpm();
+		engine.close();
+		Arrays.sort(mouthToEar, 0, framesPlayed);
+	}
+
+	// in ns, of the frames we played
+	public long getMouthToEar(double fraction) {
+		if (framesPlayed == 0)
+			return 0;
+		int i = (int) Math.ceil(framesPlayed * fraction) - 1;
+		return mouthToEar[Math.max(i, 0)];
+	}
+
+	public String report() {
+		long sum = 0;
+		for (int i = 0; i < framesPlayed; i++)
+			sum += mouthToEar[i];
+		return "mouth to ear: n=" + framesPlayed + ", avg="
+				+ (framesPlayed == 0 ? 0 : sum / framesPlayed / 1000)
+				+ "us, 50%=" + getMouthToEar(0.5) / 1000 + "us, 95%="
+				+ getMouthToEar(0.95) / 1000 + "us, 99%="
+				+ getMouthToEar(0.99) / 1000 + "us, max="
+				+ getMouthToEar(1) / 1000 + "us"
+				+ "\nsink starved " + sinkStarved / 8
+				+ "ms, stretched +" + stretchAdded / 8 + "ms -"
+				+ stretchRemoved / 8 + "ms, drift " + driftEstimate
+				+ "ppm, loss " + stats.getLossPercent()
+				+ "%\n" + stats;
+	}
+
+	private static PlayoutPolicy parsePolicy(String value) {
+		if (value.startsWith("fixed:")) {
+			// fixed:target or fixed:target:max
+			String parts[] = value.split(":");
+			int target = Integer.parseInt(parts[1]);
+			int max = parts.length > 2 ? Integer.parseInt(parts[2]) : target * 2;
+			return new FixedPlayout(target, max);
+		}
+		if (value.equals("adaptive"))
+			return new AdaptivePlayout();
+		throw new IllegalArgumentException("Unknown policy " + value);
+	}
+
+	public void set(String key, String value) {
+		if (key.equals("seconds"))
+			seconds = Integer.parseInt(value);
+		else if (key.equals("delay"))
+			delay = Integer.parseInt(value);
+		else if (key.equals("jitter"))
+			jitter = Integer.parseInt(value);
+		else if (key.equals("distribution"))
+			distribution = Distribution.valueOf(value.toUpperCase());
+		else if (key.equals("reorder"))
+			reorder = Double.parseDouble(value);
+		else if (key.equals("loss"))
+			loss = Double.parseDouble(value);
+		else if (key.equals("burst"))
+			burst = Double.parseDouble(value);
+		else if (key.equals("drift"))
+			drift = Integer.parseInt(value);
+		else if (key.equals("talk"))
+			talk = Double.parseDouble(value);
+		else if (key.equals("redundancy"))
+			redundancy = Boolean.parseBoolean(value);
+		else if (key.equals("sinkBuffer"))
+			sinkBuffer = Integer.parseInt(value);
+		else if (key.equals("seed"))
+			seed = Long.parseLong(value);
+		else if (key.equals("policy"))
+			policy = parsePolicy(value);
+		else
+			throw new IllegalArgumentException("Unknown setting " + key);
+	}
+
+	public static void main(String args[]) throws IOException {
+		PlayoutSimulator sim = new PlayoutSimulator();
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i < 0)
+				throw new IllegalArgumentException("Expected key=value, not "
+						+ arg);
+			sim.set(arg.substring(0, i), arg.substring(i + 1));
+		}
+		sim.run();
+		System.out.println(sim.report());
+	}
+}
@@ -0,0 +1,46 @@
+package org.servalproject.audio;
+
+// Tracks the shortest our playback queue has been recently. If the queue
+// never got close to empty, we are holding more audio than we need.
+class QueueWindow {
+	// number of frames in each window, 1s of 20ms frames
+	static final int WINDOW = 50;
+
+	private int count;
+	private int current;
+	private int previous;
+
+	QueueWindow() {
+		reset();
+	}
+
+	// record the current queue length, and return the smallest it has been
+	// over the last one to two windows, or 0 until we have seen a whole
+	// window
+	int add(int queuedMs) {
+		if (queuedMs < current)
+			current = queuedMs;
+		if (++count >= WINDOW) {
+			previous = current;
+			current = Integer.MAX_VALUE;
+			count = 0;
+		}
+		if (previous == Integer.MAX_VALUE)
+			return 0;
+		return Math.min(previous, current);
+	}
+
+	// we threw away some audio, so the queue would have been shorter
+	void dropped(int ms) {
+		if (current != Integer.MAX_VALUE)
+			current -= ms;
+		if (previous != Integer.MAX_VALUE)
+			previous -= ms;
+	}
+
+	void reset() {
+		count = 0;
+		current = Integer.MAX_VALUE;
+		previous = Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,226 @@
+package org.servalproject.audio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Plays 8kHz 16bit PCM slightly faster or slower than real time, so the
+// playback queue can be shrunk or grown without dropping whole frames or
+// inserting silence.
+//
+// Each block written is treated as one frame of audio. When we need to
+// adjust the rate, we search the frame for a segment that closely matches
+// its start (usually one or more pitch periods later), then either skip
+// ahead to that segment or repeat the audio before it, cross fading the
+// join (WSOLA). Frames are processed on their own, so this adds no latency.
+// The rate limits how often we modify a frame.
+//
+// A drift rate, in parts per million, can be set to make up for a sender
+// whose clock is slightly faster or slower than ours. It applies whenever
+// the rate is 0, so it usually modifies a frame only every few seconds.
+public class TimeStretchOutputStream extends FilterOutputStream {
+	// the most we will speed up or slow down, in percent
+	public static final int MAX_RATE = 10;
+	// the most we will correct for clock drift, in ppm
+	public static final int MAX_DRIFT = 10000;
+	// search range, 400Hz - 80Hz pitch at 8kHz
+	static final int MIN_LAG = 20;
+	static final int MAX_LAG = 100;
+	// samples compared, and cross faded at the join
+	static final int OVERLAP = 60;
+	// segments must be at least this similar, unless the frame is quiet
+	static final float MIN_CORRELATION = 0.7f;
+	// mean square sample value below which a frame is treated as quiet
+	static final int QUIET_ENERGY = 64 * 64;
+
+	private int rate;
+	// samples we may add or remove, earned at the current rate
+	private int credit;
+	private int driftPpm;
+	// millionths of a sample we may add or remove, earned from the drift
+	private long driftCredit;
+	private short samples[] = new short[0];
+	private byte workBuff[] = new byte[0];
+
+	private long removed;
+	private long added;
+
+	public TimeStretchOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	// percentage to speed up (positive) or slow down (negative) playback
+	public void setRate(int rate) {
+		if (rate > MAX_RATE)
+			rate = MAX_RATE;
+		if (rate < -MAX_RATE)
+			rate = -MAX_RATE;
+		if (rate == 0 || (rate < 0) != (this.rate < 0))
+			credit = 0;
+		this.rate = rate;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	// parts per million to speed up (positive) or slow down (negative)
+	// playback, while the rate is 0
+	public void setDrift(int ppm) {
+		if (ppm > MAX_DRIFT)
+			ppm = MAX_DRIFT;
+		if (ppm < -MAX_DRIFT)
+			ppm = -MAX_DRIFT;
+		if (ppm == 0 || (ppm < 0) != (driftPpm < 0))
+			driftCredit = 0;
+		driftPpm = ppm;
+	}
+
+	public int getDrift() {
+		return driftPpm;
+	}
+
+	// samples we have skipped over
+	public long getRemovedSamples() {
+		return removed;
+	}
+
+	// samples we have repeated
+	public long getAddedSamples() {
+		return added;
+	}
+
+	// find the offset of the segment that best matches the start of the
+	// frame, or -1 if nothing matches well enough
+	private int bestLag(int count) {
+		int maxLag = count - OVERLAP;
+		if (maxLag > MAX_LAG)
+			maxLag = MAX_LAG;
+
+		long e0 = 0;
+		for (int i = 0; i < OVERLAP; i++)
+			e0 += samples[i] * samples[i];
+
+		int best = -1;
+		float bestScore = 0;
+		long eL = 0;
+		for (int i = MIN_LAG; i < MIN_LAG + OVERLAP; i++)
+			eL += samples[i] * samples[i];
+
+		for (int lag = MIN_LAG; lag <= maxLag; lag++) {
+			if (lag > MIN_LAG) {
+				// slide the energy window along by one sample
+				int o = samples[lag - 1];
+				int n = samples[lag + OVERLAP - 1];
+				eL += n * n - o * o;
+			}
+			long c = 0;
+			for (int i = 0; i < OVERLAP; i++)
+				c += samples[i] * samples[lag + i];
+			if (c <= 0 || e0 == 0 || eL == 0)
+				continue;
+			float score = (float) ((double) c / Math.sqrt((double) e0 * eL));
+			if (score > bestScore) {
+				bestScore = score;
+				best = lag;
+			}
+		}
+
+		boolean quiet = e0 < (long) QUIET_ENERGY * OVERLAP;
+		if (quiet)
+			return best < 0 ? maxLag : best;
+		if (bestScore < MIN_CORRELATION)
+			return -1;
+		return best;
+	}
+
+	private int mix(int from, int to, int i) {
+		return (from * (OVERLAP - i) + to * i) / OVERLAP;
+	}
+
+	private void put(int pos, int value) {
+		workBuff[pos * 2] = (byte) value;
+		workBuff[pos * 2 + 1] = (byte) (value >> 8);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count)
+			throws IOException {
+		int len = count >> 1;
+		// speed up if positive, slow down if negative
+		int direction = rate != 0 ? rate : driftPpm;
+		if (direction == 0 || (count & 1) != 0 || len < MIN_LAG + OVERLAP) {
+			out.write(buffer, offset, count);
+			return;
+		}
+
+		int available;
+		if (rate != 0) {
+			credit += (len * (rate < 0 ? -rate : rate) + 50) / 100;
+			if (credit > MAX_LAG * 2)
+				credit = MAX_LAG * 2;
+			available = credit;
+		} else {
+			driftCredit += (long) len * (driftPpm < 0 ? -driftPpm : driftPpm);
+			if (driftCredit > MAX_LAG * 2 * 1000000L)
+				driftCredit = MAX_LAG * 2 * 1000000L;
+			available = (int) (driftCredit / 1000000);
+		}
+		if (available < MIN_LAG) {
+			out.write(buffer, offset, count);
+			return;
+		}
+
+		if (samples.length < len)
+			samples = new short[len];
+		for (int i = 0; i < len; i++)
+			samples[i] = (short) ((buffer[offset + i * 2] & 0xFF) | (buffer[offset
+					+ i * 2 + 1] << 8));
+
+		int lag = bestLag(len);
+		if (lag < 0 || lag > available) {
+			out.write(buffer, offset, count);
+			return;
+		}
+		if (rate != 0)
+			credit -= lag;
+		else
+			driftCredit -= lag * 1000000L;
+
+		int outLen = direction > 0 ? len - lag : len + lag;
+		if (workBuff.length < outLen * 2)
+			workBuff = new byte[(len + MAX_LAG) * 2];
+
+		int pos = 0;
+		if (direction > 0) {
+			// skip ahead to the matching segment
+			for (int i = 0; i < OVERLAP; i++)
+				put(pos++, mix(samples[i], samples[lag + i], i));
+			for (int i = lag + OVERLAP; i < len; i++)
+				put(pos++, samples[i]);
+			removed += lag;
+		} else {
+			// play up to the matching segment, then jump back and play it
+			// all again
+			for (int i = 0; i < lag; i++)
+				put(pos++, samples[i]);
+			for (int i = 0; i < OVERLAP; i++)
+				put(pos++, mix(samples[lag + i], samples[i], i));
+			for (int i = OVERLAP; i < len; i++)
+				put(pos++, samples[i]);
+			added += lag;
+		}
+		out.write(workBuff, 0, pos * 2);
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		this.write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		throw new IOException(getClass().getName()
+				+ ".write(int) :\n\tDo not support simple write().");
+	}
+}
@@ -0,0 +1,113 @@
+package org.servalproject.audio;
+
+// Decides whether each frame of 8kHz 16bit PCM contains speech, or only
+// background noise that the other party can make up for themselves.
+//
+// We track the energy of the background noise, falling straight to any
+// quieter frame and rising slowly otherwise. Frames well above it are
+// speech. Fricatives ("s", "f") are quiet but hiss, so a frame only a
+// little louder than the noise also counts if it crosses zero much more
+// often than the noise does. Once speech stops, we keep calling it speech
+// for a while so we don't clip the end of words.
+class VoiceActivityDetector {
+	// frames we keep sending after speech stops, 200ms at 20ms per frame
+	static final int HANGOVER = 10;
+	// how much louder than the noise speech must be, 6dB
+	static final double SPEECH_RATIO = 4;
+	// and fricatives, 3dB
+	static final double FRICATIVE_RATIO = 2;
+	// how fast the noise floor rises while we hear speech, per frame
+	static final double NOISE_RISE = 1.002;
+	// mean square below which nothing is speech, about -55dBov
+	static final double MIN_ENERGY = 60 * 60;
+	// the quietest comfort noise we describe, in -dBov
+	static final int MAX_LEVEL = 127;
+
+	// mean square of the background noise, < 0 until the first frame
+	private double noise = -1;
+	// and of the frames we decided were silent, for the noise level
+	private double silent = -1;
+	// zero crossings per 100 samples of the background noise
+	private double noiseCrossings;
+	private int hangover;
+	private boolean speech = true;
+
+	/**
+	 * @return true if this frame should be sent, false if it is silence
+	 */
+	boolean process(byte pcm[], int offset, int length) {
+		int samples = length >> 1;
+		if (samples == 0)
+			return speech;
+
+		long sum = 0;
+		int crossings = 0;
+		int last = 0;
+		for (int i = 0; i < samples; i++) {
+			int s = (short) ((pcm[offset + i * 2] & 0xFF) | (pcm[offset + i
+					* 2 + 1] << 8));
+			sum += s * s;
+			if (i > 0 && (s < 0) != (last < 0))
+				crossings++;
+			last = s;
+		}
+		double energy = (double) sum / samples;
+		double crossRate = crossings * 100.0 / samples;
+
+		if (noise < 0) {
+			noise = energy;
+			noiseCrossings = crossRate;
+		}
+
+		boolean active = energy > MIN_ENERGY
+				&& (energy > noise * SPEECH_RATIO || (energy > noise
+						* FRICATIVE_RATIO && crossRate > noiseCrossings * 1.5));
+
+		if (energy < noise) {
+			noise = energy;
+		} else if (!active) {
+			noise += (energy - noise) / 16;
+		} else {
+			// if the background gets louder and stays that way, stop
+			// calling it speech after 15s or so. A fixed ratio, so loud
+			// speech doesn't drag it up any faster
+			noise *= NOISE_RISE;
+		}
+
+		if (!active) {
+			noiseCrossings += (crossRate - noiseCrossings) / 16;
+			silent = silent < 0 ? energy : silent + (energy - silent) / 8;
+		}
+
+		if (active)
+			hangover = HANGOVER;
+		else if (hangover > 0)
+			hangover--;
+		speech = active || hangover > 0;
+		return speech;
+	}
+
+	boolean isSpeech() {
+		return speech;
+	}
+
+	// the level of the background noise in -dBov, for a comfort noise
+	// descriptor
+	int getNoiseLevel() {
+		if (silent <= 0)
+			return MAX_LEVEL;
+		double dbov = 10 * Math.log10(silent / (32767.0 * 32767.0));
+		int level = (int) Math.round(-dbov);
+		if (level < 0)
+			return 0;
+		return level > MAX_LEVEL ? MAX_LEVEL : level;
+	}
+
+	void reset() {
+		noise = -1;
+		silent = -1;
+		noiseCrossings = 0;
+		hangover = 0;
+		speech = true;
+	}
+}
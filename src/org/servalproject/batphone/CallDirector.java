@@ -1,6 +1,7 @@
 package org.servalproject.batphone;
 
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
 
 import org.servalproject.PeerListAdapter;
 import org.servalproject.R;
@@ -8,11 +9,10 @@ import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.servald.DnaResult;
 import org.servalproject.servald.IPeer;
 import org.servalproject.servald.LookupResults;
-import org.servalproject.servald.ServalD;
+import org.servalproject.servald.ServalDClient;
 
 import android.app.ListActivity;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -25,6 +25,7 @@ public class CallDirector extends ListActivity {
 	String dialed_number;
 	PeerListAdapter adapter;
 	private boolean searching = false;
+	private ServalDClient.Call<Void> lookup;
 	Button cancel;
 	Button search;
 
@@ -75,6 +76,9 @@ public class CallDirector extends ListActivity {
 	@Override
 	protected void onPause() {
 		super.onPause();
+		// nobody is waiting for the results any more
+		if (lookup != null)
+			lookup.cancel(false);
 		finish();
 	}
 
@@ -87,39 +91,43 @@ public class CallDirector extends ListActivity {
 		searching = true;
 		adapter.notifyDataSetChanged();
 
-		new AsyncTask<String, DnaResult, Void>() {
+		lookup = ServalDClient.getInstance().dnaLookup(new LookupResults() {
 			@Override
-			protected void onProgressUpdate(DnaResult... values) {
-				if (adapter.getPosition(values[0]) < 0)
-					adapter.add(values[0]);
+			public void result(final DnaResult result) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (adapter.getPosition(result) < 0)
+							adapter.add(result);
+					}
+				});
 			}
-
+		}, dialed_number, 5000, new ServalDClient.Callback<Void>() {
 			@Override
-			protected void onPostExecute(Void result) {
-				search.setEnabled(true);
-				search.setText("Search");
-				searching = false;
-				adapter.notifyDataSetChanged();
-
-				super.onPostExecute(result);
+			public void result(Void result) {
+				searchFinished();
 			}
 
 			@Override
-			protected Void doInBackground(String... params) {
-				try {
-					ServalD.dnaLookup(new LookupResults() {
-						@Override
-						public void result(DnaResult result) {
-							publishProgress(result);
-						}
-					}, params[0], 5000);
-				} catch (Exception e) {
+			public void failed(Throwable e) {
+				if (!(e instanceof CancellationException))
 					Log.e("CallDirector", e.toString(), e);
-				}
-				return null;
+				searchFinished();
 			}
+		});
+	}
 
-		}.execute(dialed_number);
+	private void searchFinished() {
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				lookup = null;
+				search.setEnabled(true);
+				search.setText("Search");
+				searching = false;
+				adapter.notifyDataSetChanged();
+			}
+		});
 	}
 
 	@Override
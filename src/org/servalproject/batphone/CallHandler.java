@@ -1,14 +1,17 @@
 package org.servalproject.batphone;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.audio.AudioPlayer;
 import org.servalproject.audio.AudioRecorder;
+import org.servalproject.audio.Codecs;
 import org.servalproject.audio.Oslec;
 import org.servalproject.batphone.VoMP.State;
 import org.servalproject.servald.DnaResult;
@@ -40,6 +43,19 @@ public class CallHandler {
 	VoMP.State local_state = State.NoSuchCall;
 	VoMP.State remote_state = State.NoSuchCall;
 	VoMP.Codec codec = VoMP.Codec.Pcm;
+	// asks the other party to change codec as the link quality changes,
+	// if they will
+	private volatile CodecAdapter codecAdapter;
+	// the other party understands comfort noise, so we needn't send silence
+	private boolean comfortNoise;
+	// the other party can recover lost frames from redundant audio
+	private boolean redundantAudio;
+	// the cheapest codec we share, for the redundant copy of each frame
+	private VoMP.Codec redundantCodec;
+	// send redundant audio, if the other party understands it
+	private volatile boolean redundancy = false;
+	// how often to measure the quality of received audio (ms)
+	static final int ADAPT_INTERVAL = 2000;
 	private long lastKeepAliveTime;
 	private long callStarted;
 	private long callEnded;
@@ -57,17 +73,36 @@ public class CallHandler {
 	private boolean ringing = false;
 	private boolean audioRunning = false;
 
+	// if servald is restarted, it has forgotten about this call
+	private final ServalDMonitor.StateListener monitorListener = new ServalDMonitor.StateListener() {
+		@Override
+		public void stateChanged(ServalDMonitor monitor,
+				ServalDMonitor.State state) {
+			if (state == ServalDMonitor.State.Restarting
+					|| state == ServalDMonitor.State.Stopped)
+				monitorLost(state);
+		}
+	};
+
 	public CallHandler(Peer peer) {
 		app = ServalBatPhoneApplication.context;
 		Oslec echoCanceler = null;
-		// TODO make sure echo canceler is beneficial.
-		if (false)
-			echoCanceler = new Oslec();
+		// off unless asked for, until we know it helps more than it costs
+		if (app.settings.getBoolean("echo_cancel", false)) {
+			try {
+				echoCanceler = new Oslec();
+			} catch (LinkageError e) {
+				Log.e("CallHandler", "Echo cancellation is not available", e);
+			}
+		}
 		this.player = new AudioPlayer(echoCanceler, app);
+		setRedundancy(app.settings.getBoolean("redundant_audio", false));
 		this.remotePeer = peer;
 		this.did = peer.did;
 		this.name = peer.name;
 		lastKeepAliveTime = SystemClock.elapsedRealtime();
+		if (app.servaldMonitor != null)
+			app.servaldMonitor.addStateListener(monitorListener);
 
 		timer.scheduleAtFixedRate(new TimerTask() {
 			@Override
@@ -82,6 +117,13 @@ public class CallHandler {
 				}
 			}
 		}, 0, 3000);
+
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				adaptCodec();
+			}
+		}, ADAPT_INTERVAL, ADAPT_INTERVAL);
 	}
 
 	public CallHandler(DnaResult result) {
@@ -169,6 +211,8 @@ public class CallHandler {
 				throw new IllegalStateException(
 						"Audio recorder has not been initialised");
 			Log.v("CallHandler", "Starting audio");
+			this.recorder.setSuppressSilence(comfortNoise);
+			applyRedundancy(this.recorder);
 			this.recorder.startRecording(codec);
 			this.player.startPlaying();
 			callStarted = SystemClock.elapsedRealtime();
@@ -178,6 +222,32 @@ public class CallHandler {
 		}
 	}
 
+	/**
+	 * Send a copy of each frame along with the next one, so the other party
+	 * can replace a single lost frame. Costs the bandwidth of the cheapest
+	 * codec we share.
+	 *
+	 * @return false if the other party can't use it
+	 */
+	public boolean setRedundancy(boolean enable) {
+		redundancy = enable;
+		AudioRecorder recorder = this.recorder;
+		if (recorder != null && audioRunning)
+			applyRedundancy(recorder);
+		return !enable || (redundantAudio && redundantCodec != null);
+	}
+
+	private void applyRedundancy(AudioRecorder recorder) {
+		VoMP.Codec copy = null;
+		if (redundancy && redundantAudio)
+			copy = redundantCodec;
+		try {
+			recorder.setRedundancy(copy);
+		} catch (IOException e) {
+			Log.e("CallHandler", e.getMessage(), e);
+		}
+	}
+
 	private void stopAudio() {
 		if (this.recorder == null)
 			throw new IllegalStateException(
@@ -198,9 +268,24 @@ public class CallHandler {
 		}
 	}
 
+	private synchronized void monitorLost(ServalDMonitor.State state) {
+		if (local_state == VoMP.State.CallEnded
+				|| local_state == VoMP.State.Error)
+			return;
+		Log.v("CallHandler", "Ending call, servald monitor is " + state);
+		local_state = VoMP.State.Error;
+		callStateChanged();
+		if (ui != null)
+			ui.runOnUiThread(ui.updateCallStatus);
+	}
+
 	private void cleanup() {
-		this.recorder.stopRecording();
+		if (app.servaldMonitor != null)
+			app.servaldMonitor.removeStateListener(monitorListener);
+		if (this.recorder != null)
+			this.recorder.stopRecording();
 		this.player.cleanup();
+		Log.v("CallHandler", "Call stats; " + player.stats);
 		timer.cancel();
 		app.callHandler = null;
 	}
@@ -252,6 +337,10 @@ public class CallHandler {
 				myIntent.putExtra("sid", remotePeer.sid.toString());
 				myIntent.putExtra("duration",
 						Long.toString(callEnded - callStarted));
+				// only shown, we don't keep a call history to store them
+				// in. cleanup() logs the full stats
+				if (player.stats.getReceived() > 0)
+					myIntent.putExtra("stats", player.stats.summary());
 				// Create call as a standalone activity stack
 				myIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 				app.startActivity(myIntent);
@@ -311,7 +400,8 @@ public class CallHandler {
 			if (this.recorder == null && l_id != 0) {
 				this.recorder = new AudioRecorder(player.echoCanceler,
 						Integer.toHexString(local_id),
-						ServalBatPhoneApplication.context.servaldMonitor);
+						ServalBatPhoneApplication.context.servaldMonitor,
+						player.stats);
 			}
 
 			VoMP.State newLocal = VoMP.State.getState(l_state);
@@ -346,6 +436,8 @@ public class CallHandler {
 	public int receivedAudio(int local_session, int start_time, int end_time,
 			VoMP.Codec codec, InputStream in, int dataBytes) throws IOException {
 		lastKeepAliveTime = SystemClock.elapsedRealtime();
+		if (codec == VoMP.Codec.ChangeYourCodecTo)
+			return codecRequested(in, dataBytes);
 		return player.receivedAudio(
 				local_session, start_time,
 				end_time, codec, in, dataBytes);
@@ -372,32 +464,84 @@ public class CallHandler {
 		}
 	}
 
-	private boolean isSupported(VoMP.Codec codec) {
-		switch (codec) {
-		case Pcm:
-		case Ulaw8:
-		case Alaw8:
-			return true;
+	// the other party has asked us to send audio in a different codec
+	private int codecRequested(InputStream in, int dataBytes)
+			throws IOException {
+		if (dataBytes < 1)
+			return 0;
+		int c = in.read();
+		if (c < 0)
+			throw new EOFException();
+		VoMP.Codec requested = VoMP.Codec.getCodec(c);
+		Log.v("CallHandler", "Asked to change codec to " + requested);
+		AudioRecorder recorder = this.recorder;
+		if (recorder != null && Codecs.canRecord(requested)
+				&& requested != recorder.getCodec())
+			recorder.changeCodec(requested);
+		return 1;
+	}
+
+	private void adaptCodec() {
+		CodecAdapter adapter = codecAdapter;
+		AudioRecorder recorder = this.recorder;
+		if (!audioRunning || adapter == null || recorder == null)
+			return;
+
+		VoMP.Codec next = adapter.update(player.getPlayedMs(),
+				player.getConcealedMs());
+		if (next == null)
+			return;
+		Log.v("CallHandler", "Link quality changed, asking for " + next);
+		try {
+			recorder.requestCodec(next);
+		} catch (IOException e) {
+			Log.e("CallHandler", e.getMessage(), e);
 		}
-		return false;
 	}
 
-	public void codecs(int l_id, Iterator<String> args) {
+	public void codecs(int l_id, ServalDMonitor.Fields args) {
 		if (l_id != local_id)
 			return;
 
 		VoMP.Codec best = null;
+		List<VoMP.Codec> shared = new ArrayList<VoMP.Codec>();
+		comfortNoise = false;
+		redundantAudio = false;
+		// the other party listed ChangeYourCodecTo, so they act on our
+		// requests, and servald carries them
+		boolean changeCodec = false;
+		VoMP.Codec cheapest = null;
 
 		while (args.hasNext()) {
-			int c = ServalDMonitor.parseInt(args.next());
+			int c = args.nextInt();
 			VoMP.Codec codec = VoMP.Codec.getCodec(c);
-			if (!isSupported(codec))
+			if (codec == VoMP.Codec.ComfortNoise) {
+				comfortNoise = Codecs.isEnabled(codec);
+				continue;
+			}
+			if (codec == VoMP.Codec.Redundant) {
+				redundantAudio = Codecs.isEnabled(codec);
+				continue;
+			}
+			if (codec == VoMP.Codec.ChangeYourCodecTo) {
+				changeCodec = Codecs.isEnabled(codec);
+				continue;
+			}
+			if (!Codecs.canRecord(codec))
 				continue;
 
+			shared.add(codec);
+			if (codec.blockSize <= AudioRecorder.MAX_REDUNDANT
+					&& (cheapest == null || codec.bitsPerSecond() < cheapest
+							.bitsPerSecond()))
+				cheapest = codec;
 			if (best == null || codec.preference > best.preference) {
 				best = codec;
 			}
 		}
 		this.codec = best;
+		redundantCodec = cheapest;
+		codecAdapter = best != null && changeCodec ? new CodecAdapter(shared,
+				best) : null;
 	}
 }
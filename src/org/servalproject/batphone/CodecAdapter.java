@@ -0,0 +1,104 @@
+package org.servalproject.batphone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Chooses which codec the other party should send us audio in. Steps down
+// to a lower bit rate while we are losing audio, and back up towards the
+// codec we started with once the link has been clean for a while.
+class CodecAdapter {
+	// percentage of audio we had to make up, before stepping down
+	static final int STEP_DOWN_LOSS = 5;
+	// below this we may step back up
+	static final int STEP_UP_LOSS = 1;
+	// consecutive clean intervals before stepping up
+	static final int STEP_UP_INTERVALS = 5;
+	// intervals to ignore after asking for a change, while it takes effect
+	static final int SETTLE_INTERVALS = 1;
+	// intervals with less audio than this (ms) tell us nothing
+	static final int MIN_AUDIO_MS = 500;
+
+	// codecs we can both use, highest bit rate first
+	private final VoMP.Codec ladder[];
+	private int current;
+	private int clean;
+	private int settle = SETTLE_INTERVALS;
+	private long lastPlayed;
+	private long lastConcealed;
+
+	CodecAdapter(List<VoMP.Codec> shared, VoMP.Codec start) {
+		List<VoMP.Codec> sorted = new ArrayList<VoMP.Codec>(shared);
+		Collections.sort(sorted, new Comparator<VoMP.Codec>() {
+			@Override
+			public int compare(VoMP.Codec a, VoMP.Codec b) {
+				if (a.bitsPerSecond() != b.bitsPerSecond())
+					return a.bitsPerSecond() > b.bitsPerSecond() ? -1 : 1;
+				return b.preference - a.preference;
+			}
+		});
+
+		// never step up past the codec we started with, and skip codecs
+		// that wouldn't save any bandwidth
+		List<VoMP.Codec> steps = new ArrayList<VoMP.Codec>();
+		steps.add(start);
+		for (VoMP.Codec codec : sorted) {
+			if (codec.bitsPerSecond() < steps.get(steps.size() - 1)
+					.bitsPerSecond())
+				steps.add(codec);
+		}
+		ladder = steps.toArray(new VoMP.Codec[steps.size()]);
+		current = 0;
+	}
+
+	VoMP.Codec getCodec() {
+		return ladder[current];
+	}
+
+	private VoMP.Codec change(int step) {
+		current = step;
+		clean = 0;
+		settle = SETTLE_INTERVALS;
+		return ladder[current];
+	}
+
+	/**
+	 * Called at a regular interval, with running totals of the audio we
+	 * have played and made up.
+	 *
+	 * @return the codec to ask for, or null to stay as we are
+	 */
+	VoMP.Codec update(long playedMs, long concealedMs) {
+		long played = playedMs - lastPlayed;
+		long concealed = concealedMs - lastConcealed;
+		lastPlayed = playedMs;
+		lastConcealed = concealedMs;
+
+		if (settle > 0) {
+			settle--;
+			return null;
+		}
+
+		long total = played + concealed;
+		if (total < MIN_AUDIO_MS)
+			return null;
+
+		int loss = (int) (concealed * 100 / total);
+		if (loss >= STEP_DOWN_LOSS) {
+			clean = 0;
+			if (current + 1 < ladder.length)
+				return change(current + 1);
+			return null;
+		}
+
+		if (loss >= STEP_UP_LOSS) {
+			clean = 0;
+			return null;
+		}
+
+		if (++clean >= STEP_UP_INTERVALS && current > 0)
+			return change(current - 1);
+		return null;
+	}
+}
@@ -65,8 +65,10 @@ public class CompletedCall extends Activity {
 		remote_number.setText(p.did);
 
 		TextView callstatus = (TextView) findViewById(R.id.call_status);
+		String stats = intent.getStringExtra("stats");
 		if (callstatus != null)
-			callstatus.setText("Call ended");
+			callstatus.setText(stats == null ? "Call ended" : "Call ended ("
+					+ stats + ")");
 		TextView action = (TextView) findViewById(R.id.call_action_type);
 		if (action != null)
 			action.setText("Call Ended");
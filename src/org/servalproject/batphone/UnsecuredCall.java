@@ -3,6 +3,7 @@ package org.servalproject.batphone;
 import org.servalproject.R;
 import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.account.AccountService;
+import org.servalproject.audio.CallStats;
 import org.servalproject.servald.PeerListService;
 import org.servalproject.servald.SubscriberId;
 
@@ -42,6 +43,20 @@ public class UnsecuredCall extends Activity {
 			updateUI();
 		}
 	};
+	// show how the call is going, while it lasts
+	final Runnable updateCallQuality = new Runnable() {
+		@Override
+		public void run() {
+			CallHandler handler = callHandler;
+			if (handler == null || handler.local_state != VoMP.State.InCall)
+				return;
+			CallStats stats = handler.player.stats;
+			if (stats.getReceived() > 0)
+				callstatus_1.setText(getString(handler.local_state.displayResource)
+						+ " (" + stats.summary() + ")");
+			callstatus_1.postDelayed(this, 2000);
+		}
+	};
 	private Button endButton;
 	private Button incomingEndButton;
 	private Button incomingAnswerButton;
@@ -208,6 +223,8 @@ public class UnsecuredCall extends Activity {
 		if (callHandler.local_state == VoMP.State.InCall) {
 			chron.setBase(SystemClock.elapsedRealtime());
 			chron.start();
+			callstatus_1.removeCallbacks(updateCallQuality);
+			callstatus_1.postDelayed(updateCallQuality, 2000);
 		}
 
 		switch (callHandler.local_state) {
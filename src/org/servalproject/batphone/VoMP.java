@@ -45,6 +45,9 @@ public class VoMP {
 	}
 
 	public static final int MAX_AUDIO_BYTES = 1024;
+	// the most audio blocks we will ask servald to accept in one AUDIOS
+	// message, each block adds another 20ms of latency
+	public static final int MAX_AUDIO_BATCH = 3;
 
 	public enum Codec {
 		None(0x00, 0, 1, -1),
@@ -62,13 +65,35 @@ public class VoMP {
 		GsmHalf(0x03, 14, 20),
 
 		/* padded to 13.2kbit/sec */
-		GsmFull(0x04, 33, 20),
+		GsmFull(0x04, 33, 20, 5),
 
 		/* 8000x2bytes*0.02sec */
 		Signed16(0x05, 320, 20),
 		Ulaw8(0x06, 160, 20, 2),
 		Alaw8(0x07, 160, 20, 2),
 		Pcm(0x08, 320, 20, 1),
+
+		/* narrow band, 8kbit/sec, 21 bytes per 20ms plus some spare */
+		Speex(0x09, 28, 20, 4),
+
+		/* variable, ~20kbit/sec */
+		Silk8(0x0a, 100, 20, 3),
+
+		/* 16kbit/sec */
+		Bv16(0x0b, 40, 20, 6),
+
+		/*
+		 * replaces audio during silence, one byte per 20ms giving the noise
+		 * level in -dBov, like RFC 3389
+		 */
+		ComfortNoise(0x0c, 1, 20),
+
+		/*
+		 * a frame, plus a copy of the previous frame, like RFC 2198. Codec of
+		 * this frame, codec and length of the copy, then the copy and this
+		 * frame
+		 */
+		Redundant(0x0d, 3 + 255 + 320, 20),
 		Dtmf(0x80, 1, 80),
 		Engaged(0x81, 0, 20),
 		OnHold(0x82, 0, 20),
@@ -96,6 +121,13 @@ public class VoMP {
 			this(code, blockSize, timespan, 0);
 		}
 
+		// the most bandwidth this codec needs, ignoring packet overheads
+		public int bitsPerSecond() {
+			if (timespan <= 0)
+				return 0;
+			return blockSize * 8 * 1000 / timespan;
+		}
+
 		public static Codec getCodec(int code) {
 			switch (code) {
 			case 0:
@@ -117,6 +149,16 @@ public class VoMP {
 				return Alaw8;
 			case 0x08:
 				return Pcm;
+			case 0x09:
+				return Speex;
+			case 0x0a:
+				return Silk8;
+			case 0x0b:
+				return Bv16;
+			case 0x0c:
+				return ComfortNoise;
+			case 0x0d:
+				return Redundant;
 			case 0x80:
 				return Dtmf;
 			case 0x81:
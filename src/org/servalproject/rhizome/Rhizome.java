@@ -25,6 +25,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
 
 import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.meshms.IncomingMeshMS;
@@ -34,11 +36,12 @@ import org.servalproject.rhizome.RhizomeManifest.MissingField;
 import org.servalproject.rhizome.RhizomeMessageLogEntry.TooLongException;
 import org.servalproject.servald.BundleId;
 import org.servalproject.servald.Identities;
+import org.servalproject.servald.RowCallback;
 import org.servalproject.servald.ServalD;
+import org.servalproject.servald.ServalDClient;
 import org.servalproject.servald.ServalD.RhizomeAddFileResult;
 import org.servalproject.servald.ServalD.RhizomeExtractFileResult;
 import org.servalproject.servald.ServalD.RhizomeExtractManifestResult;
-import org.servalproject.servald.ServalD.RhizomeListResult;
 import org.servalproject.servald.ServalDFailureException;
 import org.servalproject.servald.ServalDInterfaceError;
 import org.servalproject.servald.SubscriberId;
@@ -62,6 +65,48 @@ public class Rhizome {
 		ServalBatPhoneApplication.context.displayToastMessage(text);
 	}
 
+	/**
+	 * The manifest ids matching a rhizome list query.
+	 */
+	private static List<BundleId> listManifestIds(String service,
+			SubscriberId sender, SubscriberId recipient)
+			throws ServalDFailureException, ServalDInterfaceError {
+		final List<BundleId> ids = new LinkedList<BundleId>();
+		ServalD.rhizomeList(service, sender, recipient, -1, -1,
+				new RowCallback() {
+					int idColumn = -1;
+					String id;
+
+					@Override
+					public void columns(String[] names) {
+						for (int i = 0; i < names.length; i++)
+							if ("id".equals(names[i]))
+								idColumn = i;
+						if (idColumn < 0)
+							throw new ServalDInterfaceError(
+									"missing 'id' column");
+					}
+
+					@Override
+					public void value(int column, String value) {
+						if (column == idColumn)
+							id = value;
+					}
+
+					@Override
+					public boolean row() {
+						try {
+							ids.add(new BundleId(id));
+						} catch (BundleId.InvalidHexException e) {
+							throw new ServalDInterfaceError(
+									"invalid 'id' column " + id, e);
+						}
+						return true;
+					}
+				});
+		return ids;
+	}
+
 	/**
 	 * Send a message over Rhizome.
 	 *
@@ -73,19 +118,11 @@ public class Rhizome {
 		File manifestFile = null;
 		File payloadFile = null;
 		try {
-			RhizomeListResult found = ServalD.rhizomeList(RhizomeManifest_MeshMS.SERVICE, sender, recipient, -1, -1);
+			List<BundleId> found = listManifestIds(
+					RhizomeManifest_MeshMS.SERVICE, sender, recipient);
 			BundleId manifestId = null;
-			if (found.list.length != 0) {
-				try {
-					manifestId = new BundleId(found.list[0][found.columns.get("id")]);
-				}
-				catch (NullPointerException e) {
-					throw new ServalDInterfaceError("missing 'id' column", found);
-				}
-				catch (BundleId.InvalidHexException e) {
-					throw new ServalDInterfaceError("invalid 'id' column", found, e);
-				}
-			}
+			if (!found.isEmpty())
+				manifestId = found.get(0);
 			File dir = getMeshmsStageDirectoryCreated();
 			manifestFile = File.createTempFile("send", ".manifest", dir);
 			payloadFile = File.createTempFile("send", ".payload", dir);
@@ -212,13 +249,13 @@ public class Rhizome {
 			RhizomeManifestSizeException, RhizomeManifestServiceException,
 			MissingField {
 
-		RhizomeListResult result = ServalD.rhizomeList(
-				RhizomeManifest_MeshMS.SERVICE, null,
-				destSid, -1, -1);
+		// collect the ids first, we can't run other servald commands while
+		// the list is being produced
+		List<BundleId> found = listManifestIds(
+				RhizomeManifest_MeshMS.SERVICE, null, destSid);
 
-		for (int i = 0; i != result.list.length; ++i) {
-			RhizomeManifest_MeshMS manifest = (RhizomeManifest_MeshMS) result.toManifest(i);
-			manifest = (RhizomeManifest_MeshMS) readManifest(manifest.getManifestId());
+		for (BundleId manifestId : found) {
+			RhizomeManifest_MeshMS manifest = (RhizomeManifest_MeshMS) readManifest(manifestId);
 			receiveMessageLog(manifest);
 		}
 	}
@@ -278,9 +315,9 @@ public class Rhizome {
 			BundleId outgoingManifestId = null;
 			RhizomeAck latestOutgoingAck = null;
 
-			RhizomeListResult found = ServalD.rhizomeList(
+			List<BundleId> found = listManifestIds(
 					RhizomeManifest_MeshMS.SERVICE,
-					Identities.getCurrentIdentity(), other, -1, -1);
+					Identities.getCurrentIdentity(), other);
 			long lastAckMessageTime = 0;
 
 			// look at all possible outgoing logs, trying to find the last ack
@@ -288,11 +325,10 @@ public class Rhizome {
 			// In an ideal world we wouldn't have multiple logs, but something
 			// is going wrong somewhere.
 			// TODO, consider pruning any manifests that we ignored
-			for (int i = 0; i < found.list.length; i++) {
+			for (BundleId testManifestId : found) {
 				File testManifestFile = null;
 				File testPayloadFile = null;
 				try {
-					BundleId testManifestId = new BundleId(found.list[0][found.columns.get("id")]);
 					testManifestFile = File.createTempFile("outgoing", ".manifest", dir);
 					testPayloadFile = File.createTempFile("outgoing", ".payload", dir);
 					// Extract the outgoing manifest and payload files.
@@ -335,7 +371,7 @@ public class Rhizome {
 					}
 				}
 				catch (Exception e) {
-					throw new ServalDInterfaceError(e.getMessage(), found, e);
+					throw new ServalDInterfaceError(e.getMessage(), e);
 				}
 				finally {
 					// delete payload before manifest
@@ -859,7 +895,8 @@ public class Rhizome {
 	 * @throws RhizomeManifestParseException
 	 */
 	public static void notifyIncomingBundle(RhizomeManifest manifest) {
-		new Thread(new ExamineBundle(manifest)).start();
+		ServalDClient.getInstance().submit("examine bundle", 0,
+				Executors.callable(new ExamineBundle(manifest)), null);
 	}
 
 
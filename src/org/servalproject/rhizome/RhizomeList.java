@@ -21,7 +21,8 @@
 package org.servalproject.rhizome;
 
 import org.servalproject.R;
-import org.servalproject.servald.ServalD;
+import org.servalproject.servald.RowCallback;
+import org.servalproject.servald.ServalDClient;
 
 import android.R.drawable;
 import android.app.Dialog;
@@ -30,7 +31,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
@@ -94,6 +94,10 @@ public class RhizomeList extends ListActivity {
 	@Override
 	protected void onPause() {
 		this.unregisterReceiver(receiver);
+		if (listing != null) {
+			listing.cancel(false);
+			listing = null;
+		}
 		super.onPause();
 	}
 
@@ -139,51 +143,69 @@ public class RhizomeList extends ListActivity {
 		}
 	}
 
+	private ServalDClient.Call<Void> listing;
+
 	/**
 	 * Form a list of all files in the Rhizome database.
 	 */
 	private void listFiles() {
-		new AsyncTask<Void, Display, Void>() {
-			private boolean first = true;
-
-			@Override
-			protected Void doInBackground(Void... params) {
-				ServalD.rhizomeListAsync(service,
-						null, null, -1, -1, new ServalD.ManifestResult() {
-							@Override
-							public void manifest(Bundle b) {
-								try {
-									RhizomeManifest manifest = RhizomeManifest.fromBundle(b, null);
-									if (manifest instanceof RhizomeManifest_File) {
-										RhizomeManifest_File fileManifest = (RhizomeManifest_File) manifest;
-										// skip hidden files
-										if (!Rhizome.isVisible(fileManifest))
-											return;
-										// skip empty files
-										if (fileManifest.getFilesize() == 0)
-											return;
-									}
-									boolean selfSigned = "1".equals(b.getString(".selfsigned"));
-									publishProgress(new Display(manifest, selfSigned));
-								} catch (Exception e) {
-									Log.e(Rhizome.TAG, e.getMessage(), e);
-								}
+		if (listing != null)
+			listing.cancel(false);
+
+		listing = ServalDClient.getInstance().rhizomeList(service, null, null,
+				-1, -1, new RowCallback() {
+					private boolean first = true;
+					private String names[];
+					private final Bundle b = new Bundle();
+
+					@Override
+					public void columns(String[] names) {
+						this.names = names;
+					}
+
+					@Override
+					public void value(int column, String value) {
+						b.putString(names[column], value);
+					}
+
+					@Override
+					public boolean row() {
+						try {
+							RhizomeManifest manifest = RhizomeManifest
+									.fromBundle(b, null);
+							if (manifest instanceof RhizomeManifest_File) {
+								RhizomeManifest_File fileManifest = (RhizomeManifest_File) manifest;
+								// skip hidden files
+								if (!Rhizome.isVisible(fileManifest))
+									return true;
+								// skip empty files
+								if (fileManifest.getFilesize() == 0)
+									return true;
 							}
-						});
-				return null;
-			}
+							boolean selfSigned = "1".equals(b
+									.getString(".selfsigned"));
+							show(new Display(manifest, selfSigned), first);
+							first = false;
+						} catch (Exception e) {
+							Log.e(Rhizome.TAG, e.getMessage(), e);
+						} finally {
+							b.clear();
+						}
+						return true;
+					}
+				}, 0, null);
+	}
 
+	private void show(final Display display, final boolean first) {
+		runOnUiThread(new Runnable() {
 			@Override
-			protected void onProgressUpdate(Display... value) {
-				if (first) {
+			public void run() {
+				if (first)
 					adapter.clear();
-					first = false;
-				}
-				adapter.add(value[0]);
+				adapter.add(display);
 				adapter.notifyDataSetChanged();
 			}
-
-		}.execute();
+		});
 	}
 
 	ArrayAdapter<Display> adapter;
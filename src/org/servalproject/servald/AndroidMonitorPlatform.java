@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Only loaded when we are running on Android
+class AndroidMonitorPlatform extends MonitorPlatform {
+	private final LocalSocketAddress serverSocketAddress = new LocalSocketAddress(
+			"org.servalproject.servald.monitor.socket",
+			LocalSocketAddress.Namespace.ABSTRACT);
+
+	// Use a filesystem binding point from inside our app dir at our end,
+	// so that no one other than the server can send us messages.
+	private final LocalSocketAddress clientSocketAddress = new LocalSocketAddress(
+			"/data/data/org.servalproject/var/serval-node/servald-java-client.socket",
+			LocalSocketAddress.Namespace.FILESYSTEM);
+
+	@Override
+	void v(String tag, String msg) {
+		Log.v(tag, msg);
+	}
+
+	@Override
+	void d(String tag, String msg) {
+		Log.d(tag, msg);
+	}
+
+	@Override
+	void w(String tag, String msg) {
+		Log.w(tag, msg);
+	}
+
+	@Override
+	void e(String tag, String msg, Throwable t) {
+		if (t == null)
+			Log.e(tag, msg);
+		else
+			Log.e(tag, msg, t);
+	}
+
+	@Override
+	void setThreadPriority(int priority) {
+		switch (priority) {
+		case PRIORITY_BACKGROUND:
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			break;
+		case PRIORITY_FOREGROUND:
+			Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+			break;
+		case PRIORITY_URGENT_AUDIO:
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+			break;
+		}
+	}
+
+	@Override
+	long elapsedRealtime() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	@Override
+	Connection connect() throws IOException {
+		final LocalSocket socket = new LocalSocket();
+		try {
+			socket.bind(clientSocketAddress);
+			socket.setSoTimeout(1000);
+			socket.connect(serverSocketAddress);
+			socket.setSoTimeout(60000);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				Log.e("ServalDMonitor", e1.getMessage(), e1);
+			}
+			throw e;
+		}
+		return new Connection() {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return socket.getInputStream();
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return socket.getOutputStream();
+			}
+
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs work handed over by the monitor thread, that might block for a while
+ * (JNI commands, reading manifests, content providers), on a single low
+ * priority thread.
+ *
+ * Work is queued under a key. If work with the same key is still waiting
+ * when new work arrives, the new work replaces it, so a burst of updates
+ * about the same thing only gets processed once.
+ */
+class BackgroundLane implements Runnable {
+	private static final String TAG = "BackgroundLane";
+	private static final MonitorPlatform platform = MonitorPlatform.current;
+
+	private final int capacity;
+	// insertion order is the order work will be run in
+	private final LinkedHashMap<Object, Task> pending = new LinkedHashMap<Object, Task>();
+	private Thread thread;
+	private boolean stopped = false;
+	final LaneStats stats;
+
+	private static class Task {
+		Runnable action;
+		final long queued;
+
+		Task(Runnable action, long queued) {
+			this.action = action;
+			this.queued = queued;
+		}
+	}
+
+	BackgroundLane(String name, int capacity) {
+		this.capacity = capacity;
+		this.stats = new LaneStats(name);
+	}
+
+	/**
+	 * Queue some work, merging it with any waiting work for the same key.
+	 *
+	 * @return false if the work had to be dropped
+	 */
+	boolean execute(Object key, Runnable action) {
+		synchronized (pending) {
+			if (stopped)
+				return false;
+
+			Task task = pending.get(key);
+			if (task != null) {
+				task.action = action;
+				stats.coalesced();
+				return true;
+			}
+
+			if (pending.size() >= capacity) {
+				stats.dropped();
+				platform.w(TAG, "Queue full, dropping work for " + key);
+				return false;
+			}
+
+			pending.put(key, new Task(action, System.nanoTime()));
+			stats.queueDepth(pending.size());
+
+			if (thread == null) {
+				thread = new Thread(this, stats.name);
+				thread.start();
+			} else
+				pending.notify();
+		}
+		return true;
+	}
+
+	void stop() {
+		synchronized (pending) {
+			stopped = true;
+			pending.clear();
+			stats.queueDepth(0);
+			pending.notify();
+		}
+	}
+
+	@Override
+	public void run() {
+		platform.setThreadPriority(MonitorPlatform.PRIORITY_BACKGROUND);
+		while (true) {
+			Task task;
+			synchronized (pending) {
+				while (!stopped && pending.isEmpty()) {
+					try {
+						pending.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if (stopped) {
+					thread = null;
+					return;
+				}
+				Iterator<Task> i = pending.values().iterator();
+				task = i.next();
+				i.remove();
+				stats.queueDepth(pending.size());
+			}
+
+			long start = System.nanoTime();
+			try {
+				task.action.run();
+			} catch (Exception e) {
+				platform.e(TAG, e.getMessage(), e);
+			}
+			long end = System.nanoTime();
+			stats.ran(start - task.queued, end - start);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package org.servalproject.servald;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter. The delay doubles with each attempt up to
+ * max, then a random amount of up to half the delay is removed so that
+ * clients don't retry in lock step.
+ */
+class Backoff {
+	private final long base;
+	private final long max;
+	private final Random random = new Random();
+
+	Backoff(long base, long max) {
+		this.base = base;
+		this.max = max;
+	}
+
+	// delay in milliseconds before the given attempt, counting from 1
+	long delay(int attempt) {
+		long delay = max;
+		if (attempt < 1)
+			attempt = 1;
+		if (attempt < 31 && (base << (attempt - 1)) < max)
+			delay = base << (attempt - 1);
+		long half = delay / 2;
+		if (half <= 0)
+			return delay;
+		return delay - (long) (random.nextDouble() * half);
+	}
+}
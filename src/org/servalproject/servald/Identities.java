@@ -20,6 +20,9 @@
 
 package org.servalproject.servald;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.servalproject.Control;
 
 import android.util.Log;
@@ -46,16 +49,18 @@ public class Identities {
 		} catch (ServalDFailureException e) {
 			Log.e("BatPhone", e.toString(), e);
 		}
-		ServalDResult result = ServalD.command("id", "self");
-		sids = new SubscriberId[result.outv.length];
-		for(int i =0; i< result.outv.length;i++) {
-			try {
-				sids[i] = new SubscriberId(result.outv[i]);
-			}
-			catch (SubscriberId.InvalidHexException e) {
-				Log.e("BatPhone", "got an invalid SID: " + result.outv[i], e);
-			}
+		final List<SubscriberId> found = new ArrayList<SubscriberId>();
+		try {
+			ServalD.idSelf(new ServalD.SubscriberIdResult() {
+				@Override
+				public void result(SubscriberId sid) {
+					found.add(sid);
+				}
+			});
+		} catch (ServalDFailureException e) {
+			Log.e("BatPhone", e.toString(), e);
 		}
+		sids = found.toArray(new SubscriberId[found.size()]);
 		setCurrentIdentity(0);
 	}
 
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+/**
+ * Counters for one lane of monitor message processing. Each counter is only
+ * written by a single thread (or while holding the lane's lock), readers
+ * from other threads may see slightly stale values.
+ *
+ * All times are in nanoseconds.
+ */
+public class LaneStats {
+	public final String name;
+
+	private volatile long count;
+	private volatile long totalRunTime;
+	private volatile long maxRunTime;
+	private volatile long totalWaitTime;
+	private volatile long maxWaitTime;
+	private volatile int queueDepth;
+	private volatile int maxQueueDepth;
+	private volatile long coalesced;
+	private volatile long dropped;
+
+	LaneStats(String name) {
+		this.name = name;
+	}
+
+	void ran(long waitTime, long runTime) {
+		count++;
+		totalRunTime += runTime;
+		if (runTime > maxRunTime)
+			maxRunTime = runTime;
+		totalWaitTime += waitTime;
+		if (waitTime > maxWaitTime)
+			maxWaitTime = waitTime;
+	}
+
+	void queueDepth(int depth) {
+		queueDepth = depth;
+		if (depth > maxQueueDepth)
+			maxQueueDepth = depth;
+	}
+
+	void coalesced() {
+		coalesced++;
+	}
+
+	void dropped() {
+		dropped++;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getAverageRunTime() {
+		long c = count;
+		return c == 0 ? 0 : totalRunTime / c;
+	}
+
+	public long getMaxRunTime() {
+		return maxRunTime;
+	}
+
+	// time between a message arriving and its handler starting
+	public long getAverageWaitTime() {
+		long c = count;
+		return c == 0 ? 0 : totalWaitTime / c;
+	}
+
+	public long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	// messages merged into one that was already waiting
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	// messages thrown away because the queue was full
+	public long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": count=" + count
+				+ ", run avg/max=" + getAverageRunTime() / 1000 + "/"
+				+ maxRunTime / 1000 + "us"
+				+ ", wait avg/max=" + getAverageWaitTime() / 1000 + "/"
+				+ maxWaitTime / 1000 + "us"
+				+ ", queue=" + queueDepth + " (max " + maxQueueDepth + ")"
+				+ ", coalesced=" + coalesced + ", dropped=" + dropped;
+	}
+}
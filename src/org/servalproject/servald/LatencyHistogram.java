@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+/**
+ * A histogram of latencies in microseconds. Values under 8us get a bucket
+ * each, above that every power of two is split into 8 buckets, so no bucket
+ * is more than 12.5% wide. The last bucket counts everything over ~30
+ * minutes.
+ *
+ * Recording doesn't allocate, but isn't synchronised, only one thread
+ * should call record().
+ */
+public class LatencyHistogram {
+	// buckets per power of two, as a shift
+	private static final int SUB_SHIFT = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_SHIFT;
+	// everything from 2^31us up goes in the last bucket
+	private static final int MAX_SHIFT = 31;
+	public static final int BUCKETS = (MAX_SHIFT - SUB_SHIFT + 1)
+			* SUB_BUCKETS;
+
+	public final String name;
+	private final long counts[] = new long[BUCKETS];
+	private long total;
+	private long sum;
+	private long max;
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	private static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+		if (micros >= 1L << MAX_SHIFT)
+			return BUCKETS - 1;
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_SHIFT;
+		return ((shift + 1) << SUB_SHIFT)
+				+ (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+	}
+
+	public void record(long nanos) {
+		counts[getBucket(nanos < 0 ? 0 : nanos / 1000)]++;
+		total++;
+		sum += nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	public long getCount() {
+		return total;
+	}
+
+	public long getCount(int bucket) {
+		return counts[bucket];
+	}
+
+	// upper bound of a bucket in microseconds, exclusive
+	public static long getBucketLimit(int bucket) {
+		if (bucket >= BUCKETS - 1)
+			return Long.MAX_VALUE;
+		if (bucket < SUB_BUCKETS)
+			return bucket + 1;
+		int shift = (bucket >> SUB_SHIFT) - 1;
+		return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)) + 1) << shift;
+	}
+
+	public long getAverage() {
+		return total == 0 ? 0 : sum / total;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	// within 12.5%, returns the upper bound of the bucket in nanoseconds,
+	// or the largest value recorded if that is smaller
+	public long getPercentile(double fraction) {
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target && seen > 0) {
+				long limit = getBucketLimit(i);
+				return limit > max / 1000 ? max : limit * 1000;
+			}
+		}
+		return 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = 0;
+		total = sum = max = 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": n=").append(total)
+				.append(", avg=").append(getAverage() / 1000)
+				.append("us, 50%<=").append(getPercentile(0.5) / 1000)
+				.append("us, 99%<=").append(getPercentile(0.99) / 1000)
+				.append("us, max=").append(max / 1000).append("us");
+		return sb.toString();
+	}
+}
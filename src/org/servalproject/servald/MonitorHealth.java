@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package org.servalproject.servald;
+
+/**
+ * Counters describing how well the monitor connection to servald has been
+ * behaving. Written by whichever thread is changing the connection state,
+ * readers from other threads may see slightly stale values.
+ *
+ * All times are in milliseconds.
+ */
+public class MonitorHealth {
+	public enum RestartCause {
+		// servald wasn't running when we couldn't connect
+		NotRunning,
+		// servald was running, but wouldn't accept a connection
+		Unresponsive,
+	}
+
+	private volatile int connects;
+	private volatile int reconnects;
+	private volatile int connectFailures;
+	private volatile int consecutiveFailures;
+	private volatile String lastFailure;
+	private final int restarts[] = new int[RestartCause.values().length];
+	private volatile int restartFailures;
+	private volatile long disconnectedAt = -1;
+	private volatile long lastTimeToReady = -1;
+	private volatile long maxTimeToReady;
+
+	void connecting(long now) {
+		if (disconnectedAt < 0)
+			disconnectedAt = now;
+	}
+
+	void connected(long now) {
+		if (connects > 0)
+			reconnects++;
+		connects++;
+		consecutiveFailures = 0;
+		if (disconnectedAt >= 0) {
+			long time = now - disconnectedAt;
+			lastTimeToReady = time;
+			if (time > maxTimeToReady)
+				maxTimeToReady = time;
+		}
+		disconnectedAt = -1;
+	}
+
+	int connectFailed(String reason) {
+		connectFailures++;
+		lastFailure = reason;
+		return ++consecutiveFailures;
+	}
+
+	void restarted(RestartCause cause) {
+		synchronized (restarts) {
+			restarts[cause.ordinal()]++;
+		}
+	}
+
+	void restartFailed() {
+		restartFailures++;
+	}
+
+	// successful connections, including the first one
+	public int getConnectCount() {
+		return connects;
+	}
+
+	public int getReconnectCount() {
+		return reconnects;
+	}
+
+	public int getConnectFailures() {
+		return connectFailures;
+	}
+
+	// failed attempts since we were last connected
+	public int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	public String getLastFailure() {
+		return lastFailure;
+	}
+
+	public int getRestartCount(RestartCause cause) {
+		synchronized (restarts) {
+			return restarts[cause.ordinal()];
+		}
+	}
+
+	public int getRestartFailures() {
+		return restartFailures;
+	}
+
+	// time since we lost the connection, or -1 if connected
+	public long getDisconnectedTime(long now) {
+		long at = disconnectedAt;
+		return at < 0 ? -1 : now - at;
+	}
+
+	// time from losing the connection until it was ready again
+	public long getLastTimeToReady() {
+		return lastTimeToReady;
+	}
+
+	public long getMaxTimeToReady() {
+		return maxTimeToReady;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("connects=").append(connects)
+				.append(", reconnects=").append(reconnects)
+				.append(", failures=").append(connectFailures)
+				.append(" (").append(consecutiveFailures).append(" current)")
+				.append(", time to ready last/max=").append(lastTimeToReady)
+				.append("/").append(maxTimeToReady).append("ms");
+		for (RestartCause cause : RestartCause.values())
+			sb.append(", restarts ").append(cause).append("=")
+					.append(getRestartCount(cause));
+		sb.append(", restart failures=").append(restartFailures);
+		if (lastFailure != null)
+			sb.append(", last failure=").append(lastFailure);
+		return sb.toString();
+	}
+}
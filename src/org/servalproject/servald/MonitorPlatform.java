@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The little the monitor needs from Android; logging, thread priorities, a
+ * clock and the socket to servald. Everything else in the monitor is plain
+ * java, so MonitorReplay can run it on a desktop JVM. There, messages are
+ * logged to stderr and there is no socket.
+ */
+abstract class MonitorPlatform {
+	static final int PRIORITY_BACKGROUND = 0;
+	static final int PRIORITY_FOREGROUND = 1;
+	static final int PRIORITY_URGENT_AUDIO = 2;
+
+	static final MonitorPlatform current = create();
+
+	private static MonitorPlatform create() {
+		try {
+			Class.forName("android.os.Process");
+		} catch (ClassNotFoundException e) {
+			return new Jvm();
+		}
+		return new AndroidMonitorPlatform();
+	}
+
+	// a connection to the servald monitor socket
+	interface Connection extends Closeable {
+		InputStream getInputStream() throws IOException;
+
+		OutputStream getOutputStream() throws IOException;
+	}
+
+	abstract void v(String tag, String msg);
+
+	abstract void d(String tag, String msg);
+
+	abstract void w(String tag, String msg);
+
+	abstract void e(String tag, String msg, Throwable t);
+
+	void e(String tag, String msg) {
+		e(tag, msg, null);
+	}
+
+	abstract void setThreadPriority(int priority);
+
+	// milliseconds since some fixed point, that doesn't jump when the wall
+	// clock is changed
+	abstract long elapsedRealtime();
+
+	abstract Connection connect() throws IOException;
+
+	private static class Jvm extends MonitorPlatform {
+		private void log(String level, String tag, String msg) {
+			System.err.println(level + "/" + tag + ": " + msg);
+		}
+
+		@Override
+		void v(String tag, String msg) {
+			log("V", tag, msg);
+		}
+
+		@Override
+		void d(String tag, String msg) {
+			log("D", tag, msg);
+		}
+
+		@Override
+		void w(String tag, String msg) {
+			log("W", tag, msg);
+		}
+
+		@Override
+		void e(String tag, String msg, Throwable t) {
+			log("E", tag, msg);
+			if (t != null)
+				t.printStackTrace();
+		}
+
+		@Override
+		void setThreadPriority(int priority) {
+			// leave it to the JVM
+		}
+
+		@Override
+		long elapsedRealtime() {
+			return System.nanoTime() / 1000000;
+		}
+
+		@Override
+		Connection connect() throws IOException {
+			throw new IOException("servald is not available on this platform");
+		}
+	}
+}
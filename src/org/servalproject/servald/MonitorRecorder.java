@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Copies everything read from the monitor socket into a file, so the
+ * session can be fed back through MonitorReplay later.
+ *
+ * The file starts with MAGIC, followed by one record per read;
+ * 8 byte nanoseconds since the recording started, 4 byte length, then the
+ * bytes that were read.
+ */
+public class MonitorRecorder extends InputStream {
+	private static final String TAG = "MonitorRecorder";
+	private static final MonitorPlatform platform = MonitorPlatform.current;
+	public static final int MAGIC = 0x534d5231; // "SMR1"
+
+	private final InputStream in;
+	private DataOutputStream out;
+	private final long start;
+
+	public MonitorRecorder(InputStream in, File file) throws IOException {
+		this.in = in;
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 8192));
+		this.out.writeInt(MAGIC);
+		this.start = System.nanoTime();
+	}
+
+	private void record(byte buffer[], int offset, int length) {
+		if (out == null || length <= 0)
+			return;
+		try {
+			out.writeLong(System.nanoTime() - start);
+			out.writeInt(length);
+			out.write(buffer, offset, length);
+		} catch (IOException e) {
+			// stop recording, but don't break the monitor connection
+			platform.e(TAG, e.getMessage(), e);
+			closeRecording();
+		}
+	}
+
+	private void closeRecording() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			platform.e(TAG, e.getMessage(), e);
+		}
+		out = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeRecording();
+		in.close();
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int ret = in.read(buffer, offset, length);
+		record(buffer, offset, ret);
+		return ret;
+	}
+
+	@Override
+	public int read(byte[] buffer) throws IOException {
+		return this.read(buffer, 0, buffer.length);
+	}
+
+	private final byte single[] = new byte[1];
+
+	@Override
+	public int read() throws IOException {
+		int ret = in.read();
+		if (ret >= 0) {
+			single[0] = (byte) ret;
+			record(single, 0, 1);
+		}
+		return ret;
+	}
+
+	@Override
+	public long skip(long byteCount) throws IOException {
+		// read skipped bytes so they end up in the recording
+		byte buff[] = new byte[(int) Math.min(byteCount, 4096)];
+		int ret = read(buff, 0, buff.length);
+		return ret < 0 ? 0 : ret;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+}
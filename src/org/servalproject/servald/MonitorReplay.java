@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Feeds a stream captured by MonitorRecorder back through a ServalDMonitor,
+ * either as fast as possible to measure parsing and dispatch throughput, or
+ * with the original timing to reproduce call audio problems.
+ *
+ * The whole recording is loaded into memory first, so reading it doesn't
+ * skew the results.
+ */
+public class MonitorReplay {
+	private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+	private long times[] = new long[256];
+	private long totalBytes = 0;
+	// 0 means as fast as possible, 1 is the original timing
+	private double speed = 0;
+
+	public MonitorReplay(File recording) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(recording), 8192));
+		try {
+			if (in.readInt() != MonitorRecorder.MAGIC)
+				throw new IOException(recording
+						+ " is not a monitor recording");
+			while (true) {
+				long time;
+				try {
+					time = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int len = in.readInt();
+				if (len <= 0)
+					throw new IOException("Invalid chunk length " + len);
+				byte chunk[] = new byte[len];
+				in.readFully(chunk);
+				if (chunks.size() >= times.length) {
+					long newTimes[] = new long[times.length * 2];
+					System.arraycopy(times, 0, newTimes, 0, times.length);
+					times = newTimes;
+				}
+				times[chunks.size()] = time;
+				chunks.add(chunk);
+				totalBytes += len;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	public long getByteCount() {
+		return totalBytes;
+	}
+
+	// hands out each recorded chunk, in the same sized reads as the socket
+	private class ReplayStream extends InputStream {
+		private int chunk = 0;
+		private int offset = 0;
+		private final long start = System.nanoTime();
+
+		private boolean next() throws IOException {
+			if (chunk >= chunks.size())
+				return false;
+			if (offset == 0 && speed > 0) {
+				long due = start + (long) (times[chunk] / speed);
+				long delay = due - System.nanoTime();
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!next())
+				return -1;
+			byte buff[] = chunks.get(chunk);
+			int ret = buff[offset++] & 0xFF;
+			if (offset >= buff.length) {
+				chunk++;
+				offset = 0;
+			}
+			return ret;
+		}
+
+		@Override
+		public int read(byte[] buffer, int off, int length)
+				throws IOException {
+			if (length == 0)
+				return 0;
+			if (!next())
+				return -1;
+			byte buff[] = chunks.get(chunk);
+			if (length > buff.length - offset)
+				length = buff.length - offset;
+			System.arraycopy(buff, offset, buffer, off, length);
+			offset += length;
+			if (offset >= buff.length) {
+				chunk++;
+				offset = 0;
+			}
+			return length;
+		}
+
+		@Override
+		public long skip(long byteCount) throws IOException {
+			if (byteCount <= 0)
+				return 0;
+			if (!next())
+				throw new EOFException("End of recording");
+			byte buff[] = chunks.get(chunk);
+			if (byteCount > buff.length - offset)
+				byteCount = buff.length - offset;
+			offset += byteCount;
+			if (offset >= buff.length) {
+				chunk++;
+				offset = 0;
+			}
+			return byteCount;
+		}
+
+		@Override
+		public int available() {
+			if (chunk >= chunks.size())
+				return 0;
+			return chunks.get(chunk).length - offset;
+		}
+	}
+
+	// stands in for the socket we would send to servald on
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int oneByte) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			count += length;
+		}
+	}
+
+	// the commands the app handles, on the same lanes
+	private static final String REALTIME[] = {
+			"INFO", "AUDIOPACKET", "AUDIOBATCH", "KEEPALIVE", "MONITORSTATUS",
+			"CALLSTATUS", "CODECS"
+	};
+	private static final String BACKGROUND[] = {
+			"NEWPEER", "OLDPEER", "BUNDLE"
+	};
+
+	// stands in for a real handler, reading every field and data byte
+	private static class ConsumeHandler implements
+			ServalDMonitor.MessageHandler {
+		private final byte buff[] = new byte[4096];
+
+		@Override
+		public int message(String cmd, ServalDMonitor.Fields args,
+				InputStream in, int dataLength) throws IOException {
+			while (args.hasNext())
+				args.next();
+			int read = 0;
+			while (read < dataLength) {
+				int ret = in.read(buff, 0,
+						Math.min(buff.length, dataLength - read));
+				if (ret < 0)
+					throw new EOFException();
+				read += ret;
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * Register handlers for the same commands as the app, that do nothing
+	 * but read them. So the dispatch and background lane costs can be
+	 * measured without Android.
+	 */
+	public static void addStandInHandlers(ServalDMonitor monitor) {
+		ConsumeHandler realtime = new ConsumeHandler();
+		for (String cmd : REALTIME)
+			monitor.addHandler(cmd, realtime);
+		ConsumeHandler background = new ConsumeHandler();
+		for (String cmd : BACKGROUND)
+			monitor.addBackgroundHandler(cmd, background);
+	}
+
+	public static class Result {
+		public long elapsed;
+		public long messages;
+		public long bytes;
+		public long sent;
+		public int unknown;
+		public LaneStats realtime;
+		public LaneStats background;
+
+		@Override
+		public String toString() {
+			double seconds = elapsed / 1000000000.0;
+			return messages + " messages, " + bytes + " bytes in "
+					+ (elapsed / 1000000) + "ms ("
+					+ (long) (messages / seconds) + " msgs/s, "
+					+ (long) (bytes / seconds) + " bytes/s), "
+					+ unknown + " unknown, " + sent + " bytes sent\n"
+					+ realtime + "\n" + background;
+		}
+	}
+
+	/**
+	 * Push the recording through monitor, as though servald had sent it.
+	 */
+	public Result replay(ServalDMonitor monitor) throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		long messages = monitor.getMessageCount();
+		int unknown = monitor.getUnknownCommandCount();
+
+		Result result = new Result();
+		long start = System.nanoTime();
+		monitor.replay(new ReplayStream(), out);
+		result.elapsed = System.nanoTime() - start;
+		result.messages = monitor.getMessageCount() - messages;
+		result.unknown = monitor.getUnknownCommandCount() - unknown;
+		result.bytes = totalBytes;
+		result.sent = out.count;
+		result.realtime = monitor.getRealtimeStats();
+		result.background = monitor.getBackgroundStats();
+		return result;
+	}
+
+	/**
+	 * MonitorReplay <recording> [speed] [iterations]
+	 *
+	 * Runs on a desktop JVM, with this class and the rest of the servald
+	 * package on the classpath. The app's handlers need Android, so they
+	 * are replaced by handlers that only read each command. On a device,
+	 * pass a monitor from Control.createMonitor() to replay() instead.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err
+					.println("Usage: MonitorReplay <recording> [speed] [iterations]");
+			return;
+		}
+		MonitorReplay replay = new MonitorReplay(new File(args[0]));
+		if (args.length > 1)
+			replay.setSpeed(Double.parseDouble(args[1]));
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		for (int i = 0; i < iterations; i++) {
+			ServalDMonitor monitor = new ServalDMonitor(null);
+			addStandInHandlers(monitor);
+			Result result = replay.replay(monitor);
+			monitor.stop();
+			System.out.println(result);
+		}
+	}
+}
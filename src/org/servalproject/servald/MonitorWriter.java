@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.servald;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Outbound half of the monitor connection.
+ *
+ * Messages are encoded by the sending thread straight into a ring of
+ * preallocated frames, then a single writer thread copies as many frames
+ * as are ready into one buffer and writes them to the socket together.
+ * Senders never block on the socket or on each other, if the ring is full
+ * the message is refused.
+ */
+class MonitorWriter implements Runnable {
+	private static final String TAG = "MonitorWriter";
+	private static final MonitorPlatform platform = MonitorPlatform.current;
+
+	static final int RING_SIZE = 64;
+	// enough for a header and VoMP.MAX_AUDIO_BYTES of audio
+	static final int FRAME_SIZE = 1280;
+
+	private static class Frame {
+		final byte buff[] = new byte[FRAME_SIZE];
+		int len;
+		long queued;
+		// the first fragment of the message, used to group latency stats
+		String type;
+	}
+
+	private final Frame ring[] = new Frame[RING_SIZE];
+	// the sequence number of the message in each slot, once it's complete
+	private final AtomicLongArray published = new AtomicLongArray(RING_SIZE);
+	private final AtomicLong claimed = new AtomicLong(0);
+	private volatile long consumed = 0;
+
+	private final ServalDMonitor monitor;
+	private volatile OutputStream out;
+	private volatile Thread thread;
+	private volatile boolean waiting = false;
+	private volatile boolean stopMe = false;
+
+	private final HashMap<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+	private final AtomicLong refused = new AtomicLong(0);
+	private long discarded = 0;
+
+	MonitorWriter(ServalDMonitor monitor) {
+		this.monitor = monitor;
+		for (int i = 0; i < RING_SIZE; i++) {
+			ring[i] = new Frame();
+			published.set(i, -1);
+		}
+	}
+
+	void setOutput(OutputStream out) {
+		this.out = out;
+		wake();
+	}
+
+	synchronized void start() {
+		if (thread != null)
+			return;
+		stopMe = false;
+		thread = new Thread(this, "Monitor writer");
+		thread.start();
+	}
+
+	synchronized void stop() {
+		stopMe = true;
+		out = null;
+		wake();
+	}
+
+	private void wake() {
+		Thread t = thread;
+		if (t != null && waiting)
+			LockSupport.unpark(t);
+	}
+
+	// reserve the next free slot, or return -1 if the writer is too far
+	// behind
+	private long claim() {
+		while (true) {
+			long seq = claimed.get();
+			if (seq - consumed >= RING_SIZE)
+				return -1;
+			if (claimed.compareAndSet(seq, seq + 1))
+				return seq;
+		}
+	}
+
+	private static int encode(byte buff[], int pos, String str)
+			throws IOException {
+		if (str == null)
+			return pos;
+		int len = str.length();
+		if (pos + len > buff.length)
+			throw new IOException("Message too long");
+		for (int i = 0; i < len; i++) {
+			char chr = str.charAt(i);
+			if (chr > 0xFF)
+				throw new IOException("Unexpected character " + chr);
+			buff[pos++] = (byte) chr;
+		}
+		return pos;
+	}
+
+	private static int encode(byte buff[], int pos, int value)
+			throws IOException {
+		if (value < 0)
+			throw new IOException("Negative value " + value);
+		int digits = 1;
+		for (int v = value / 10; v > 0; v /= 10)
+			digits++;
+		if (pos + digits > buff.length)
+			throw new IOException("Message too long");
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buff[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+	/**
+	 * Queue a message, optionally followed by a block of data. The message
+	 * fragments are concatenated, and should not include the trailing
+	 * newline.
+	 */
+	void send(byte data[], int dataOffset, int dataLen, String... message)
+			throws IOException {
+		if (stopMe)
+			throw new IOException("Stopping");
+
+		long seq = claim();
+		if (seq < 0) {
+			refused.incrementAndGet();
+			throw new IOException("Monitor send queue is full");
+		}
+
+		int slot = (int) (seq & (RING_SIZE - 1));
+		Frame frame = ring[slot];
+		frame.len = 0;
+		frame.type = message.length > 0 ? message[0] : null;
+		frame.queued = System.nanoTime();
+		try {
+			byte buff[] = frame.buff;
+			int pos = 0;
+			if (data != null) {
+				buff[pos++] = '*';
+				pos = encode(buff, pos, dataLen);
+				buff[pos++] = ':';
+			}
+			for (int i = 0; i < message.length; i++)
+				pos = encode(buff, pos, message[i]);
+			if (pos + 1 + (data == null ? 0 : dataLen) > buff.length)
+				throw new IOException("Message too long");
+			buff[pos++] = '\n';
+			if (data != null) {
+				System.arraycopy(data, dataOffset, buff, pos, dataLen);
+				pos += dataLen;
+			}
+			frame.len = pos;
+		} finally {
+			// always publish the slot, even if it's empty, or the writer
+			// will stall here
+			published.set(slot, seq);
+			wake();
+		}
+	}
+
+	LatencyHistogram[] getHistograms() {
+		synchronized (histograms) {
+			return histograms.values().toArray(
+					new LatencyHistogram[histograms.size()]);
+		}
+	}
+
+	// messages we refused to queue because the writer was too far behind
+	long getRefusedCount() {
+		return refused.get();
+	}
+
+	// messages thrown away because the socket wasn't connected
+	long getDiscardedCount() {
+		return discarded;
+	}
+
+	private void record(String type, long latency) {
+		synchronized (histograms) {
+			LatencyHistogram h = histograms.get(type);
+			if (h == null) {
+				h = new LatencyHistogram(type == null ? "" : type.trim());
+				histograms.put(type, h);
+			}
+			h.record(latency);
+		}
+	}
+
+	@Override
+	public void run() {
+		platform.setThreadPriority(MonitorPlatform.PRIORITY_URGENT_AUDIO);
+
+		// frames are gathered into one buffer so we only make one write
+		// system call for everything that is ready
+		byte batch[] = new byte[8192];
+		String batchTypes[] = new String[RING_SIZE];
+		long batchQueued[] = new long[RING_SIZE];
+
+		while (!stopMe) {
+			long next = consumed;
+			int slot = (int) (next & (RING_SIZE - 1));
+
+			if (published.get(slot) != next) {
+				waiting = true;
+				// check again, now that senders know to wake us
+				if (published.get(slot) != next && !stopMe)
+					LockSupport.parkNanos(this, 100000000);
+				waiting = false;
+				continue;
+			}
+
+			OutputStream o = out;
+			int batchLen = 0;
+			int frames = 0;
+
+			// gather every frame that is ready, and fits
+			while (published.get(slot) == next) {
+				Frame frame = ring[slot];
+				if (batchLen > 0 && batchLen + frame.len > batch.length)
+					break;
+				System.arraycopy(frame.buff, 0, batch, batchLen, frame.len);
+				batchLen += frame.len;
+				if (frame.len > 0) {
+					batchTypes[frames] = frame.type;
+					batchQueued[frames] = frame.queued;
+					frames++;
+				}
+				frame.type = null;
+				next++;
+				slot = (int) (next & (RING_SIZE - 1));
+				// release the slot to senders
+				consumed = next;
+				if (frames >= RING_SIZE)
+					break;
+			}
+
+			if (batchLen == 0)
+				continue;
+
+			if (o == null) {
+				discarded += frames;
+				continue;
+			}
+
+			try {
+				o.write(batch, 0, batchLen);
+				o.flush();
+			} catch (IOException e) {
+				platform.e(TAG, e.getMessage(), e);
+				monitor.writeFailed(o);
+				continue;
+			}
+
+			long now = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				record(batchTypes[i], now - batchQueued[i]);
+				batchTypes[i] = null;
+			}
+		}
+		synchronized (this) {
+			thread = null;
+		}
+	}
+}
@@ -82,4 +82,18 @@ public class Packet {
 		}
 	}
 
+	static public void hexToBin(byte[] hex, int offset, int len, byte[] buf)
+			throws HexDecodeException {
+		if (len != 2 * buf.length)
+			throw new HexDecodeException("invalid length " + len + " (should be " + (buf.length * 2) + ")");
+		int j = offset;
+		for (int i = 0; i != buf.length; i++) {
+			int d1 = Character.digit(hex[j++], 16);
+			int d2 = Character.digit(hex[j++], 16);
+			if (d1 == -1 || d2 == -1)
+				throw new HexDecodeException("non-hex digit in '" + ServalDMonitor.ascii(hex, offset, len) + "'");
+			buf[i] = (byte) ((d1 << 4) | d2);
+		}
+	}
+
 }
@@ -230,26 +230,21 @@ public class PeerListService {
 
 	public static int peerCount(final Context context) {
 		// Log.i("BatPhone", "Fetching subscriber list");
-		ServalD.command(new ResultCallback() {
-			@Override
-			public boolean result(String value) {
-				try {
-					SubscriberId sid = new SubscriberId(value);
+		try {
+			ServalD.idPeers(new ServalD.SubscriberIdResult() {
+				@Override
+				public void result(SubscriberId sid) {
 					Peer p = getPeer(context.getContentResolver(), sid, false);
 					boolean notify = !p.stillAlive();
 					p.lastSeen = SystemClock.elapsedRealtime();
 					if (notify) {
 						notifyListeners(p);
 					}
-					return true;
 				}
-				catch (SubscriberId.InvalidHexException e) {
-					Log.e("PeerListService", "Received invalid SID: " + value,
-							e);
-					return false;
-				}
-			}
-		}, "id", "peers");
+			});
+		} catch (ServalDFailureException e) {
+			Log.e("PeerListService", e.toString(), e);
+		}
 
 		int count = 0;
 		for (Peer p : peers.values()) {
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package org.servalproject.servald;
+
+/**
+ * Receives tabular command output from servald one value at a time, as it is
+ * produced, so large results don't need to be collected first.
+ */
+public interface RowCallback {
+	// the names of each column, before any values
+	public void columns(String names[]);
+
+	// the value of one column in the current row
+	public void value(int column, String value);
+
+	// the current row is complete, return false to ignore the rest
+	public boolean row();
+}
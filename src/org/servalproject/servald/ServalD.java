@@ -26,12 +26,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.servalproject.ServalBatPhoneApplication;
-import org.servalproject.rhizome.RhizomeManifest;
-import org.servalproject.rhizome.RhizomeManifestParseException;
 
 import android.net.Uri;
 import android.os.Bundle;
@@ -66,6 +63,201 @@ public class ServalD
 	private static native int rawCommand(List<String> outv, String[] args)
 			throws ServalDInterfaceError;
 
+	// servald's command line keeps global state and isn't re-entrant, so
+	// only one command may run at a time, from any thread
+	private static final ReentrantLock commandLock = new ReentrantLock();
+	private static final HashMap<String, LaneStats> commandStats = new HashMap<String, LaneStats>();
+
+	private static LaneStats getStats(String args[]) {
+		String name = args.length == 0 ? "" : args.length == 1 ? args[0]
+				: args[0] + " " + args[1];
+		synchronized (commandStats) {
+			LaneStats stats = commandStats.get(name);
+			if (stats == null) {
+				stats = new LaneStats(name);
+				commandStats.put(name, stats);
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * How long each command has spent waiting for other commands to finish,
+	 * and running, grouped by the first two words of the command.
+	 */
+	public static LaneStats[] getCommandStats() {
+		synchronized (commandStats) {
+			return commandStats.values().toArray(
+					new LaneStats[commandStats.size()]);
+		}
+	}
+
+	private static int runCommand(List<String> outv, String args[])
+			throws ServalDInterfaceError {
+		// eg from a callback while servald is producing a list
+		if (commandLock.isHeldByCurrentThread())
+			throw new ServalDInterfaceError("Cannot run "
+					+ Arrays.deepToString(args)
+					+ " while another command is running");
+		long queued = System.nanoTime();
+		commandLock.lock();
+		long start = System.nanoTime();
+		try {
+			return rawCommand(outv, args);
+		} finally {
+			commandLock.unlock();
+			long end = System.nanoTime();
+			LaneStats stats = getStats(args);
+			synchronized (stats) {
+				stats.ran(start - queued, end - start);
+			}
+		}
+	}
+
+	// hands each output field to a callback as rawCommand() produces it.
+	// Add only, fields aren't kept, so to anyone reading it the list is
+	// always empty
+	private static class CallbackList extends AbstractList<String> {
+		private final ResultCallback callback;
+
+		CallbackList(ResultCallback callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public boolean add(String object) {
+			if (log)
+				Log.i(TAG, "Result = " + object);
+			return callback.result(object);
+		}
+
+		@Override
+		public String get(int location) {
+			throw new IndexOutOfBoundsException("Fields are not kept, index "
+					+ location);
+		}
+
+		@Override
+		public int size() {
+			return 0;
+		}
+	}
+
+	// collects output fields straight into the array we return
+	private static class OutputList extends AbstractList<String> {
+		private String values[] = new String[16];
+		private int size = 0;
+
+		@Override
+		public boolean add(String object) {
+			if (size >= values.length) {
+				String newValues[] = new String[values.length * 2];
+				System.arraycopy(values, 0, newValues, 0, size);
+				values = newValues;
+			}
+			values[size++] = object;
+			return true;
+		}
+
+		@Override
+		public String get(int location) {
+			if (location >= size)
+				throw new IndexOutOfBoundsException();
+			return values[location];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public String[] toArray() {
+			if (size == values.length)
+				return values;
+			String ret[] = new String[size];
+			System.arraycopy(values, 0, ret, 0, size);
+			return ret;
+		}
+	}
+
+	/**
+	 * Turns output fields into rows and columns. Either the first field is
+	 * the number of columns followed by their names, or the names are known
+	 * in advance.
+	 */
+	private static class TableCallback implements ResultCallback {
+		private final RowCallback rows;
+		private String names[];
+		private int columns = -1;
+		private int column = 0;
+		private boolean stopped = false;
+		// exceptions can't be thrown back through rawCommand()
+		private Throwable error;
+
+		TableCallback(RowCallback rows) {
+			this.rows = rows;
+		}
+
+		TableCallback(RowCallback rows, String... names) {
+			this.rows = rows;
+			this.names = names;
+			this.columns = names.length;
+			rows.columns(names);
+		}
+
+		@Override
+		public boolean result(String value) {
+			if (stopped)
+				return false;
+			try {
+				return next(value);
+			} catch (RuntimeException e) {
+				error = e;
+			} catch (ServalDInterfaceError e) {
+				error = e;
+			}
+			stopped = true;
+			return false;
+		}
+
+		private boolean next(String value) {
+			if (columns < 0) {
+				columns = Integer.parseInt(value);
+				if (columns <= 0)
+					throw new ServalDInterfaceError("no columns, ncol="
+							+ columns);
+				names = new String[columns];
+				return true;
+			}
+			if (names[columns - 1] == null) {
+				names[column++] = value;
+				if (column >= columns) {
+					column = 0;
+					rows.columns(names);
+				}
+				return true;
+			}
+			rows.value(column++, value);
+			if (column >= columns) {
+				column = 0;
+				if (!rows.row())
+					stopped = true;
+			}
+			return !stopped;
+		}
+
+		void finished() {
+			if (error instanceof ServalDInterfaceError)
+				throw (ServalDInterfaceError) error;
+			if (error != null)
+				throw new ServalDInterfaceError(error.getMessage(), error);
+			if (column != 0 && !stopped)
+				throw new ServalDInterfaceError("incomplete row, "
+						+ column + " of " + columns + " columns");
+		}
+	}
+
 	/**
 	 * Common entry point into servald command line.
 	 *
@@ -78,28 +270,27 @@ public class ServalD
 	 * @return The servald exit status code (normally0 indicates success)
 	 */
 
-	public static synchronized int command(final ResultCallback callback,
+	public static int command(final ResultCallback callback,
 			String... args) throws ServalDInterfaceError {
 		if (log)
 			Log.i(ServalD.TAG, "args = " + Arrays.deepToString(args));
-		return rawCommand(new AbstractList<String>() {
-			@Override
-			public boolean add(String object) {
-				if (log)
-					Log.i(TAG, "Result = " + object);
-				return callback.result(object);
-			}
-			@Override
-			public String get(int location) {
-				// TODO Auto-generated method stub
-				return null;
-			}
-			@Override
-			public int size() {
-				// TODO Auto-generated method stub
-				return 0;
-			}
-		}, args);
+		return runCommand(new CallbackList(callback), args);
+	}
+
+	/**
+	 * Entry point for commands that produce a table of results.
+	 *
+	 * @param callback
+	 *            Receives the column names, then each value and the end of
+	 *            each row, as servald produces them.
+	 * @return The servald exit status code (normally 0 indicates success)
+	 */
+	public static int command(final RowCallback callback,
+			String... args) throws ServalDInterfaceError {
+		TableCallback table = new TableCallback(callback);
+		int status = command(table, args);
+		table.finished();
+		return status;
 	}
 
 	/**
@@ -113,18 +304,19 @@ public class ServalD
 	 *         have sent to standard output if invoked via a shell command line.
 	 */
 
-	public static synchronized ServalDResult command(String... args)
+	public static ServalDResult command(String... args)
 			throws ServalDInterfaceError {
 		if (log)
 			Log.i(ServalD.TAG, "args = " + Arrays.deepToString(args));
-		LinkedList<String> outv = new LinkedList<String>();
-		int status = rawCommand(outv, args);
+		OutputList outv = new OutputList();
+		int status = runCommand(outv, args);
+		String values[] = outv.toArray();
 		if (log) {
 			Log.i(ServalD.TAG,
-					"result = " + Arrays.deepToString(outv.toArray()));
+					"result = " + Arrays.deepToString(values));
 			Log.i(ServalD.TAG, "status = " + status);
 		}
-		return new ServalDResult(args, status, outv.toArray(new String[0]));
+		return new ServalDResult(args, status, values);
 	}
 
 	/** Start the servald server process if it is not already running.
@@ -178,109 +370,98 @@ public class ServalD
 		dnaLookup(results, did, 3000);
 	}
 
-	public static synchronized void dnaLookup(final LookupResults results,
+	public static void dnaLookup(final LookupResults results,
 			String did, int timeout) throws ServalDFailureException,
 			ServalDInterfaceError {
+		String args[] = new String[] {
+				"dna", "lookup", did, Integer.toString(timeout)
+		};
 		if (log)
-			Log.i(ServalD.TAG, "args = [dna, lookup, " + did + "]");
-		int ret = rawCommand(new AbstractList<String>() {
-			DnaResult nextResult;
-			int resultNumber = 0;
+			Log.i(ServalD.TAG, "args = " + Arrays.deepToString(args));
+		TableCallback table = new TableCallback(new RowCallback() {
+			String uri;
+			String did;
+			String name;
+
 			@Override
-			public boolean add(String value) {
-				if (log)
-					Log.i(ServalD.TAG, "result = " + value);
-				switch ((resultNumber++) % 3) {
+			public void columns(String[] names) {
+			}
+
+			@Override
+			public void value(int column, String value) {
+				switch (column) {
 				case 0:
-					try {
-						nextResult = new DnaResult(Uri.parse(value));
-					} catch (Exception e) {
-						Log.e(ServalD.TAG, "Unhandled dna response " + value, e);
-						nextResult = null;
-					}
+					uri = value;
 					break;
 				case 1:
-					if (nextResult != null && nextResult.did == null)
-						nextResult.did = value;
+					did = value;
 					break;
 				case 2:
-					if (nextResult != null) {
-						nextResult.name = value;
-						results.result(nextResult);
-					}
-					nextResult = null;
+					name = value;
 				}
-				return true;
 			}
 
 			@Override
-			public String get(int location) {
-				// TODO Auto-generated method stub
-				return null;
+			public boolean row() {
+				DnaResult result;
+				try {
+					result = new DnaResult(Uri.parse(uri));
+				} catch (Exception e) {
+					Log.e(ServalD.TAG, "Unhandled dna response "
+							+ uri, e);
+					return true;
+				}
+				if (result.did == null)
+					result.did = did;
+				result.name = name;
+				results.result(result);
+				return true;
 			}
+		}, "uri", "did", "name");
+		int ret = runCommand(new CallbackList(table), args);
+		table.finished();
+
+		if (ret == ServalDResult.STATUS_ERROR)
+			throw new ServalDFailureException("error exit status");
+	}
 
+	public interface SubscriberIdResult {
+		public void result(SubscriberId sid);
+	}
+
+	// each output field is a SID
+	private static void sidCommand(final SubscriberIdResult results,
+			String... args) throws ServalDFailureException,
+			ServalDInterfaceError {
+		int ret = command(new ResultCallback() {
 			@Override
-			public int size() {
-				// TODO Auto-generated method stub
-				return 0;
+			public boolean result(String value) {
+				try {
+					results.result(new SubscriberId(value));
+				} catch (SubscriberId.InvalidHexException e) {
+					Log.e(ServalD.TAG, "Received invalid SID: " + value, e);
+				}
+				return true;
 			}
-		}, new String[] {
-				"dna", "lookup", did, Integer.toString(timeout)
-		});
-
+		}, args);
 		if (ret == ServalDResult.STATUS_ERROR)
 			throw new ServalDFailureException("error exit status");
 	}
 
-	/** The result of a "rhizome list" operation.
-	 *
-	 * @author Andrew Bettison <andrew@servalproject.com>
+	/**
+	 * The identities unlocked in this servald keyring.
 	 */
-	public static class RhizomeListResult extends ServalDResult {
-		public final Map<String,Integer> columns;
-		public final String[][] list;
-
-		public RhizomeManifest toManifest(int i)
-				throws RhizomeManifestParseException
-		{
-			Bundle b = new Bundle();
-			for (Entry<String, Integer> entry : columns.entrySet()) {
-				b.putString(entry.getKey(), list[i][entry.getValue()]);
-			}
-			return RhizomeManifest.fromBundle(b, null);
-		}
+	public static void idSelf(SubscriberIdResult results)
+			throws ServalDFailureException, ServalDInterfaceError {
+		sidCommand(results, "id", "self");
+	}
 
-		private RhizomeListResult(ServalDResult result) throws ServalDInterfaceError {
-			super(result);
-			try {
-				int i = 0;
-				final int ncol = Integer.decode(this.outv[i++]);
-				if (ncol <= 0)
-					throw new ServalDInterfaceError("no columns, ncol=" + ncol, this);
-				final int nrows = (this.outv.length - 1) / ncol;
-				if (nrows < 1)
-					throw new ServalDInterfaceError("missing rows, nrows=" + nrows, this);
-				final int properlength = nrows * ncol + 1;
-				if (this.outv.length != properlength)
-					throw new ServalDInterfaceError("incomplete row, outv.length should be " + properlength, this);
-				int row, col;
-				this.columns = new HashMap<String,Integer>(ncol);
-				for (col = 0; col != ncol; ++col)
-					this.columns.put(this.outv[i++], col);
-				this.list = new String[nrows - 1][ncol];
-				for (row = 0; row != this.list.length; ++row)
-					for (col = 0; col != ncol; ++col)
-						this.list[row][col] = this.outv[i++];
-				if (i != this.outv.length)
-					throw new ServalDInterfaceError("logic error, i=" + i + ", outv.length=" + this.outv.length, this);
-			}
-			catch (IndexOutOfBoundsException e) {
-				throw new ServalDInterfaceError(result, e);
-			}
-			catch (IllegalArgumentException e) {
-				throw new ServalDInterfaceError(result, e);
-			}
-		}
+	/**
+	 * The identities of every peer that servald can currently reach.
+	 */
+	public static void idPeers(SubscriberIdResult results)
+			throws ServalDFailureException, ServalDInterfaceError {
+		sidCommand(results, "id", "peers");
 	}
 
 	/** The result of any rhizome operation that involves a payload.
@@ -367,9 +548,8 @@ public class ServalD
 		public void manifest(Bundle b);
 	}
 
-	public static synchronized void rhizomeListAsync(String service, SubscriberId sender,
-			SubscriberId recipient, int offset, int limit,
-			final ManifestResult results) {
+	private static String[] rhizomeListArgs(String service,
+			SubscriberId sender, SubscriberId recipient, int offset, int limit) {
 		List<String> args = new LinkedList<String>();
 		args.add("rhizome");
 		args.add("list");
@@ -385,66 +565,50 @@ public class ServalD
 		} else if (offset >= 0) {
 			args.add(Integer.toString(offset));
 		}
-		rawCommand(new AbstractList<String>() {
-			int state = 0;
-			int columns = 0;
-			int column;
-			String names[];
+		return args.toArray(new String[args.size()]);
+	}
 
-			Bundle b = new Bundle();
+	public static void rhizomeListAsync(String service, SubscriberId sender,
+			SubscriberId recipient, int offset, int limit,
+			final ManifestResult results) {
+		try {
+			rhizomeList(service, sender, recipient, offset, limit,
+					new RowCallback() {
+						String names[];
+						Bundle b = new Bundle();
+
+						@Override
+						public void columns(String[] names) {
+							this.names = names;
+						}
 
-			@Override
-			public boolean add(String value) {
-				try {
-					if (log)
-						Log.i(ServalD.TAG, "result = " + value);
-					switch (state) {
-					case 0:
-						columns = Integer.parseInt(value);
-						names = new String[columns];
-						column = 0;
-						state = 1;
-						break;
-					case 1:
-						names[column++] = value;
-						if (column >= columns) {
-							column = 0;
-							state = 2;
+						@Override
+						public void value(int column, String value) {
+							b.putString(names[column], value);
 						}
-						break;
-					case 2:
-						b.putString(names[column++], value);
-						if (column >= columns) {
-							column = 0;
-							results.manifest(b);
+
+						@Override
+						public boolean row() {
+							try {
+								results.manifest(b);
+							} catch (Exception e) {
+								Log.e(ServalD.TAG, e.getMessage(), e);
+								return false;
+							}
 							b.clear();
+							return true;
 						}
-						break;
-					}
-					return true;
-				}
-				catch (Exception e) {
-					Log.e(ServalD.TAG, e.getMessage(), e);
-					return false;
-				}
-			}
-
-			@Override
-			public String get(int location) {
-				// TODO Auto-generated method stub
-				return null;
-			}
-
-			@Override
-			public int size() {
-				// TODO Auto-generated method stub
-				return 0;
-			}
-		}, args.toArray(new String[args.size()]));
+					});
+		} catch (ServalDFailureException e) {
+			Log.e(ServalD.TAG, e.getMessage(), e);
+		} catch (ServalDInterfaceError e) {
+			Log.e(ServalD.TAG, e.getMessage(), e);
+		}
 	}
 
 	/**
-	 * Return a list of manifests currently in the Rhizome store.
+	 * List the manifests currently in the Rhizome store, passing each one to
+	 * the callback as servald produces it.
 	 *
 	 * @param service	If non-null, then all found manifests will have the given service type, eg,
 	 * 					"file", "MeshMS"
@@ -454,32 +618,16 @@ public class ServalD
 	 * 					clause.
 	 * @param limit 	Ignored if negative, otherwise passed to the SQL SELECT query in the LIMIT
 	 * 					clause.
-	 * @return			Array of rows, first row contains column labels.  Each row is an array of
-	 * 					strings, all rows have identical array length.
-	 *
-	 * @author Andrew Bettison <andrew@servalproject.com>
+	 * @param rows		Receives the column labels, then the value of each column of each row.
 	 */
-	public static RhizomeListResult rhizomeList(String service, SubscriberId sender, SubscriberId recipient, int offset, int limit)
-		throws ServalDFailureException, ServalDInterfaceError
-	{
-		List<String> args = new LinkedList<String>();
-		args.add("rhizome");
-		args.add("list");
-		args.add(""); // list of comma-separated PINs
-		args.add(service == null ? "" : service);
-		args.add(sender == null ? "" : sender.toHex().toUpperCase());
-		args.add(recipient == null ? "" : recipient.toHex().toUpperCase());
-		if (limit >= 0) {
-			if (offset < 0)
-				offset = 0;
-			args.add(Integer.toString(offset));
-			args.add(Integer.toString(limit));
-		} else if (offset >= 0) {
-			args.add(Integer.toString(offset));
-		}
-		ServalDResult result = command(args.toArray(new String[args.size()]));
-		result.failIfStatusNonzero();
-		return new RhizomeListResult(result);
+	public static void rhizomeList(String service, SubscriberId sender,
+			SubscriberId recipient, int offset, int limit, RowCallback rows)
+			throws ServalDFailureException, ServalDInterfaceError {
+		int status = command(rows,
+				rhizomeListArgs(service, sender, recipient, offset, limit));
+		if (status != 0)
+			throw new ServalDFailureException("non-zero exit status "
+					+ status);
 	}
 
 	/**
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package org.servalproject.servald;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs servald commands on a background thread, instead of blocking the
+ * caller. servald can only run one command at a time, so there is only one
+ * thread, and calls are run in the order they were made.
+ *
+ * Every request returns a Call that can be cancelled, and may be given a
+ * timeout. A JNI command can't be interrupted once it has started, but a
+ * cancelled call stops passing results to the caller straight away, asks
+ * servald to stop producing them, and never starts if it is still queued.
+ *
+ * Callbacks are invoked on a worker thread, or on the thread that cancelled
+ * the call.
+ */
+public class ServalDClient {
+	private static final String TAG = "ServalDClient";
+
+	private static ServalDClient instance;
+
+	public static synchronized ServalDClient getInstance() {
+		if (instance == null)
+			instance = new ServalDClient();
+		return instance;
+	}
+
+	public interface Callback<T> {
+		public void result(T result);
+
+		// the call threw an exception, was cancelled
+		// (CancellationException) or timed out (TimeoutException)
+		public void failed(Throwable e);
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final Timer timer = new Timer("ServalD timeouts", true);
+	private final HashMap<String, LaneStats> stats = new HashMap<String, LaneStats>();
+
+	private ServalDClient() {
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "ServalD");
+					}
+				});
+	}
+
+	private LaneStats getStats(String name) {
+		synchronized (stats) {
+			LaneStats s = stats.get(name);
+			if (s == null) {
+				s = new LaneStats(name);
+				stats.put(name, s);
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Time each kind of call spent queued behind other calls, and running.
+	 */
+	public LaneStats[] getStats() {
+		synchronized (stats) {
+			return stats.values().toArray(new LaneStats[stats.size()]);
+		}
+	}
+
+	public class Call<T> extends FutureTask<T> {
+		public final String name;
+		private final Callback<T> callback;
+		private final long queued = System.nanoTime();
+		private TimerTask timeout;
+		private volatile boolean timedOut = false;
+
+		Call(String name, Callable<T> callable, Callback<T> callback) {
+			super(callable);
+			this.name = name;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			if (isCancelled())
+				return;
+			long start = System.nanoTime();
+			super.run();
+			LaneStats s = getStats(name);
+			synchronized (s) {
+				s.ran(start - queued, System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		protected void done() {
+			synchronized (this) {
+				if (timeout != null)
+					timeout.cancel();
+			}
+			// we may have been cancelled before we started
+			executor.remove(this);
+			if (callback == null)
+				return;
+
+			try {
+				if (isCancelled()) {
+					callback.failed(timedOut ? new TimeoutException(name
+							+ " timed out") : new CancellationException(name
+							+ " cancelled"));
+					return;
+				}
+				T result;
+				try {
+					result = get();
+				} catch (ExecutionException e) {
+					callback.failed(e.getCause());
+					return;
+				} catch (InterruptedException e) {
+					callback.failed(e);
+					return;
+				}
+				callback.result(result);
+			} catch (Exception e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+
+		private synchronized void setTimeout(long millis) {
+			if (millis <= 0 || isDone())
+				return;
+			timeout = new TimerTask() {
+				@Override
+				public void run() {
+					timedOut = true;
+					Call.this.cancel(false);
+				}
+			};
+			timer.schedule(timeout, millis);
+		}
+	}
+
+	/**
+	 * Run any work that involves servald on our threads, so it can be
+	 * cancelled and timed like a single command.
+	 */
+	public <T> Call<T> submit(String name, long timeout, Callable<T> work,
+			Callback<T> callback) {
+		Call<T> call = new Call<T>(name, work, callback);
+		call.setTimeout(timeout);
+		executor.execute(call);
+		return call;
+	}
+
+	private static String name(String args[]) {
+		return args.length == 0 ? "" : args.length == 1 ? args[0] : args[0]
+				+ " " + args[1];
+	}
+
+	public Call<ServalDResult> command(long timeout,
+			Callback<ServalDResult> callback, final String... args) {
+		if (ServalD.log)
+			Log.v(TAG, "Queueing " + Arrays.deepToString(args));
+		return submit(name(args), timeout, new Callable<ServalDResult>() {
+			@Override
+			public ServalDResult call() throws Exception {
+				return ServalD.command(args);
+			}
+		}, callback);
+	}
+
+	// stops forwarding results once the call has been cancelled
+	private static class CancellableRows implements RowCallback {
+		private final RowCallback rows;
+		Call<?> call;
+
+		CancellableRows(RowCallback rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public void columns(String[] names) {
+			if (!call.isCancelled())
+				rows.columns(names);
+		}
+
+		@Override
+		public void value(int column, String value) {
+			if (!call.isCancelled())
+				rows.value(column, value);
+		}
+
+		@Override
+		public boolean row() {
+			if (call.isCancelled())
+				return false;
+			return rows.row();
+		}
+	}
+
+	public Call<Void> rhizomeList(final String service,
+			final SubscriberId sender, final SubscriberId recipient,
+			final int offset, final int limit, RowCallback rows, long timeout,
+			Callback<Void> callback) {
+		final CancellableRows cancellable = new CancellableRows(rows);
+		Call<Void> call = new Call<Void>("rhizome list", new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				ServalD.rhizomeList(service, sender, recipient, offset,
+						limit, cancellable);
+				return null;
+			}
+		}, callback);
+		cancellable.call = call;
+		call.setTimeout(timeout);
+		executor.execute(call);
+		return call;
+	}
+
+	/**
+	 * Look up a phone number. The lookup itself is given timeout ms, the
+	 * call is abandoned if it hasn't finished a second after that.
+	 */
+	public Call<Void> dnaLookup(final LookupResults results, final String did,
+			final int timeout, Callback<Void> callback) {
+		final Call<?> holder[] = new Call<?>[1];
+		final LookupResults cancellable = new LookupResults() {
+			@Override
+			public void result(DnaResult nextResult) {
+				if (!holder[0].isCancelled())
+					results.result(nextResult);
+			}
+		};
+		Call<Void> call = new Call<Void>("dna lookup", new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				ServalD.dnaLookup(cancellable, did, timeout);
+				return null;
+			}
+		}, callback);
+		holder[0] = call;
+		call.setTimeout(timeout + 1000);
+		executor.execute(call);
+		return call;
+	}
+
+	private Call<Void> sidCommand(final boolean self,
+			final ServalD.SubscriberIdResult results, long timeout,
+			Callback<Void> callback) {
+		final Call<?> holder[] = new Call<?>[1];
+		final ServalD.SubscriberIdResult cancellable = new ServalD.SubscriberIdResult() {
+			@Override
+			public void result(SubscriberId sid) {
+				if (!holder[0].isCancelled())
+					results.result(sid);
+			}
+		};
+		Call<Void> call = new Call<Void>(self ? "id self" : "id peers",
+				new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if (self)
+							ServalD.idSelf(cancellable);
+						else
+							ServalD.idPeers(cancellable);
+						return null;
+					}
+				}, callback);
+		holder[0] = call;
+		call.setTimeout(timeout);
+		executor.execute(call);
+		return call;
+	}
+
+	public Call<Void> idSelf(ServalD.SubscriberIdResult results,
+			long timeout, Callback<Void> callback) {
+		return sidCommand(true, results, timeout, callback);
+	}
+
+	public Call<Void> idPeers(ServalD.SubscriberIdResult results,
+			long timeout, Callback<Void> callback) {
+		return sidCommand(false, results, timeout, callback);
+	}
+}
@@ -30,6 +30,14 @@ public class ServalDInterfaceError extends Error
 {
 	private static final long serialVersionUID = 1L;
 
+	public ServalDInterfaceError(String message) {
+		super(message);
+	}
+
+	public ServalDInterfaceError(String message, Throwable cause) {
+		super(message, cause);
+	}
+
 	public ServalDInterfaceError(String message, ServalDResult result) {
 		super(message + ": " + result);
 	}
@@ -20,45 +20,38 @@
 
 package org.servalproject.servald;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
-import java.util.regex.Pattern;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.servalproject.ServalBatPhoneApplication;
 
-import android.net.LocalSocket;
-import android.net.LocalSocketAddress;
-import android.os.Process;
-import android.util.Log;
-
 public class ServalDMonitor implements Runnable {
-	private LocalSocket socket = null;
-	private LocalSocketAddress serverSocketAddress = new LocalSocketAddress(
-			"org.servalproject.servald.monitor.socket",
-			LocalSocketAddress.Namespace.ABSTRACT);
-
-	// Use a filesystem binding point from inside our app dir at our end,
-	// so that no one other than the server can send us messages.
-	private LocalSocketAddress clientSocketAddress = new LocalSocketAddress(
-			"/data/data/org.servalproject/var/serval-node/servald-java-client.socket",
-			LocalSocketAddress.Namespace.FILESYSTEM);
+	private static final MonitorPlatform platform = MonitorPlatform.current;
+	private MonitorPlatform.Connection socket = null;
 
 	private OutputStream os = null;
+	private final MonitorWriter writer = new MonitorWriter(this);
 	private InputStream is = null;
 	private boolean stopMe = false;
 	// WARNING, absolutely kills phone calls logging every audio packet in both
 	// directions
 	private boolean logMessages = false;
+	// capture everything we read to this file, for MonitorReplay
+	private volatile File recordFile = null;
 
 	int dataBytes = 0;
+	// the number of audio blocks servald has agreed to accept in a single
+	// AUDIOS message, 1 until batching has been negotiated on this connection
+	private volatile int audioBatchLimit = 1;
 	private Messages messages;
 
 	// sigh, Integer.parseInt is a bit slow...
@@ -134,17 +127,532 @@ public class ServalDMonitor implements Runnable {
 		return neg ? -ret : ret;
 	}
 
+	// a String from a field of the monitor protocol, which is ascii.
+	// String(byte[], int, int, Charset) needs API 9
+	public static String ascii(byte buff[], int offset, int len) {
+		char chars[] = new char[len];
+		for (int i = 0; i < len; i++)
+			chars[i] = (char) (buff[offset + i] & 0xFF);
+		return new String(chars);
+	}
+
+	// the same again, straight out of a byte buffer so the monitor thread
+	// doesn't need to build a String for every numeric field
+	public static int parseInt(byte buff[], int offset, int len) {
+		if (len == 0)
+			throw new NumberFormatException("Invalid int: \"\"");
+
+		int ret = 0;
+		boolean neg = false;
+
+		for (int i = 0; i < len; i++) {
+			int c = buff[offset + i];
+			if (c >= '0' && c <= '9')
+				ret = (ret << 1) + (ret << 3) + (c - '0');
+			else if (c == '-')
+				neg = true;
+			else if (i == 0)
+				throw new NumberFormatException("Invalid int: \""
+						+ ascii(buff, offset, len) + "\"");
+		}
+		if (neg)
+			return -ret;
+		return ret;
+	}
+
+	public static int parseIntHex(byte buff[], int offset, int len) {
+		if (len == 0)
+			throw new NumberFormatException("Invalid int: \"\"");
+
+		int ret = 0;
+		boolean neg = false;
+
+		for (int i = 0; i < len; i++) {
+			int c = buff[offset + i];
+			if (c >= '0' && c <= '9')
+				ret = (ret << 4) + (c - '0');
+			else if (c >= 'a' && c <= 'f')
+				ret = (ret << 4) + 10 + (c - 'a');
+			else if (c >= 'A' && c <= 'F')
+				ret = (ret << 4) + 10 + (c - 'A');
+			else if (c == '-')
+				neg = true;
+			else if (i == 0)
+				throw new NumberFormatException("Invalid int: \""
+						+ ascii(buff, offset, len) + "\"");
+		}
+		if (neg)
+			return -ret;
+		return ret;
+	}
+
+	public static long parseLong(byte buff[], int offset, int len) {
+		boolean neg = false;
+		int i = 0;
+		if (len != 0 && buff[offset] == '-') {
+			neg = true;
+			++i;
+		}
+		if (i >= len)
+			throw new NumberFormatException("Invalid long: \""
+					+ ascii(buff, offset, len) + "\"");
+		long ret = 0;
+		for (; i < len; i++) {
+			int c = buff[offset + i];
+			if (c >= '0' && c <= '9')
+				ret = (ret << 1) + (ret << 3) + (c - '0');
+			else
+				throw new NumberFormatException("Invalid long: \""
+						+ ascii(buff, offset, len) + "\"");
+		}
+		return neg ? -ret : ret;
+	}
+
 	public ServalDMonitor(Messages messages) {
 		this.messages = messages;
+		addHandler("ERROR", new MessageHandler() {
+			@Override
+			public int message(String cmd, Fields args, InputStream in,
+					int dataLength) {
+				while (args.hasNext())
+					platform.e("ServalDMonitor", args.next());
+				return 0;
+			}
+		});
 	}
 
 	public interface Messages {
 		public void connected();
+	}
+
+	public enum State {
+		// trying to connect to servald
+		Connecting,
+		Ready,
+		// connection attempts keep failing
+		Degraded,
+		// servald is being stopped and started again
+		Restarting,
+		Stopped,
+	}
+
+	/**
+	 * Notified when the connection state changes, on whichever thread
+	 * changed it. Listeners should not block.
+	 */
+	public interface StateListener {
+		public void stateChanged(ServalDMonitor monitor, State state);
+	}
+
+	// give up waiting for servald to accept our connection, and restart it
+	// after this many attempts, over this long
+	private static final int DEGRADED_AFTER = 3;
+	private static final int RESTART_AFTER = 6;
+	private static final long UNRESPONSIVE_TIME = 15000;
+	// servald needs some time after starting before it listens
+	private static final long START_GRACE_TIME = 5000;
+
+	private volatile State state = State.Connecting;
+	private final CopyOnWriteArrayList<StateListener> stateListeners = new CopyOnWriteArrayList<StateListener>();
+	private final MonitorHealth health = new MonitorHealth();
+	private final Backoff connectBackoff = new Backoff(100, 5000);
+	// successive restarts wait longer and longer, until we connect again
+	private final Backoff restartBackoff = new Backoff(30000, 300000);
+	private int restartAttempts = 0;
+	private long lastRestart = -1;
+
+	public State getState() {
+		return state;
+	}
 
-		public int message(String cmd, Iterator<String> iArgs,
+	public MonitorHealth getHealth() {
+		return health;
+	}
+
+	public void addStateListener(StateListener listener) {
+		stateListeners.add(listener);
+	}
+
+	public void removeStateListener(StateListener listener) {
+		stateListeners.remove(listener);
+	}
+
+	private void setState(State newState) {
+		synchronized (stateListeners) {
+			if (state == newState || state == State.Stopped)
+				return;
+			platform.v("ServalDMonitor", "State " + state + " -> " + newState);
+			state = newState;
+		}
+		for (StateListener listener : stateListeners) {
+			try {
+				listener.stateChanged(this, newState);
+			} catch (Exception e) {
+				platform.e("ServalDMonitor", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Handles one type of monitor command. The cmd passed in is the same
+	 * String instance that the handler was registered with.
+	 *
+	 * @return the number of bytes of the data block that were consumed
+	 */
+	public interface MessageHandler {
+		public int message(String cmd, Fields args,
 				InputStream in, int dataLength) throws IOException;
 	}
 
+	private static class HandlerEntry {
+		final String command;
+		final int hash;
+		final MessageHandler handler;
+		final boolean background;
+
+		HandlerEntry(String command, MessageHandler handler,
+				boolean background) {
+			this.command = command;
+			this.hash = command.hashCode();
+			this.handler = handler;
+			this.background = background;
+		}
+	}
+
+	// registered handlers, the map is only touched while holding the lock on
+	// it, the hash table built from it is replaced whenever it changes so the
+	// monitor thread can read it without locking
+	private final HashMap<String, HandlerEntry> registered = new HashMap<String, HandlerEntry>();
+	private volatile HandlerEntry handlerTable[] = new HandlerEntry[1];
+	private volatile int unknownCommands = 0;
+	private volatile long messageCount = 0;
+
+	// Two lanes for processing commands. Anything that affects audio is
+	// handled inline on the monitor thread, anything that might block is
+	// copied and handed to a background thread.
+	private final LaneStats realtimeStats = new LaneStats("Monitor");
+	private final BackgroundLane background = new BackgroundLane(
+			"Monitor background", 64);
+
+	/**
+	 * Register a handler for a monitor command, replacing any previous
+	 * handler for the same command. Subsystems should register the set of
+	 * commands they care about before the monitor thread is started.
+	 *
+	 * The handler will be called on the monitor thread, so it must not block.
+	 */
+	public void addHandler(String cmd, MessageHandler handler) {
+		synchronized (registered) {
+			registered.put(cmd, new HandlerEntry(cmd, handler, false));
+			rebuildHandlerTable();
+		}
+	}
+
+	/**
+	 * Register a handler for a monitor command that may take a while to
+	 * process. The command is copied and passed to the handler on a
+	 * background thread.
+	 *
+	 * While a command is waiting to be processed, a newer command for the
+	 * same handler with the same first argument (eg the same SID or bundle
+	 * id) will replace it.
+	 */
+	public void addBackgroundHandler(String cmd, MessageHandler handler) {
+		synchronized (registered) {
+			registered.put(cmd, new HandlerEntry(cmd, handler, true));
+			rebuildHandlerTable();
+		}
+	}
+
+	/**
+	 * Run some work on the same background thread as background message
+	 * handlers. Work with an equal key that is still waiting will be
+	 * replaced.
+	 */
+	public boolean runInBackground(Object key, Runnable action) {
+		return background.execute(key, action);
+	}
+
+	public LaneStats getRealtimeStats() {
+		return realtimeStats;
+	}
+
+	public LaneStats getBackgroundStats() {
+		return background.stats;
+	}
+
+	// merges background commands for the same handler & subject
+	private static class CommandKey {
+		final MessageHandler handler;
+		final String subject;
+
+		CommandKey(MessageHandler handler, String subject) {
+			this.handler = handler;
+			this.subject = subject;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CommandKey))
+				return false;
+			CommandKey other = (CommandKey) o;
+			return handler == other.handler
+					&& (subject == null ? other.subject == null : subject
+							.equals(other.subject));
+		}
+
+		@Override
+		public int hashCode() {
+			return handler.hashCode() ^ (subject == null ? 0 : subject.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return subject;
+		}
+	}
+
+	private void queueCommand(final HandlerEntry entry, Fields args,
+			InputStream in, final int dataLength) throws IOException {
+		final Fields copy = args.copy();
+		final byte data[] = new byte[dataLength];
+		int read = 0;
+		while (read < dataLength) {
+			int ret = in.read(data, read, dataLength - read);
+			if (ret < 0)
+				throw new EOFException();
+			read += ret;
+		}
+
+		String subject = null;
+		if (copy.hasNext())
+			subject = ascii(copy.line, copy.peekOffset(), copy.peekLength());
+
+		background.execute(new CommandKey(entry.handler, subject),
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							entry.handler.message(entry.command, copy,
+									new ByteArrayInputStream(data),
+									dataLength);
+						} catch (IOException e) {
+							platform.e("ServalDMonitor", e.getMessage(), e);
+						}
+					}
+				});
+	}
+
+	public void removeHandler(String cmd) {
+		synchronized (registered) {
+			if (registered.remove(cmd) != null)
+				rebuildHandlerTable();
+		}
+	}
+
+	private void rebuildHandlerTable() {
+		// open addressing, keep the table at most half full
+		int size = 1;
+		while (size < registered.size() * 2)
+			size <<= 1;
+		HandlerEntry table[] = new HandlerEntry[size];
+		for (HandlerEntry entry : registered.values()) {
+			int slot = entry.hash & (size - 1);
+			while (table[slot] != null)
+				slot = (slot + 1) & (size - 1);
+			table[slot] = entry;
+		}
+		handlerTable = table;
+	}
+
+	// find the handler for the next field, without building a String
+	private HandlerEntry findHandler(Fields fields) {
+		HandlerEntry table[] = handlerTable;
+		int mask = table.length - 1;
+		int hash = fields.peekHash();
+		int slot = hash & mask;
+		while (true) {
+			HandlerEntry entry = table[slot];
+			if (entry == null)
+				return null;
+			if (entry.hash == hash && fields.peekEquals(entry.command))
+				return entry;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * The number of commands received that had no registered handler.
+	 */
+	public int getUnknownCommandCount() {
+		return unknownCommands;
+	}
+
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * A cursor over the ':' separated fields of the current monitor command.
+	 * Each field is an offset/length view into a line buffer that is re-used
+	 * for every command, so numeric and SID fields can be decoded without
+	 * building a String first. Only next() allocates.
+	 *
+	 * A Fields instance is only valid for the duration of a call to
+	 * MessageHandler.message().
+	 */
+	public static class Fields {
+		private static final int MAX_FIELDS = 32;
+
+		// ascii bytes of the current line, without separators
+		private final byte line[];
+		private final int start[] = new int[MAX_FIELDS];
+		private final int end[] = new int[MAX_FIELDS];
+		private int count;
+		private int index;
+
+		private Fields(int lineSize) {
+			line = new byte[lineSize];
+		}
+
+		// copy the remaining fields so they can outlive the current command
+		Fields copy() {
+			int offset = index < count ? start[index] : 0;
+			int length = index < count ? end[count - 1] - offset : 0;
+			Fields ret = new Fields(length);
+			System.arraycopy(line, offset, ret.line, 0, length);
+			for (int i = index; i < count; i++)
+				ret.add(start[i] - offset, end[i] - offset);
+			return ret;
+		}
+
+		private void reset() {
+			count = 0;
+			index = 0;
+		}
+
+		private void add(int fieldStart, int fieldEnd) {
+			// silently drop any fields beyond the ones we can remember
+			if (count >= MAX_FIELDS)
+				return;
+			start[count] = fieldStart;
+			end[count] = fieldEnd;
+			count++;
+		}
+
+		private int current() {
+			if (index >= count)
+				throw new NoSuchElementException();
+			return index;
+		}
+
+		public boolean hasNext() {
+			return index < count;
+		}
+
+		public int remaining() {
+			return count - index;
+		}
+
+		/**
+		 * The buffer that the offset and length of each field refer to.
+		 */
+		public byte[] buffer() {
+			return line;
+		}
+
+		// offset of the next field in buffer()
+		public int peekOffset() {
+			return start[current()];
+		}
+
+		// length of the next field
+		public int peekLength() {
+			int i = current();
+			return end[i] - start[i];
+		}
+
+		public void skip() {
+			current();
+			index++;
+		}
+
+		// compare the next field with an ascii string, without consuming it
+		public boolean peekEquals(String value) {
+			int i = current();
+			int len = end[i] - start[i];
+			if (len != value.length())
+				return false;
+			int offset = start[i];
+			for (int j = 0; j < len; j++)
+				if (line[offset + j] != value.charAt(j))
+					return false;
+			return true;
+		}
+
+		public String next() {
+			int i = current();
+			index++;
+			return ascii(line, start[i], end[i] - start[i]);
+		}
+
+		public int nextInt() {
+			int i = current();
+			index++;
+			return parseInt(line, start[i], end[i] - start[i]);
+		}
+
+		public int nextIntHex() {
+			int i = current();
+			index++;
+			return parseIntHex(line, start[i], end[i] - start[i]);
+		}
+
+		public long nextLong() {
+			int i = current();
+			index++;
+			return parseLong(line, start[i], end[i] - start[i]);
+		}
+
+		public SubscriberId nextSid() throws IOException {
+			int i = current();
+			index++;
+			byte binary[] = new byte[SubscriberId.BINARY_SIZE];
+			try {
+				Packet.hexToBin(line, start[i], end[i] - start[i], binary);
+				return new SubscriberId(binary);
+			} catch (Packet.HexDecodeException e) {
+				IOException t = new IOException(e.getMessage());
+				t.initCause(e);
+				throw t;
+			} catch (SubscriberId.InvalidBinaryException e) {
+				IOException t = new IOException(e.getMessage());
+				t.initCause(e);
+				throw t;
+			}
+		}
+
+		// same value as String.hashCode() for an ascii field
+		public int peekHash() {
+			int i = current();
+			int hash = 0;
+			for (int j = start[i]; j < end[i]; j++)
+				hash = 31 * hash + line[j];
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < count; i++) {
+				if (i > 0)
+					sb.append(':');
+				sb.append(ascii(line, start[i], end[i] - start[i]));
+			}
+			return sb.toString();
+		}
+	}
+
 	// Attempt to connect to the servald monitor interface
 	private synchronized void createSocket() throws IOException {
 		if (socket != null)
@@ -153,48 +661,78 @@ public class ServalDMonitor implements Runnable {
 		if (stopMe)
 			throw new IOException("Stopping");
 
-		Log.v("ServalDMonitor", "Creating socket");
-		LocalSocket socket = new LocalSocket();
+		platform.v("ServalDMonitor", "Creating socket");
+		MonitorPlatform.Connection socket = platform.connect();
 		try {
-			socket.bind(clientSocketAddress);
-			socket.setSoTimeout(1000);
-			socket.connect(serverSocketAddress);
-			socket.setSoTimeout(60000);
-			is = new BufferedInputStream(
-					socket.getInputStream(), 640);
+			// processInput() does its own buffering
+			is = socket.getInputStream();
 			if (logMessages) {
 				is = new DumpInputStream(is);
 			}
-			os = new BufferedOutputStream(socket.getOutputStream(), 640);
+			File record = recordFile;
+			if (record != null) {
+				try {
+					is = new MonitorRecorder(is, record);
+				} catch (IOException e) {
+					platform.e("ServalDMonitor", e.getMessage(), e);
+				}
+			}
+			// MonitorWriter batches frames into a single write
+			os = socket.getOutputStream();
+			writer.setOutput(os);
+			writer.start();
 			this.socket = socket;
+			audioBatchLimit = 1;
 
 			if (this.messages != null)
 				messages.connected();
 
+			health.connected(platform.elapsedRealtime());
+			restartAttempts = 0;
+			setState(State.Ready);
 			return;
 		} catch (IOException e) {
 			try {
 				if (socket != null)
 					socket.close();
 			} catch (IOException e1) {
-				Log.e("ServalDMonitor", e1.getMessage(), e1);
+				platform.e("ServalDMonitor", e1.getMessage(), e1);
 			}
 			throw e;
 		}
 	}
 
 	private void cleanupSocket() {
-		close(is);
-		is = null;
-		close(os);
-		os = null;
-		try {
-			if (socket != null)
-				socket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		boolean wasConnected;
+		synchronized (this) {
+			wasConnected = os != null;
+			writer.setOutput(null);
+			close(is);
+			is = null;
+			close(os);
+			os = null;
+			try {
+				if (socket != null)
+					socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			socket = null;
+		}
+		// tell listeners outside the lock, they may want to send messages
+		if (wasConnected) {
+			health.connecting(platform.elapsedRealtime());
+			setState(stopMe ? State.Stopped : State.Connecting);
+		}
+	}
+
+	// called by the writer thread when the socket can't be written to
+	void writeFailed(OutputStream out) {
+		synchronized (this) {
+			if (out != os)
+				return;
 		}
-		socket = null;
+		cleanupSocket();
 	}
 
 	private void close(Closeable c) {
@@ -203,47 +741,89 @@ public class ServalDMonitor implements Runnable {
 		try {
 			c.close();
 		} catch (IOException e) {
-			Log.e("ServalDMonitor", e.getMessage(), e);
+			platform.e("ServalDMonitor", e.getMessage(), e);
 		}
 	}
 
 	private Thread currentThread;
 
-	private void reconnect() throws IOException, InterruptedException,
+	private void reconnect() throws InterruptedException,
 			ServalDFailureException, ServalDInterfaceError {
-		while (socket == null) {
+		health.connecting(platform.elapsedRealtime());
+		while (socket == null && !stopMe) {
 			try {
 				createSocket();
 				return;
 			} catch (IOException e) {
-				if (ServalD.uptime() > 5000) {
-					// assume servald is dead and must be restarted
-					Log.v("ServalDMonitor",
-							"servald appears to have died, I can't reconnect to it. Forcing a restart");
-					try {
-						ServalD.serverStop();
-					} catch (Exception e2) {
-						// ignore all failures, at least we tried...
-						Log.e("ServalDMonitor", e2.toString(), e2);
-					}
-					ServalD.serverStart();
+				int failures = health.connectFailed(e.getMessage());
+				platform.v("ServalDMonitor", "Connection attempt " + failures
+						+ " failed; " + e.getMessage());
+
+				MonitorHealth.RestartCause cause = restartCause(failures);
+				if (cause != null) {
+					restart(cause);
 					continue;
 				}
 
-				// throttle connection attempts
-				Thread.sleep(100);
-				throw e;
+				if (failures >= DEGRADED_AFTER)
+					setState(State.Degraded);
+				Thread.sleep(connectBackoff.delay(failures));
 			}
 		}
 	}
 
+	// should we give up on this servald process?
+	private MonitorHealth.RestartCause restartCause(int failures)
+			throws ServalDFailureException, ServalDInterfaceError {
+		if (failures < RESTART_AFTER || ServalD.uptime() < START_GRACE_TIME)
+			return null;
+
+		long now = platform.elapsedRealtime();
+		if (lastRestart >= 0
+				&& now - lastRestart < restartBackoff.delay(restartAttempts))
+			return null;
+
+		if (!ServalD.serverIsRunning())
+			return MonitorHealth.RestartCause.NotRunning;
+
+		if (health.getDisconnectedTime(now) >= UNRESPONSIVE_TIME)
+			return MonitorHealth.RestartCause.Unresponsive;
+		return null;
+	}
+
+	private void restart(MonitorHealth.RestartCause cause)
+			throws ServalDFailureException, ServalDInterfaceError {
+		platform.v("ServalDMonitor", "Restarting servald, " + cause + ", "
+				+ health);
+		setState(State.Restarting);
+		health.restarted(cause);
+		restartAttempts++;
+		lastRestart = platform.elapsedRealtime();
+		try {
+			ServalD.serverStop();
+		} catch (Exception e) {
+			// ignore all failures, at least we tried...
+			platform.e("ServalDMonitor", e.toString(), e);
+		}
+		try {
+			ServalD.serverStart();
+		} catch (ServalDFailureException e) {
+			health.restartFailed();
+			throw e;
+		} catch (ServalDInterfaceError e) {
+			health.restartFailed();
+			throw e;
+		}
+		setState(State.Connecting);
+	}
+
 	@Override
 	public void run() {
-		Log.d("ServalDMonitor", "Starting");
+		platform.d("ServalDMonitor", "Starting");
 		currentThread = Thread.currentThread();
 		// boost the priority so we can read incoming audio frames with low
 		// latency
-		Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+		platform.setThreadPriority(MonitorPlatform.PRIORITY_FOREGROUND);
 		while (!stopMe) {
 
 			try {
@@ -264,183 +844,243 @@ public class ServalDMonitor implements Runnable {
 				if ("Try again".equals(e.getMessage()))
 					continue;
 
-				Log.e("ServalDMonitor", e.getMessage(), e);
+				platform.e("ServalDMonitor", e.getMessage(), e);
 				cleanupSocket();
 			} catch (Exception e) {
-				Log.e("ServalDMonitor", e.getMessage(), e);
+				platform.e("ServalDMonitor", e.getMessage(), e);
 			}
 		}
 		currentThread = null;
 	}
 
 	// one set of buffers for parsing incoming commands
-	// note that these fields can only be accessed from within a synchronised
-	// block in processInput()
-	private final char fieldBuffer[] = new char[128];
-	private final String fields[] = new String[32];
-	private int argsIndex = 0;
-	private int numFields;
-	private Iterator<String> iArgs = new Iterator<String>() {
+	// note that these fields can only be accessed from the monitor thread,
+	// within processInput()
+	private final byte readBuffer[] = new byte[4096];
+	private int readPos;
+	private int readLimit;
+	private InputStream source;
+	private final Fields fields = new Fields(1024);
+
+	// Lets message handlers read the data block that follows a command,
+	// consuming whatever we have already buffered before touching the socket
+	private final InputStream dataInput = new InputStream() {
 		@Override
-		public boolean hasNext() {
-			return argsIndex < numFields;
+		public int read() throws IOException {
+			if (readPos < readLimit)
+				return readBuffer[readPos++] & 0xFF;
+			return source.read();
 		}
 
 		@Override
-		public String next() {
-			if (!hasNext())
-				throw new NoSuchElementException();
-			return fields[argsIndex++];
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			if (length == 0)
+				return 0;
+			int buffered = readLimit - readPos;
+			if (buffered <= 0)
+				return source.read(buffer, offset, length);
+			if (length > buffered)
+				length = buffered;
+			System.arraycopy(readBuffer, readPos, buffer, offset, length);
+			readPos += length;
+			return length;
+		}
+
+		@Override
+		public long skip(long byteCount) throws IOException {
+			int buffered = readLimit - readPos;
+			if (buffered <= 0)
+				return source.skip(byteCount);
+			if (byteCount > buffered)
+				byteCount = buffered;
+			readPos += byteCount;
+			return byteCount;
 		}
 
 		@Override
-		public void remove() {
-			throw new UnsupportedOperationException();
+		public int available() throws IOException {
+			return (readLimit - readPos) + source.available();
 		}
 	};
 
-	private void readCommand(InputStream in) throws IOException {
-		int value;
-		int fieldPos = 0;
-		int fieldCount = 0;
+	private void fill() throws IOException {
+		int read = source.read(readBuffer, 0, readBuffer.length);
+		if (read < 0)
+			throw new EOFException();
+		readPos = 0;
+		readLimit = read;
+	}
+
+	private void readCommand() throws IOException {
+		final byte buff[] = readBuffer;
+		final byte line[] = fields.line;
+		int lineLen = 0;
+		int fieldStart = 0;
 
-		while ((value = in.read()) >= 0) {
+		fields.reset();
+		while (true) {
+			if (readPos >= readLimit)
+				fill();
+
+			byte value = buff[readPos++];
 			switch (value) {
 			default:
-				if (fieldPos < fieldBuffer.length)
-					fieldBuffer[fieldPos++] = (char) value;
+				if (lineLen < line.length)
+					line[lineLen++] = value;
 				break;
 			case ':':
-				fields[fieldCount++] = new String(fieldBuffer, 0, fieldPos);
-				fieldPos = 0;
+				fields.add(fieldStart, lineLen);
+				fieldStart = lineLen;
 				break;
 			case '\n':
 				// ignore empty lines
-				if (fieldPos == 0 && fieldCount == 0)
+				if (lineLen == 0 && fields.count == 0)
 					break;
-				fields[fieldCount++] = new String(fieldBuffer, 0, fieldPos);
+				fields.add(fieldStart, lineLen);
 
-				char first = fields[0].charAt(0);
+				byte first = fields.peekLength() > 0 ? line[0] : 0;
 				if ((first >= 'a' && first <= 'z')
 						|| (first >= 'A' && first <= 'Z')
-						|| first == '*') {
-					numFields = fieldCount;
-					argsIndex = 0;
+						|| first == '*')
 					return;
-				}
 
-				Log.v("ServalDMonitor", "Ignoring invalid command \""
-						+ fields[0] + "\"");
-				fieldPos = 0;
-				fieldCount = 0;
+				platform.v("ServalDMonitor", "Ignoring invalid command \""
+						+ fields.toString() + "\"");
+				lineLen = 0;
+				fieldStart = 0;
+				fields.reset();
+				break;
 			case '\r':
 				// ignore
 			}
 		}
-		throw new EOFException();
 	}
 
-	static final Pattern delim = Pattern.compile(":");
 	private void processInput() throws IOException {
-		String cmd;
-
 		// (we don't need to worry about NPE from this.is changing in another
 		// thread if we keep a local reference)
 		InputStream in = is;
 		if (in == null)
 			return;
 
-		synchronized (iArgs) {
-			readCommand(in);
-
-			cmd = iArgs.next();
+		// throw away anything we buffered from a previous connection
+		if (in != source) {
+			source = in;
+			readPos = readLimit = 0;
+		}
 
-			if (cmd.charAt(0) == '*') {
+		readCommand();
 
-				// Message with data
-				String len = cmd.substring(1);
-				dataBytes = parseInt(len);
+		if (fields.line[fields.peekOffset()] != '*') {
+			dataBytes = 0;
+		} else {
+			// Message with data
+			dataBytes = parseInt(fields.line, fields.peekOffset() + 1,
+					fields.peekLength() - 1);
+			fields.skip();
 
-				if (dataBytes < 0)
-					throw new IOException(
-							"Message has data block with negative length: "
-									+ len);
+			if (dataBytes < 0)
+				throw new IOException(
+						"Message has data block with negative length: "
+								+ dataBytes);
+		}
 
-				// Okay, we know about the data, get the real command
-				cmd = iArgs.next();
-			} else
-				dataBytes = 0;
+		// Okay, we know about the data, get the real command
+		HandlerEntry entry = findHandler(fields);
+		fields.skip();
 
-			int read = 0;
+		int read = 0;
+		messageCount++;
 
-			if (cmd.equals("ERROR")) {
-				while (iArgs.hasNext())
-					Log.e("ServalDMonitor", iArgs.next());
-			} else if (this.messages != null)
-				read = messages.message(cmd, iArgs, in, dataBytes);
+		if (entry == null) {
+			unknownCommands++;
+		} else if (entry.background) {
+			queueCommand(entry, fields, dataInput, dataBytes);
+			read = dataBytes;
+		} else {
+			long start = System.nanoTime();
+			read = entry.handler.message(entry.command, fields, dataInput,
+					dataBytes);
+			realtimeStats.ran(0, System.nanoTime() - start);
+		}
 
-			while (read < dataBytes) {
-				if (logMessages)
-					Log.v("ServalDMonitor", "Skipping "
-							+ (dataBytes - read) + " unread data bytes");
-				read += in.skip(dataBytes - read);
+		while (read < dataBytes) {
+			if (logMessages)
+				platform.v("ServalDMonitor", "Skipping "
+						+ (dataBytes - read) + " unread data bytes");
+			long skipped = dataInput.skip(dataBytes - read);
+			if (skipped <= 0) {
+				// skip() may return 0 at the end of the stream, or may not
+				// be able to skip at all
+				if (dataInput.read() < 0)
+					throw new EOFException();
+				skipped = 1;
 			}
-
-			if (read > dataBytes)
-				throw new IOException("Read too many bytes");
+			read += skipped;
 		}
-	}
-
-	private void write(OutputStream out, String str) throws IOException {
-		if (str == null)
-			return;
 
-		byte buff[] = new byte[str.length()];
-		for (int i = 0; i < str.length(); i++) {
-			char chr = str.charAt(i);
-			if (chr > 0xFF)
-				throw new IOException("Unexpected character " + chr);
-			buff[i] = (byte) chr;
-		}
-		out.write(buff);
+		if (read > dataBytes)
+			throw new IOException("Read too many bytes");
 	}
 
-	private void write(OutputStream out, String... x) throws IOException {
-		for (int i = 0; i < x.length; i++)
-			write(out, x[i]);
+	private void connectForSend() throws IOException {
+		if (os == null)
+			createSocket();
 	}
 
 	// this interface is specified as varargs so we can write characters
-	// directly into the output stream without building a string buffer first
+	// directly into the output buffer without building a string first.
+	// Messages are queued and written by MonitorWriter, so this never blocks
+	// on the socket.
 	public void sendMessage(String... string) throws IOException {
-		try {
-			if (socket == null)
-				createSocket();
-			OutputStream out = os;
-			if (out == null)
-				throw new IOException();
-
-			if (logMessages)
-				Log.v("ServalDMonitor",
-						"Sending " + Arrays.deepToString(string));
-			synchronized (out) {
-				socket.setSoTimeout(500);
-				write(out, string);
-				write(out, "\n");
-				out.flush();
-				socket.setSoTimeout(60000);
-			}
-		} catch (IOException e) {
-			cleanupSocket();
-			throw e;
-		}
+		connectForSend();
+		if (logMessages)
+			platform.v("ServalDMonitor", "Sending " + Arrays.deepToString(string));
+		writer.send(null, 0, 0, string);
 	}
 
 	public void sendMessageAndLog(String... string) {
 		try {
 			this.sendMessage(string);
 		} catch (IOException e) {
-			Log.e("ServalDMonitor", e.getMessage(), e);
+			platform.e("ServalDMonitor", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Record everything read from future monitor connections into a file,
+	 * or stop recording if file is null. Each connection replaces the last
+	 * recording.
+	 */
+	public void setRecordFile(File file) {
+		recordFile = file;
+	}
+
+	/**
+	 * Process a captured monitor stream, instead of connecting to servald,
+	 * until the stream ends. Anything we would send to servald is written
+	 * to out. The monitor thread must not be running.
+	 */
+	public void replay(InputStream in, OutputStream out) throws IOException {
+		synchronized (this) {
+			if (socket != null || is != null)
+				throw new IOException("Monitor is already connected");
+			is = in;
+			os = out;
+			writer.setOutput(out);
+			writer.start();
+			audioBatchLimit = 1;
+		}
+		if (this.messages != null)
+			messages.connected();
+		try {
+			while (!stopMe)
+				processInput();
+		} catch (EOFException e) {
+			// end of the recording
+		} finally {
+			cleanupSocket();
 		}
 	}
 
@@ -450,6 +1090,9 @@ public class ServalDMonitor implements Runnable {
 
 	public void stop() {
 		stopMe = true;
+		setState(State.Stopped);
+		background.stop();
+		writer.stop();
 		if (currentThread != null)
 			currentThread.interrupt();
 		cleanupSocket();
@@ -457,29 +1100,28 @@ public class ServalDMonitor implements Runnable {
 
 	public void sendMessageAndData(byte[] block, int len, String... string)
 			throws IOException {
-		try {
-			if (socket == null)
-				createSocket();
-			OutputStream out = os;
-			if (out == null)
-				throw new IOException();
+		connectForSend();
+		if (logMessages)
+			platform.v("ServalDMonitor", "Sending " + Arrays.deepToString(string));
+		writer.send(block, 0, len, string);
+	}
 
-			if (logMessages)
-				Log.v("ServalDMonitor",
-						"Sending " + Arrays.deepToString(string));
-
-			synchronized (out) {
-				socket.setSoTimeout(500);
-				write(out, "*", Integer.toString(len), ":");
-				write(out, string);
-				write(out, "\n");
-				out.write(block, 0, len);
-				out.flush();
-				socket.setSoTimeout(60000);
-			}
-		} catch (IOException e) {
-			cleanupSocket();
-			throw e;
-		}
+	public int getAudioBatchLimit() {
+		return audioBatchLimit;
+	}
+
+	public void setAudioBatchLimit(int frames) {
+		audioBatchLimit = frames < 1 ? 1 : frames;
+	}
+
+	// time from queueing each type of message until it was written to the
+	// socket
+	public LatencyHistogram[] getSendLatency() {
+		return writer.getHistograms();
+	}
+
+	// messages refused because the send queue was full
+	public long getSendQueueFullCount() {
+		return writer.getRefusedCount();
 	}
 }
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.sipdroid.codecs;
+
+// BroadVoice16, 8kHz, 40 samples to 10 bytes
+public class BV16 implements NativeCodec {
+	static {
+		System.loadLibrary("bv16_jni");
+	}
+
+	@Override
+	public native int open();
+
+	@Override
+	public native int encode(short lin[], int offset, byte encoded[],
+			int size);
+
+	@Override
+	public native int decode(byte encoded[], short lin[], int size);
+
+	@Override
+	public native void close();
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.sipdroid.codecs;
+
+/**
+ * Java side of the codecs in jni/*_jni.cpp, which were written for
+ * Sipdroid. Each library holds a single encoder and decoder, shared by
+ * everyone that has opened it.
+ *
+ * Encoded data is read from, and written to, encoded[] after space for a 12
+ * byte RTP header.
+ */
+public interface NativeCodec {
+	public static final int RTP_HEADER = 12;
+
+	public int open();
+
+	// returns the number of bytes written after the RTP header
+	public int encode(short lin[], int offset, byte encoded[], int size);
+
+	// returns the number of samples written to lin[]
+	public int decode(byte encoded[], short lin[], int size);
+
+	public void close();
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.sipdroid.codecs;
+
+// SILK at 24kHz, 480 samples per frame, variable bit rate, complexity 0 - 2
+public class SILK24 implements NativeCodec {
+	private final int complexity;
+
+	static {
+		System.loadLibrary("silk24_jni");
+	}
+
+	public SILK24(int complexity) {
+		this.complexity = complexity;
+	}
+
+	@Override
+	public int open() {
+		return open(complexity);
+	}
+
+	private native int open(int complexity);
+
+	@Override
+	public native int encode(short lin[], int offset, byte encoded[],
+			int size);
+
+	@Override
+	public native int decode(byte encoded[], short lin[], int size);
+
+	@Override
+	public native void close();
+}
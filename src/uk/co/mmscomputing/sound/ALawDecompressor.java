@@ -1,43 +0,0 @@
-package uk.co.mmscomputing.sound;
-
-public class ALawDecompressor extends Decompressor {
-
-	static private int[] alawtable = {
-			0x80ea, 0x80eb, 0x80e8, 0x80e9, 0x80ee, 0x80ef, 0x80ec, 0x80ed,
-			0x80e2, 0x80e3, 0x80e0, 0x80e1, 0x80e6, 0x80e7, 0x80e4, 0x80e5,
-			0x40f5, 0xc0f5, 0x40f4, 0xc0f4, 0x40f7, 0xc0f7, 0x40f6, 0xc0f6,
-			0x40f1, 0xc0f1, 0x40f0, 0xc0f0, 0x40f3, 0xc0f3, 0x40f2, 0xc0f2,
-			0x00aa, 0x00ae, 0x00a2, 0x00a6, 0x00ba, 0x00be, 0x00b2, 0x00b6,
-			0x008a, 0x008e, 0x0082, 0x0086, 0x009a, 0x009e, 0x0092, 0x0096,
-			0x00d5, 0x00d7, 0x00d1, 0x00d3, 0x00dd, 0x00df, 0x00d9, 0x00db,
-			0x00c5, 0x00c7, 0x00c1, 0x00c3, 0x00cd, 0x00cf, 0x00c9, 0x00cb,
-			0xa8fe, 0xb8fe, 0x88fe, 0x98fe, 0xe8fe, 0xf8fe, 0xc8fe, 0xd8fe,
-			0x28fe, 0x38fe, 0x08fe, 0x18fe, 0x68fe, 0x78fe, 0x48fe, 0x58fe,
-			0xa8ff, 0xb8ff, 0x88ff, 0x98ff, 0xe8ff, 0xf8ff, 0xc8ff, 0xd8ff,
-			0x28ff, 0x38ff, 0x08ff, 0x18ff, 0x68ff, 0x78ff, 0x48ff, 0x58ff,
-			0xa0fa, 0xe0fa, 0x20fa, 0x60fa, 0xa0fb, 0xe0fb, 0x20fb, 0x60fb,
-			0xa0f8, 0xe0f8, 0x20f8, 0x60f8, 0xa0f9, 0xe0f9, 0x20f9, 0x60f9,
-			0x50fd, 0x70fd, 0x10fd, 0x30fd, 0xd0fd, 0xf0fd, 0x90fd, 0xb0fd,
-			0x50fc, 0x70fc, 0x10fc, 0x30fc, 0xd0fc, 0xf0fc, 0x90fc, 0xb0fc,
-			0x8015, 0x8014, 0x8017, 0x8016, 0x8011, 0x8010, 0x8013, 0x8012,
-			0x801d, 0x801c, 0x801f, 0x801e, 0x8019, 0x8018, 0x801b, 0x801a,
-			0xc00a, 0x400a, 0xc00b, 0x400b, 0xc008, 0x4008, 0xc009, 0x4009,
-			0xc00e, 0x400e, 0xc00f, 0x400f, 0xc00c, 0x400c, 0xc00d, 0x400d,
-			0x0056, 0x0052, 0x005e, 0x005a, 0x0046, 0x0042, 0x004e, 0x004a,
-			0x0076, 0x0072, 0x007e, 0x007a, 0x0066, 0x0062, 0x006e, 0x006a,
-			0x002b, 0x0029, 0x002f, 0x002d, 0x0023, 0x0021, 0x0027, 0x0025,
-			0x003b, 0x0039, 0x003f, 0x003d, 0x0033, 0x0031, 0x0037, 0x0035,
-			0x5801, 0x4801, 0x7801, 0x6801, 0x1801, 0x0801, 0x3801, 0x2801,
-			0xd801, 0xc801, 0xf801, 0xe801, 0x9801, 0x8801, 0xb801, 0xa801,
-			0x5800, 0x4800, 0x7800, 0x6800, 0x1800, 0x0800, 0x3800, 0x2800,
-			0xd800, 0xc800, 0xf800, 0xe800, 0x9800, 0x8800, 0xb800, 0xa800,
-			0x6005, 0x2005, 0xe005, 0xa005, 0x6004, 0x2004, 0xe004, 0xa004,
-			0x6007, 0x2007, 0xe007, 0xa007, 0x6006, 0x2006, 0xe006, 0xa006,
-			0xb002, 0x9002, 0xf002, 0xd002, 0x3002, 0x1002, 0x7002, 0x5002,
-			0xb003, 0x9003, 0xf003, 0xd003, 0x3003, 0x1003, 0x7003, 0x5003,
-	};
-
-	public ALawDecompressor() {
-		super(alawtable);
-	}
-}
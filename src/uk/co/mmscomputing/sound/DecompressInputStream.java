@@ -23,12 +23,12 @@ public class DecompressInputStream extends FilterInputStream {
 	 * Willi-Hans Steeb International School for Scientific Computing
 	 */
 
-	private final Decompressor decompressor;
+	private final G711 decompressor;
+
 	public DecompressInputStream(InputStream in, boolean useALaw)
 			throws IOException {
 		super(in);
-		decompressor = (useALaw) ? new ALawDecompressor()
-				: new ULawDecompressor();
+		decompressor = (useALaw) ? G711.ALAW : G711.ULAW;
 	}
 
 	@Override
@@ -44,15 +44,13 @@ public class DecompressInputStream extends FilterInputStream {
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		byte[] inb;
-
-		inb = new byte[len >> 1]; // get A-Law or u-Law bytes
-		len = in.read(inb);
+		// read A-Law or u-Law bytes into the first half, then expand them
+		len = in.read(b, off, len >> 1);
 		if (len == -1) {
 			return -1;
 		}
 
-		decompressor.decompress(inb, 0, len, b, off);
+		decompressor.decode(b, off, b, off, len);
 		return len << 1;
 	}
 }
\ No newline at end of file
@@ -5,33 +5,25 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 public class DecompressOutputStream extends FilterOutputStream {
-	private final Decompressor decompressor;
-	private byte workBuff[];
+	private final G711 decompressor;
+	private final byte workBuff[] = new byte[1024];
 
 	public DecompressOutputStream(OutputStream out, boolean useALaw) {
 		super(out);
-		this.decompressor = (useALaw) ? new ALawDecompressor()
-				: new ULawDecompressor();
-	}
-
-	@Override
-	public void close() throws IOException {
-		super.close();
-		workBuff = null;
+		this.decompressor = (useALaw) ? G711.ALAW : G711.ULAW;
 	}
 
 	@Override
 	public void write(byte[] buffer, int offset, int count)
 			throws IOException {
-		if (count <= 0)
-			return;
-
-		int buffSize = count << 1;
-		if (workBuff == null || workBuff.length < buffSize)
-			workBuff = new byte[buffSize];
-
-		decompressor.decompress(buffer, offset, count, workBuff, 0);
-		out.write(workBuff, 0, buffSize);
+		// a 20ms frame fits in one pass
+		while (count > 0) {
+			int samples = Math.min(count, workBuff.length >> 1);
+			decompressor.decode(buffer, offset, workBuff, 0, samples);
+			out.write(workBuff, 0, samples << 1);
+			offset += samples;
+			count -= samples;
+		}
 	}
 
 	@Override
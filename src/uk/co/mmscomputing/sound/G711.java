@@ -0,0 +1,161 @@
+package uk.co.mmscomputing.sound;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/*
+ * Table driven G.711 A-Law and u-Law transcoding.
+ *
+ * Encoding looks up the significant bits of each sample in a table (A-Law
+ * only uses the top 12 bits and the sign, u-Law the top 14), decoding
+ * looks up each byte. Tables are built once from the ITU-T G.191 reference
+ * algorithm, so every 20ms frame is just an array loop.
+ *
+ * Nothing here allocates. PCM byte arrays are 16 bit little-endian. Byte
+ * array encoding can write over the start of its own input, and decoding
+ * can expand into the same array, if the offsets are equal.
+ */
+public final class G711 {
+	public static final G711 ALAW = new G711(true);
+	public static final G711 ULAW = new G711(false);
+
+	private final int shift;
+	private final byte encodeTable[];
+	private final short decodeTable[] = new short[256];
+
+	private G711(boolean alaw) {
+		shift = alaw ? 4 : 2;
+		encodeTable = new byte[1 << (16 - shift)];
+		for (int i = 0; i < encodeTable.length; i++) {
+			// the table is indexed by the unsigned top bits of the sample
+			short sample = (short) (i << shift);
+			encodeTable[i] = (byte) (alaw ? alawCompress(sample)
+					: ulawCompress(sample));
+		}
+		for (int i = 0; i < 256; i++)
+			decodeTable[i] = alaw ? alawExpand(i) : ulawExpand(i);
+	}
+
+	// G.191 alaw_compress
+	static int alawCompress(short sample) {
+		int ix = sample < 0 ? (~sample) >> 4 : sample >> 4;
+		if (ix > 15) {
+			int exponent = 1;
+			while (ix > 16 + 15) {
+				ix >>= 1;
+				exponent++;
+			}
+			ix -= 16;
+			ix += exponent << 4;
+		}
+		if (sample >= 0)
+			ix |= 0x80;
+		return ix ^ 0x55;
+	}
+
+	// G.191 alaw_expand
+	static short alawExpand(int alaw) {
+		int ix = (alaw ^ 0x55) & 0x7F;
+		int exponent = ix >> 4;
+		int mantissa = ix & 0x0F;
+		if (exponent > 0)
+			mantissa += 16;
+		mantissa = (mantissa << 4) + 0x08;
+		if (exponent > 1)
+			mantissa <<= exponent - 1;
+		return (short) (alaw > 127 ? mantissa : -mantissa);
+	}
+
+	// G.191 ulaw_compress
+	static int ulawCompress(short sample) {
+		int absno = sample < 0 ? ((~sample) >> 2) + 33 : (sample >> 2) + 33;
+		if (absno > 0x1FFF)
+			absno = 0x1FFF;
+		int segment = 1;
+		for (int i = absno >> 6; i != 0; i >>= 1)
+			segment++;
+		int high = 0x08 - segment;
+		int low = 0x0F - ((absno >> segment) & 0x0F);
+		int ulaw = (high << 4) | low;
+		if (sample >= 0)
+			ulaw |= 0x80;
+		return ulaw;
+	}
+
+	// G.191 ulaw_expand
+	static short ulawExpand(int ulaw) {
+		int sign = ulaw < 0x80 ? -1 : 1;
+		int mantissa = ~ulaw;
+		int exponent = (mantissa >> 4) & 0x07;
+		int segment = exponent + 1;
+		mantissa &= 0x0F;
+		int step = 4 << segment;
+		return (short) (sign * ((0x80 << exponent) + step * mantissa + step
+				/ 2 - 4 * 33));
+	}
+
+	public byte encode(short sample) {
+		return encodeTable[(sample & 0xFFFF) >> shift];
+	}
+
+	public short decode(byte value) {
+		return decodeTable[value & 0xFF];
+	}
+
+	public void encode(short pcm[], int pcmOffset, byte out[], int outOffset,
+			int samples) {
+		final byte table[] = encodeTable;
+		final int shift = this.shift;
+		for (int i = 0; i < samples; i++)
+			out[outOffset + i] = table[(pcm[pcmOffset + i] & 0xFFFF) >> shift];
+	}
+
+	// pcm[] is little-endian
+	public void encode(byte pcm[], int pcmOffset, byte out[], int outOffset,
+			int samples) {
+		final byte table[] = encodeTable;
+		final int shift = this.shift;
+		for (int i = 0; i < samples; i++) {
+			int p = pcmOffset + (i << 1);
+			int sample = (pcm[p] & 0xFF) | ((pcm[p + 1] & 0xFF) << 8);
+			out[outOffset + i] = table[sample >> shift];
+		}
+	}
+
+	// encodes every remaining sample, that fits in out
+	public void encode(ShortBuffer pcm, ByteBuffer out) {
+		final byte table[] = encodeTable;
+		final int shift = this.shift;
+		int samples = Math.min(pcm.remaining(), out.remaining());
+		for (int i = 0; i < samples; i++)
+			out.put(table[(pcm.get() & 0xFFFF) >> shift]);
+	}
+
+	public void decode(byte in[], int inOffset, short pcm[], int pcmOffset,
+			int samples) {
+		final short table[] = decodeTable;
+		for (int i = 0; i < samples; i++)
+			pcm[pcmOffset + i] = table[in[inOffset + i] & 0xFF];
+	}
+
+	// pcm[] is little-endian
+	public void decode(byte in[], int inOffset, byte pcm[], int pcmOffset,
+			int samples) {
+		final short table[] = decodeTable;
+		// backwards, so we can expand in place
+		for (int i = samples - 1; i >= 0; i--) {
+			short sample = table[in[inOffset + i] & 0xFF];
+			int p = pcmOffset + (i << 1);
+			pcm[p] = (byte) sample;
+			pcm[p + 1] = (byte) (sample >> 8);
+		}
+	}
+
+	// decodes every remaining byte, that fits in pcm
+	public void decode(ByteBuffer in, ShortBuffer pcm) {
+		final short table[] = decodeTable;
+		int samples = Math.min(in.remaining(), pcm.remaining());
+		for (int i = 0; i < samples; i++)
+			pcm.put(table[in.get() & 0xFF]);
+	}
+}
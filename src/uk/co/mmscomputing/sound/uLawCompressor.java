@@ -1,48 +0,0 @@
-package uk.co.mmscomputing.sound;
-
-class uLawCompressor extends Compressor {
-
-	static final int cClip = 32635;
-	static final int cBias = 0x84;
-
-	static final int[] uLawCompressTable = {
-			0, 0, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 3,
-			4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4,
-			5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-			5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
-			6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-			6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-			6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-			6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
-			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7
-	};
-
-	@Override
-	protected int compress(short sample) {
-		int sign;
-		int exponent;
-		int mantissa;
-		int compressedByte;
-
-		sign = (sample >> 8) & 0x80;
-		if (sign != 0) {
-			sample *= -1;
-		}
-		if (sample > cClip) {
-			sample = cClip;
-		}
-		sample += cBias;
-
-		exponent = uLawCompressTable[(sample >> 7) & 0x00FF];
-		mantissa = (sample >> (exponent + 3)) & 0x0F;
-		compressedByte = ~(sign | (exponent << 4) | mantissa);
-		return compressedByte & 0x000000FF;
-	}
-}
\ No newline at end of file
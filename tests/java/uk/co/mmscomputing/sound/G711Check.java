@@ -0,0 +1,180 @@
+package uk.co.mmscomputing.sound;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/*
+ * Checks G711 against the ITU-T G.711 tables, without a phone.
+ *
+ * Every 16 bit sample is encoded by looking up the quantisation interval
+ * that contains it, in the decision values of G.711 Table 1 (A-Law) and
+ * Table 2 (u-Law), and every code is decoded to the table's output value.
+ * That is a search rather than bit twiddling, so it doesn't share mistakes
+ * with the G.191 port in G711. Negative samples use the one's complement,
+ * as G.191 does. The endpoints are also checked against the values printed
+ * in G.711, and each bulk method against the single sample methods.
+ *
+ * Run with no arguments, exits with 1 if anything differs.
+ */
+public class G711Check {
+	private final String name;
+	private final G711 law;
+	private final boolean alaw;
+	// lower decision value of each code's interval, by magnitude, scaled
+	// to 16 bits
+	private final int decision[] = new int[128];
+	private final int output[] = new int[128];
+	private int errors;
+
+	G711Check(boolean alaw) {
+		this.alaw = alaw;
+		this.name = alaw ? "A-Law" : "u-Law";
+		this.law = alaw ? G711.ALAW : G711.ULAW;
+		for (int m = 0; m < 128; m++) {
+			int segment = m >> 4;
+			int step = m & 0x0F;
+			if (alaw) {
+				// 13 bit values, segment 0 and 1 have the same step size
+				decision[m] = 8 * (segment == 0 ? 2 * step
+						: (step + 16) << segment);
+				output[m] = 8 * (segment == 0 ? 2 * step + 1
+						: (2 * step + 33) << (segment - 1));
+			} else {
+				// 14 bit values, biased by 33
+				decision[m] = 4 * (((step + 16) << (segment + 1)) - 33);
+				output[m] = 4 * (((2 * step + 33) << segment) - 33);
+			}
+		}
+	}
+
+	// code for a magnitude, u-law codes are inverted
+	private int code(int magnitude, boolean positive) {
+		int code = alaw ? magnitude ^ 0x55 : magnitude ^ 0x7F;
+		return positive ? code | 0x80 : code;
+	}
+
+	private int expected(int sample) {
+		int magnitude = sample < 0 ? ~sample : sample;
+		int m = 127;
+		while (m > 0 && decision[m] > magnitude)
+			m--;
+		return code(m, sample >= 0);
+	}
+
+	private int expectedDecode(int code) {
+		int m = (alaw ? code ^ 0x55 : code ^ 0x7F) & 0x7F;
+		return code > 127 ? output[m] : -output[m];
+	}
+
+	private void fail(String msg) {
+		if (errors++ < 10)
+			System.out.println(name + ": " + msg);
+	}
+
+	private void check(String what, int got, int expected) {
+		if (got != expected)
+			fail(what + " was " + got + ", expected " + expected);
+	}
+
+	private void checkSamples() {
+		for (int s = Short.MIN_VALUE; s <= Short.MAX_VALUE; s++) {
+			int code = law.encode((short) s) & 0xFF;
+			check("encode(" + s + ")", code, expected(s));
+			int reference = alaw ? G711.alawCompress((short) s) : G711
+					.ulawCompress((short) s);
+			check("G.191 compress(" + s + ")", reference, expected(s));
+		}
+		for (int c = 0; c < 256; c++) {
+			check("decode(" + c + ")", law.decode((byte) c), expectedDecode(c));
+			// u-law has two codes for 0, only 0xFF is ever encoded
+			if (alaw || c != 0x7F)
+				check("encode(decode(" + c + "))",
+						law.encode(law.decode((byte) c)) & 0xFF, c);
+		}
+	}
+
+	// values printed in G.711, scaled from 13 or 14 bits
+	private void checkEndpoints() {
+		if (alaw) {
+			check("decode(0xD5)", law.decode((byte) 0xD5), 8);
+			check("decode(0x55)", law.decode((byte) 0x55), -8);
+			check("decode(0xAA)", law.decode((byte) 0xAA), 4032 * 8);
+			check("decode(0x2A)", law.decode((byte) 0x2A), -4032 * 8);
+		} else {
+			check("decode(0xFF)", law.decode((byte) 0xFF), 0);
+			check("decode(0x7F)", law.decode((byte) 0x7F), 0);
+			check("decode(0x80)", law.decode((byte) 0x80), 8031 * 4);
+			check("decode(0x00)", law.decode((byte) 0x00), -8031 * 4);
+		}
+		check("encode(0)", law.encode((short) 0) & 0xFF, alaw ? 0xD5 : 0xFF);
+		check("encode(-1)", law.encode((short) -1) & 0xFF, alaw ? 0x55 : 0x7F);
+		check("encode(32767)", law.encode(Short.MAX_VALUE) & 0xFF,
+				alaw ? 0xAA : 0x80);
+		check("encode(-32768)", law.encode(Short.MIN_VALUE) & 0xFF,
+				alaw ? 0x2A : 0x00);
+	}
+
+	private void checkBulk() {
+		int samples = 65536;
+		short pcm[] = new short[samples];
+		byte pcmBytes[] = new byte[samples * 2];
+		for (int i = 0; i < samples; i++) {
+			short s = (short) (i + Short.MIN_VALUE);
+			pcm[i] = s;
+			pcmBytes[i * 2] = (byte) s;
+			pcmBytes[i * 2 + 1] = (byte) (s >> 8);
+		}
+
+		byte codes[] = new byte[samples];
+		law.encode(pcm, 0, codes, 0, samples);
+		for (int i = 0; i < samples; i++)
+			check("encode(short[]) " + pcm[i], codes[i], law.encode(pcm[i]));
+
+		ByteBuffer out = ByteBuffer.allocateDirect(samples);
+		law.encode(ShortBuffer.wrap(pcm), out);
+		out.flip();
+		for (int i = 0; i < samples; i++)
+			check("encode(ShortBuffer) " + pcm[i], out.get(i), codes[i]);
+
+		// in place, as AudioRecorder does
+		law.encode(pcmBytes, 0, pcmBytes, 0, samples);
+		for (int i = 0; i < samples; i++)
+			check("encode(byte[]) " + pcm[i], pcmBytes[i], codes[i]);
+
+		short decoded[] = new short[samples];
+		law.decode(codes, 0, decoded, 0, samples);
+		for (int i = 0; i < samples; i++)
+			check("decode(byte[], short[]) " + codes[i], decoded[i],
+					law.decode(codes[i]));
+
+		ShortBuffer decodedBuffer = ShortBuffer.allocate(samples);
+		law.decode(ByteBuffer.wrap(codes), decodedBuffer);
+		for (int i = 0; i < samples; i++)
+			check("decode(ShortBuffer) " + codes[i], decodedBuffer.get(i),
+					decoded[i]);
+
+		// expanding in place
+		System.arraycopy(codes, 0, pcmBytes, 0, samples);
+		law.decode(pcmBytes, 0, pcmBytes, 0, samples);
+		for (int i = 0; i < samples; i++)
+			check("decode(byte[], byte[]) " + codes[i],
+					(short) ((pcmBytes[i * 2] & 0xFF) | (pcmBytes[i * 2 + 1] << 8)),
+					decoded[i]);
+	}
+
+	int run() {
+		checkSamples();
+		checkEndpoints();
+		checkBulk();
+		System.out.println(name + ": "
+				+ (errors == 0 ? "ok" : errors + " errors")
+				+ ", 65536 samples and 256 codes");
+		return errors;
+	}
+
+	public static void main(String args[]) {
+		int errors = new G711Check(true).run() + new G711Check(false).run();
+		if (errors > 0)
+			System.exit(1);
+	}
+}